@@ -10,11 +10,21 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import fingerprint.com.fingerprintrecognition.core.AuthenticationChain;
+import fingerprint.com.fingerprintrecognition.core.CoreFuture;
+import fingerprint.com.fingerprintrecognition.core.DeviceCapabilities;
 import fingerprint.com.fingerprintrecognition.core.FingerprintCore;
+import fingerprint.com.fingerprintrecognition.core.FrameCoalescer;
+import fingerprint.com.fingerprintrecognition.log.FPLog;
 
 public class FingerprintMainActivity extends Activity implements View.OnClickListener {
 
+    /** 用户30秒没有触摸传感器就停止监听 */
+    private static final long SENSOR_IDLE_TIMEOUT_MS = 30000;
+
     private FingerprintCore mFingerprintCore;
+    /** 指纹识别出错（例如被锁定）时自动降级到锁屏密码 */
+    private AuthenticationChain mAuthChain;
     private KeyguardLockScreenManager mKeyguardLockScreenManager;
 
     private Toast mToast;
@@ -22,6 +32,8 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
 
     private ImageView mFingerGuideImg;
     private TextView mFingerGuideTxt;
+    /** 识别回调只提交引导区域的状态，每帧只绘制最新的一个 */
+    private FrameCoalescer<GuideViewState> mGuideUpdater;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,14 +45,55 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
     }
 
     private void initFingerprintCore() {
-        mFingerprintCore = new FingerprintCore(this);
+        // 硬件检测和秘钥初始化都放到后台，不占用启动时的主线程
+        mFingerprintCore = new FingerprintCore(this, true);
         mFingerprintCore.setFingerprintManager(mResultListener);
+        // 切到后台时暂停识别、释放传感器，回到前台时恢复
+        mFingerprintCore.attachToLifecycle(this);
+        mFingerprintCore.setIdleTimeout(SENSOR_IDLE_TIMEOUT_MS);
         mKeyguardLockScreenManager = new KeyguardLockScreenManager(this);
+        mAuthChain = new AuthenticationChain()
+                .addStep(new AuthenticationChain.FingerprintStep(mFingerprintCore, 0))
+                .addStep(new AuthenticationChain.DeviceCredentialStep(this,
+                        getString(R.string.device_credential_title),
+                        getString(R.string.device_credential_description)));
+        mAuthChain.setListener(mAuthChainListener);
+        DeviceCapabilities.registerInvalidationReceiver(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 用户可能去系统设置里录入了指纹或者修改了锁屏密码，回到页面时重新检测
+        DeviceCapabilities.invalidate();
+        DeviceCapabilities.refresh(this);
     }
 
     private void initViews() {
         mFingerGuideImg = (ImageView) findViewById(R.id.fingerprint_guide);
         mFingerGuideTxt = (TextView) findViewById(R.id.fingerprint_guide_tip);
+        // 初始状态和布局中的一致
+        mGuideUpdater = new FrameCoalescer<>(new GuideViewState(R.string.fingerprint_recognition_guide_tip,
+                R.drawable.fingerprint_normal), mGuideRenderer);
+    }
+
+    private FrameCoalescer.Renderer<GuideViewState> mGuideRenderer = new FrameCoalescer.Renderer<GuideViewState>() {
+        @Override
+        public void render(GuideViewState previous, GuideViewState state) {
+            if (state.getTipResId() != previous.getTipResId()) {
+                mFingerGuideTxt.setText(state.getTipResId());
+            }
+            if (state.getImageResId() != previous.getImageResId()) {
+                mFingerGuideImg.setBackgroundResource(state.getImageResId());
+            }
+            if (state.hasNewToast(previous)) {
+                showToast(state.getToastResId());
+            }
+        }
+    };
+
+    private void updateGuide(GuideViewState state) {
+        mGuideUpdater.submit(state);
     }
 
     private void initViewListeners() {
@@ -74,9 +127,9 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
     }
 
     private void cancelFingerprintRecognition() {
-        if (mFingerprintCore.isAuthenticating()) {
-            mFingerprintCore.cancelAuthenticate();
-            resetGuideViewState();
+        if (mAuthChain.isRunning()) {
+            mAuthChain.cancel();
+            updateGuide(resetGuideViewState());
         }
     }
 
@@ -84,7 +137,10 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
         if (mKeyguardLockScreenManager == null) {
             return;
         }
-        if (!mKeyguardLockScreenManager.isOpenLockScreenPwd()) {
+        DeviceCapabilities capabilities = DeviceCapabilities.peek();
+        boolean isKeyguardSecure = capabilities != null ? capabilities.isKeyguardSecure()
+                : mKeyguardLockScreenManager.isOpenLockScreenPwd();
+        if (!isKeyguardSecure) {
             toastTipMsg(R.string.fingerprint_not_set_unlock_screen_pws);
             FingerprintUtil.openFingerPrintSettingPage(this);
             return;
@@ -96,48 +152,97 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
      * 开始指纹识别
      */
     private void startFingerprintRecognition() {
+        startFingerprintRecognition(DeviceCapabilities.peek());
+    }
+
+    /**
+     * @param capabilities 为null时先在后台检测，检测完成之后再继续
+     */
+    private void startFingerprintRecognition(DeviceCapabilities capabilities) {
+        if (!mFingerprintCore.isReady()) {
+            // 还在初始化，初始化完成之后再继续
+            mFingerprintCore.getReadyFuture().removeListener(mReadyListener);
+            mFingerprintCore.getReadyFuture().addListener(mReadyListener);
+            return;
+        }
+        if (capabilities == null) {
+            // 检测结果还没有缓存，后台检测完成之后再继续
+            CoreFuture<DeviceCapabilities> refreshFuture = DeviceCapabilities.refresh(this);
+            refreshFuture.removeListener(mCapabilitiesListener);
+            refreshFuture.addListener(mCapabilitiesListener);
+            return;
+        }
         if (mFingerprintCore.isSupport()) {
-            if (!mFingerprintCore.isHasEnrolledFingerprints()) {
+            if (!capabilities.hasEnrolledFingerprints()) {
                 toastTipMsg(R.string.fingerprint_recognition_not_enrolled);
                 FingerprintUtil.openFingerPrintSettingPage(this);
                 return;
             }
-            toastTipMsg(R.string.fingerprint_recognition_tip);
-            mFingerGuideTxt.setText(R.string.fingerprint_recognition_tip);
-            mFingerGuideImg.setBackgroundResource(R.drawable.fingerprint_guide);
-            if (mFingerprintCore.isAuthenticating()) {
-                toastTipMsg(R.string.fingerprint_recognition_authenticating);
+            GuideViewState state = mGuideUpdater.getLatest().withTip(R.string.fingerprint_recognition_tip)
+                    .withImage(R.drawable.fingerprint_guide);
+            if (mAuthChain.isRunning()) {
+                updateGuide(state.withToast(R.string.fingerprint_recognition_authenticating));
             } else {
-                mFingerprintCore.startAuthenticate();
+                updateGuide(state.withToast(R.string.fingerprint_recognition_tip));
+                mAuthChain.start(this);
             }
         } else {
-            toastTipMsg(R.string.fingerprint_recognition_not_support);
-            mFingerGuideTxt.setText(R.string.fingerprint_recognition_tip);
+            updateGuide(mGuideUpdater.getLatest().withTip(R.string.fingerprint_recognition_tip)
+                    .withToast(R.string.fingerprint_recognition_not_support));
         }
     }
 
-    private void resetGuideViewState() {
-        mFingerGuideTxt.setText(R.string.fingerprint_recognition_guide_tip);
-        mFingerGuideImg.setBackgroundResource(R.drawable.fingerprint_normal);
+    private CoreFuture.Listener<Boolean> mReadyListener = new CoreFuture.Listener<Boolean>() {
+        @Override
+        public void onComplete(CoreFuture<Boolean> future) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFingerprintCore != null) {
+                        startFingerprintRecognition();
+                    }
+                }
+            });
+        }
+    };
+
+    private CoreFuture.Listener<DeviceCapabilities> mCapabilitiesListener = new CoreFuture.Listener<DeviceCapabilities>() {
+        @Override
+        public void onComplete(CoreFuture<DeviceCapabilities> future) {
+            // 检测期间又发生了invalidate时结果不会缓存，peek()为null，直接用这次检测的结果，不能丢掉用户的点击
+            final DeviceCapabilities capabilities = future.getNow(null);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFingerprintCore != null && capabilities != null) {
+                        startFingerprintRecognition(capabilities);
+                    }
+                }
+            });
+        }
+    };
+
+    private GuideViewState resetGuideViewState() {
+        return mGuideUpdater.getLatest().withTip(R.string.fingerprint_recognition_guide_tip)
+                .withImage(R.drawable.fingerprint_normal);
     }
 
     private FingerprintCore.IFingerprintResultListener mResultListener = new FingerprintCore.IFingerprintResultListener() {
         @Override
         public void onAuthenticateSuccess() {
-            toastTipMsg(R.string.fingerprint_recognition_success);
-            resetGuideViewState();
+            updateGuide(resetGuideViewState().withToast(R.string.fingerprint_recognition_success));
         }
 
         @Override
         public void onAuthenticateFailed(int helpId) {
-            toastTipMsg(R.string.fingerprint_recognition_failed);
-            mFingerGuideTxt.setText(R.string.fingerprint_recognition_failed);
+            // 连续的失败和帮助信息在同一帧内只刷新一次
+            updateGuide(mGuideUpdater.getLatest().withTip(R.string.fingerprint_recognition_failed)
+                    .withToast(R.string.fingerprint_recognition_failed));
         }
 
         @Override
         public void onAuthenticateError(int errMsgId) {
-            resetGuideViewState();
-            toastTipMsg(R.string.fingerprint_recognition_error);
+            updateGuide(resetGuideViewState().withToast(R.string.fingerprint_recognition_error));
         }
 
         @Override
@@ -146,8 +251,32 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
         }
     };
 
+    private AuthenticationChain.Listener mAuthChainListener = new AuthenticationChain.Listener() {
+        @Override
+        public void onStepStarted(int step, int reason) {
+        }
+
+        @Override
+        public void onAuthenticated(int step) {
+            if (step == AuthenticationChain.STEP_DEVICE_CREDENTIAL) {
+                toastTipMsg(R.string.sys_pwd_recognition_success);
+            }
+        }
+
+        @Override
+        public void onFailed(int lastErrorCode) {
+            if (lastErrorCode == AuthenticationChain.ERROR_NOT_CONFIRMED) {
+                toastTipMsg(R.string.sys_pwd_recognition_failed);
+            }
+        }
+    };
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (mAuthChain != null && mAuthChain.onActivityResult(requestCode, resultCode)) {
+            // 降级到锁屏密码的结果由mAuthChainListener处理
+            return;
+        }
         if (requestCode == KeyguardLockScreenManager.REQUEST_CODE_CONFIRM_DEVICE_CREDENTIALS) {
             // Challenge completed, proceed with using cipher
             if (resultCode == RESULT_OK) {
@@ -159,6 +288,13 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
     }
 
     private void toastTipMsg(int messageId) {
+        updateGuide(mGuideUpdater.getLatest().withToast(messageId));
+    }
+
+    /**
+     * 由mGuideRenderer在绘制时调用，每帧最多一次
+     */
+    private void showToast(int messageId) {
         if (mToast == null) {
             mToast = Toast.makeText(this, messageId, Toast.LENGTH_SHORT);
         }
@@ -187,7 +323,12 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
 
     @Override
     protected void onDestroy() {
+        if (mAuthChain != null) {
+            mAuthChain.cancel();
+            mAuthChain = null;
+        }
         if (mFingerprintCore != null) {
+            mFingerprintCore.getReadyFuture().removeListener(mReadyListener);
             mFingerprintCore.onDestroy();
             mFingerprintCore = null;
         }
@@ -195,6 +336,12 @@ public class FingerprintMainActivity extends Activity implements View.OnClickLis
             mKeyguardLockScreenManager.onDestroy();
             mKeyguardLockScreenManager = null;
         }
+        DeviceCapabilities.unregisterInvalidationReceiver(this);
+        if (mGuideUpdater != null) {
+            FPLog.log(FPLog.DEBUG, "guide updates: {}", mGuideUpdater);
+            mGuideUpdater.release();
+            mGuideUpdater = null;
+        }
         mResultListener = null;
         mShowToastRunnable = null;
         mToast = null;
@@ -0,0 +1,73 @@
+package fingerprint.com.fingerprintrecognition;
+
+/**
+ * 指纹引导区域的界面状态：提示文字、引导图和要弹出的Toast，不可变，每次修改产生新的对象。
+ * Toast用序号区分，同一条提示再次弹出时序号加1
+ */
+public final class GuideViewState {
+
+    private final int mTipResId;
+    private final int mImageResId;
+    private final int mToastResId;
+    private final int mToastSerial;
+
+    public GuideViewState(int tipResId, int imageResId) {
+        this(tipResId, imageResId, 0, 0);
+    }
+
+    private GuideViewState(int tipResId, int imageResId, int toastResId, int toastSerial) {
+        mTipResId = tipResId;
+        mImageResId = imageResId;
+        mToastResId = toastResId;
+        mToastSerial = toastSerial;
+    }
+
+    public GuideViewState withTip(int tipResId) {
+        return new GuideViewState(tipResId, mImageResId, mToastResId, mToastSerial);
+    }
+
+    public GuideViewState withImage(int imageResId) {
+        return new GuideViewState(mTipResId, imageResId, mToastResId, mToastSerial);
+    }
+
+    /**
+     * 弹出一条Toast，即使和当前显示的相同
+     */
+    public GuideViewState withToast(int toastResId) {
+        return new GuideViewState(mTipResId, mImageResId, toastResId, mToastSerial + 1);
+    }
+
+    public int getTipResId() {
+        return mTipResId;
+    }
+
+    public int getImageResId() {
+        return mImageResId;
+    }
+
+    public int getToastResId() {
+        return mToastResId;
+    }
+
+    /**
+     * 和previous相比是否有新的Toast要弹出
+     */
+    public boolean hasNewToast(GuideViewState previous) {
+        return mToastResId != 0 && mToastSerial != previous.mToastSerial;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GuideViewState)) {
+            return false;
+        }
+        GuideViewState other = (GuideViewState) o;
+        return mTipResId == other.mTipResId && mImageResId == other.mImageResId
+                && mToastResId == other.mToastResId && mToastSerial == other.mToastSerial;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mTipResId * 31 + mImageResId) * 31 + mToastResId) * 31 + mToastSerial;
+    }
+}
@@ -40,7 +40,7 @@ public class KeyguardLockScreenManager {
         try {
             keyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
         } catch (Throwable throwable) {
-            FPLog.log("getKeyguardManager exception");
+            FPLog.log(FPLog.WARN, "getKeyguardManager exception");
         }
         return keyguardManager;
     }
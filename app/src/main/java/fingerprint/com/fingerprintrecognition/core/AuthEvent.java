@@ -0,0 +1,39 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 识别过程中的非终止事件：指纹不匹配或者帮助信息（手指移动太快、传感器脏等），
+ * 通过{@link FingerprintCore#getAuthEvents()}订阅
+ */
+public class AuthEvent {
+
+    public static final int TYPE_FAILED = 0;
+    public static final int TYPE_HELP = 1;
+
+    private final int mType;
+    private final int mCode;
+    private final CharSequence mMessage;
+
+    public AuthEvent(int type, int code, CharSequence message) {
+        mType = type;
+        mCode = code;
+        mMessage = message;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /** 帮助码，识别失败时为0 */
+    public int getCode() {
+        return mCode;
+    }
+
+    public CharSequence getMessage() {
+        return mMessage;
+    }
+
+    @Override
+    public String toString() {
+        return (mType == TYPE_HELP ? "help " : "failed ") + mCode + ": " + mMessage;
+    }
+}
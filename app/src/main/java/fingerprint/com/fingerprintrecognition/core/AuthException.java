@@ -0,0 +1,31 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 识别以错误结束，错误码与FingerprintManager.FINGERPRINT_ERROR_*一致
+ */
+public class AuthException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mErrorCode;
+
+    public AuthException(int errorCode, CharSequence message) {
+        this(errorCode, message, null);
+    }
+
+    public AuthException(int errorCode, CharSequence message, Throwable cause) {
+        super(String.valueOf(message), cause);
+        mErrorCode = errorCode;
+    }
+
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /**
+     * 是否因为多次失败被锁定，建议改用其他认证方式
+     */
+    public boolean isLockout() {
+        return mErrorCode == FingerprintSensor.ERROR_LOCKOUT;
+    }
+}
@@ -0,0 +1,197 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 指纹识别相关的统计数据：按错误码/帮助码计数，以及秘钥创建、Cipher初始化、识别耗时、重试耗时的直方图。
+ * 记录数据时无锁、不分配内存，可以直接在识别回调里调用；通过{@link #snapshot()}导出到自己的统计系统
+ */
+public class AuthMetrics {
+
+    /** 错误码、帮助码计数的槽位数，超出范围（例如厂商自定义码）的都记在最后一个槽位 */
+    public static final int CODE_SLOTS = 32;
+    public static final int OTHER_CODE_SLOT = CODE_SLOTS - 1;
+
+    public static final int EVENT_START = 0;
+    public static final int EVENT_SUCCESS = 1;
+    public static final int EVENT_FAILED = 2;
+    public static final int EVENT_HELP = 3;
+    public static final int EVENT_ERROR = 4;
+    public static final int EVENT_CANCEL = 5;
+    public static final int EVENT_RETRY = 6;
+    /** 识别会话被{@link SensorArbiter}中优先级更高的请求抢占 */
+    public static final int EVENT_PREEMPT = 7;
+    /** 在{@link SensorArbiter}中排队超过最长等待时间 */
+    public static final int EVENT_QUEUE_TIMEOUT = 8;
+    /** 页面不可见，暂停识别并释放传感器 */
+    public static final int EVENT_PAUSE = 9;
+    /** 页面重新可见，恢复暂停前的识别 */
+    public static final int EVENT_RESUME = 10;
+    /** 传感器长时间没有事件，自动释放 */
+    public static final int EVENT_IDLE_TIMEOUT = 11;
+    /** {@link AuthenticationChain}中一步失败或者不可用，降级到下一步 */
+    public static final int EVENT_FALLBACK = 12;
+    private static final int EVENT_COUNT = 13;
+
+    private static final AuthMetrics sInstance = new AuthMetrics();
+
+    private final AtomicLongArray mEvents = new AtomicLongArray(EVENT_COUNT);
+    private final AtomicLongArray mErrorCodes = new AtomicLongArray(CODE_SLOTS);
+    private final AtomicLongArray mHelpCodes = new AtomicLongArray(CODE_SLOTS);
+
+    /** 生成秘钥耗时 */
+    public final LatencyHistogram keyCreation = new LatencyHistogram("keyCreation");
+    /** Cipher初始化耗时 */
+    public final LatencyHistogram cipherInit = new LatencyHistogram("cipherInit");
+    /** 调用authenticate到收到识别结果的耗时 */
+    public final LatencyHistogram authenticateToResult = new LatencyHistogram("authenticateToResult");
+    /** 带重试的完整识别流程耗时，从第一次启动到最终结果 */
+    public final LatencyHistogram retryChain = new LatencyHistogram("retryChain");
+    /** 在{@link SensorArbiter}中等待传感器的耗时 */
+    public final LatencyHistogram sensorQueueWait = new LatencyHistogram("sensorQueueWait");
+    /** 每个会话传感器保持监听的时长，从调用authenticate到成功、错误、取消、暂停或者空闲释放 */
+    public final LatencyHistogram sensorArmed = new LatencyHistogram("sensorArmed");
+    /** 每次启动识别（包括重试和恢复）从准备加密对象到传感器开始监听的耗时 */
+    public final LatencyHistogram rearm = new LatencyHistogram("rearm");
+    /** {@link AuthenticationChain}从开始到认证成功的耗时，按最终通过的方式分别记录 */
+    public final LatencyHistogram timeToAuthFingerprint = new LatencyHistogram("timeToAuthFingerprint");
+    public final LatencyHistogram timeToAuthDeviceCredential = new LatencyHistogram("timeToAuthDeviceCredential");
+    public final LatencyHistogram timeToAuthCustom = new LatencyHistogram("timeToAuthCustom");
+    /** 降级时从上一步失败到下一步启动的耗时，下一步提前准备好时接近0 */
+    public final LatencyHistogram fallbackSetup = new LatencyHistogram("fallbackSetup");
+
+    public static AuthMetrics get() {
+        return sInstance;
+    }
+
+    public void recordEvent(int event) {
+        mEvents.incrementAndGet(event);
+    }
+
+    public void recordError(int errMsgId) {
+        mEvents.incrementAndGet(EVENT_ERROR);
+        mErrorCodes.incrementAndGet(slotOf(errMsgId));
+    }
+
+    public void recordHelp(int helpMsgId) {
+        mEvents.incrementAndGet(EVENT_HELP);
+        mHelpCodes.incrementAndGet(slotOf(helpMsgId));
+    }
+
+    private static int slotOf(int code) {
+        return code >= 0 && code < OTHER_CODE_SLOT ? code : OTHER_CODE_SLOT;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(copy(mEvents), copy(mErrorCodes), copy(mHelpCodes), new LatencyHistogram.Snapshot[]{
+                keyCreation.snapshot(), cipherInit.snapshot(), authenticateToResult.snapshot(), retryChain.snapshot(),
+                sensorQueueWait.snapshot(), sensorArmed.snapshot(),
+                rearm.snapshot(), timeToAuthFingerprint.snapshot(), timeToAuthDeviceCredential.snapshot(),
+                timeToAuthCustom.snapshot(), fallbackSetup.snapshot()
+        });
+    }
+
+    public void reset() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mEvents.set(i, 0);
+        }
+        for (int i = 0; i < CODE_SLOTS; i++) {
+            mErrorCodes.set(i, 0);
+            mHelpCodes.set(i, 0);
+        }
+        keyCreation.reset();
+        cipherInit.reset();
+        authenticateToResult.reset();
+        retryChain.reset();
+        sensorQueueWait.reset();
+        sensorArmed.reset();
+        rearm.reset();
+        timeToAuthFingerprint.reset();
+        timeToAuthDeviceCredential.reset();
+        timeToAuthCustom.reset();
+        fallbackSetup.reset();
+    }
+
+    private static long[] copy(AtomicLongArray array) {
+        long[] result = new long[array.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = array.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * 统计数据某一时刻的不可变副本
+     */
+    public static class Snapshot {
+        private final long[] mEvents;
+        private final long[] mErrorCodes;
+        private final long[] mHelpCodes;
+        private final LatencyHistogram.Snapshot[] mHistograms;
+
+        Snapshot(long[] events, long[] errorCodes, long[] helpCodes, LatencyHistogram.Snapshot[] histograms) {
+            mEvents = events;
+            mErrorCodes = errorCodes;
+            mHelpCodes = helpCodes;
+            mHistograms = histograms;
+        }
+
+        public long getEventCount(int event) {
+            return mEvents[event];
+        }
+
+        /**
+         * @param slot 错误码，厂商自定义等超出范围的错误码使用{@link #OTHER_CODE_SLOT}
+         */
+        public long getErrorCount(int slot) {
+            return mErrorCodes[slot];
+        }
+
+        public long getHelpCount(int slot) {
+            return mHelpCodes[slot];
+        }
+
+        public LatencyHistogram.Snapshot[] getHistograms() {
+            return mHistograms.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("AuthMetrics{start=").append(mEvents[EVENT_START])
+                    .append(", success=").append(mEvents[EVENT_SUCCESS])
+                    .append(", failed=").append(mEvents[EVENT_FAILED])
+                    .append(", help=").append(mEvents[EVENT_HELP])
+                    .append(", error=").append(mEvents[EVENT_ERROR])
+                    .append(", cancel=").append(mEvents[EVENT_CANCEL])
+                    .append(", retry=").append(mEvents[EVENT_RETRY])
+                    .append(", preempt=").append(mEvents[EVENT_PREEMPT])
+                    .append(", queueTimeout=").append(mEvents[EVENT_QUEUE_TIMEOUT])
+                    .append(", pause=").append(mEvents[EVENT_PAUSE])
+                    .append(", resume=").append(mEvents[EVENT_RESUME])
+                    .append(", idleTimeout=").append(mEvents[EVENT_IDLE_TIMEOUT])
+                    .append(", fallback=").append(mEvents[EVENT_FALLBACK]);
+            appendCodes(builder, ", errorCodes=", mErrorCodes);
+            appendCodes(builder, ", helpCodes=", mHelpCodes);
+            for (LatencyHistogram.Snapshot histogram : mHistograms) {
+                builder.append(", ").append(histogram);
+            }
+            return builder.append('}').toString();
+        }
+
+        private static void appendCodes(StringBuilder builder, String label, long[] codes) {
+            builder.append(label).append('[');
+            boolean first = true;
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] == 0) {
+                    continue;
+                }
+                if (!first) {
+                    builder.append(", ");
+                }
+                first = false;
+                builder.append(i == OTHER_CODE_SLOT ? "other" : String.valueOf(i)).append('=').append(codes[i]);
+            }
+            builder.append(']');
+        }
+    }
+}
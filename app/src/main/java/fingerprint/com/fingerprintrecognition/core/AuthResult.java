@@ -0,0 +1,40 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import javax.crypto.Cipher;
+
+/**
+ * 一次识别成功的结果
+ */
+public class AuthResult {
+
+    private final Object mCrypto;
+    private final int mFailedTimes;
+    private final long mElapsedMs;
+
+    public AuthResult(Object crypto, int failedTimes, long elapsedMs) {
+        mCrypto = crypto;
+        mFailedTimes = failedTimes;
+        mElapsedMs = elapsedMs;
+    }
+
+    /**
+     * 识别通过、已经授权的加密对象（Cipher、Signature或Mac），启动时没有绑定则为null
+     */
+    public Object getCrypto() {
+        return mCrypto;
+    }
+
+    public Cipher getCipher() {
+        return mCrypto instanceof Cipher ? (Cipher) mCrypto : null;
+    }
+
+    /** 成功之前失败的次数 */
+    public int getFailedTimes() {
+        return mFailedTimes;
+    }
+
+    /** 从调用到成功的耗时 */
+    public long getElapsedMs() {
+        return mElapsedMs;
+    }
+}
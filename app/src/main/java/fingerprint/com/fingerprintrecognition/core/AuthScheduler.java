@@ -0,0 +1,12 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 延迟任务调度，真实设备上基于Handler（{@link HandlerAuthScheduler}），
+ * JVM上使用虚拟时钟（benchmark模块中的VirtualScheduler）
+ */
+public interface AuthScheduler {
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    void remove(Runnable runnable);
+}
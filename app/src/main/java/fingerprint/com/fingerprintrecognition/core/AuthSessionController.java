@@ -0,0 +1,540 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个识别流程的会话控制：状态机、失败重试、锁定冷却和统计都在这里，
+ * 只依赖{@link FingerprintSensor}和{@link AuthScheduler}，不依赖Android，可以在JVM上用假传感器驱动。
+ * 启动、取消可以在任意线程调用，传感器回调在调度器线程；取消之后才到达的回调会被丢弃，
+ * 取消时已经被接受、正在通知的回调仍可能在取消返回之后到达Listener。Listener在锁外调用，不会阻塞取消
+ */
+public class AuthSessionController {
+
+    public interface Listener {
+        /** 调用authenticate的结果，失败时exception不为null */
+        void onStartResult(boolean isSuccess, Throwable exception);
+
+        void onSucceeded(Object crypto);
+
+        /**
+         * 识别失败或者收到帮助信息
+         * @param msgId 帮助码，识别失败时为0
+         */
+        void onFailed(int msgId, CharSequence message);
+
+        void onError(int errMsgId, CharSequence errString);
+    }
+
+    /**
+     * 每次启动识别时提供需要绑定的加密对象
+     */
+    public interface CryptoProvider {
+        Object getCrypto();
+    }
+
+    private final AuthStateMachine mState = new AuthStateMachine();
+    private final AuthScheduler mScheduler;
+    private final AuthMetrics mMetrics;
+    private final Listener mListener;
+    private volatile FingerprintSensor mSensor;
+    private volatile CryptoProvider mCryptoProvider;
+    private volatile RetryPolicy mRetryPolicy = new DefaultRetryPolicy();
+
+    /** 当前（或者最近一次）启动的会话，和进入PREPARING、CANCELLING的状态转换一起在mAttemptLock中修改 */
+    private final Object mAttemptLock = new Object();
+    private volatile Attempt mAttempt;
+
+    private volatile int mFailedTimes = 0;
+    private volatile int mHelpTimes = 0;
+    /** 本次识别流程中重新启动的次数 */
+    private volatile int mRetryTimes = 0;
+    private volatile long mAttemptStartNanos = 0;
+    private volatile long mChainStartNanos = 0;
+
+    /** 传感器连续这么久没有任何事件就释放，0表示不限制 */
+    private volatile long mIdleTimeoutMs = 0;
+    /** 页面不可见，暂停期间不启动识别 */
+    private volatile boolean mPaused;
+    /** 暂停时识别流程还没有结束（正在识别或者等待重试），恢复时重新启动 */
+    private volatile boolean mResumePending;
+    private volatile long mPausedNanos;
+    /** 最近一次启动识别使用的加密对象 */
+    private volatile Object mLastCrypto;
+    /** 暂停前还没有通过认证的加密对象，恢复时直接使用，不再经过CryptoProvider */
+    private final AtomicReference<Object> mReusableCrypto = new AtomicReference<>();
+    /** 传感器开始监听的时间，0表示没有在监听 */
+    private final AtomicLong mArmedNanos = new AtomicLong();
+    private volatile AuthTraceRecorder mTraceRecorder;
+
+    public AuthSessionController(FingerprintSensor sensor, AuthScheduler scheduler, AuthMetrics metrics,
+                                 Listener listener) {
+        mSensor = sensor;
+        mScheduler = scheduler;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    public void setSensor(FingerprintSensor sensor) {
+        mSensor = sensor;
+    }
+
+    public FingerprintSensor getSensor() {
+        return mSensor;
+    }
+
+    public void setCryptoProvider(CryptoProvider cryptoProvider) {
+        mCryptoProvider = cryptoProvider;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy == null ? new DefaultRetryPolicy() : retryPolicy;
+    }
+
+    /**
+     * 传感器连续idleTimeoutMs没有任何事件（用户没有触摸）时释放传感器，
+     * 以{@link FingerprintSensor#ERROR_TIMEOUT}结束识别流程；0表示不限制
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * 开启事件录制，传null关闭；录制的文件可以用{@link AuthTraceReplayer}回放
+     */
+    public void setTraceRecorder(AuthTraceRecorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
+    private void trace(int type, int code) {
+        AuthTraceRecorder recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.record(type, code, mState.get());
+        }
+    }
+
+    public AuthStateMachine getStateMachine() {
+        return mState;
+    }
+
+    public boolean isAuthenticating() {
+        int state = mState.get();
+        return state == AuthStateMachine.AUTHENTICATING || state == AuthStateMachine.PREPARING;
+    }
+
+    /**
+     * 启动识别
+     * @return 当前状态不允许启动（正在识别、被锁定等）或者启动过程中被取消时返回false
+     */
+    public boolean start() {
+        trace(AuthTrace.TYPE_START, 0);
+        return startAttempt();
+    }
+
+    private boolean startAttempt() {
+        if (mPaused) {
+            // 页面不可见，等resume时再启动
+            mResumePending = true;
+            return false;
+        }
+        Attempt attempt;
+        synchronized (mAttemptLock) {
+            if (!mState.transition(AuthStateMachine.IDLE, AuthStateMachine.PREPARING)) {
+                return false;
+            }
+            attempt = new Attempt();
+            mAttempt = attempt;
+        }
+        long prepareNanos = System.nanoTime();
+        Object crypto = mReusableCrypto.getAndSet(null);
+        if (crypto == null) {
+            CryptoProvider cryptoProvider = mCryptoProvider;
+            crypto = cryptoProvider == null ? null : cryptoProvider.getCrypto();
+        }
+        mLastCrypto = crypto;
+        FingerprintSensor.Session session = null;
+        Throwable startError = null;
+        // 在会话的锁内调用authenticate：取消方等拿到会话后再取消，其他线程的回调等authenticate返回后再处理
+        synchronized (attempt) {
+            if (attempt.mEnded || !mState.transition(AuthStateMachine.PREPARING, AuthStateMachine.AUTHENTICATING)) {
+                // 准备过程中被取消了，不再调用authenticate
+                return false;
+            }
+            mMetrics.recordEvent(AuthMetrics.EVENT_START);
+            mAttemptStartNanos = System.nanoTime();
+            if (mChainStartNanos == 0) {
+                // 新的识别流程，重新计算失败次数
+                mChainStartNanos = mAttemptStartNanos;
+                mFailedTimes = 0;
+                mHelpTimes = 0;
+            }
+            FingerprintSensor sensor = mSensor;
+            // 在authenticate之前记录，回调可能在authenticate返回之前到达
+            mArmedNanos.set(mAttemptStartNanos);
+            trace(AuthTrace.TYPE_ARMED, 0);
+            try {
+                if (sensor == null) {
+                    throw new IllegalStateException("no fingerprint sensor");
+                }
+                session = sensor.authenticate(crypto, attempt);
+            } catch (Throwable throwable) {
+                startError = throwable;
+                attempt.mEnded = true;
+                trace(AuthTrace.TYPE_START_FAILED, 0);
+                mArmedNanos.set(0);
+                mState.transition(AuthStateMachine.AUTHENTICATING, AuthStateMachine.IDLE);
+            }
+            if (session != null) {
+                if (attempt.mEnded) {
+                    // 同一线程上的回调在authenticate返回之前就结束或者取消了会话
+                    session.cancel();
+                    return false;
+                }
+                attempt.mSession = session;
+            }
+        }
+        if (startError != null) {
+            mListener.onStartResult(false, startError);
+            return false;
+        }
+        mMetrics.rearm.recordSince(prepareNanos);
+        scheduleIdleTimeout();
+        mListener.onStartResult(true, null);
+        return true;
+    }
+
+    /**
+     * 用户主动取消，结束整个识别流程，包括还没执行的重试
+     */
+    public void cancel() {
+        trace(AuthTrace.TYPE_CANCEL, 0);
+        mScheduler.remove(mFailedRetryRunnable);
+        mChainStartNanos = 0;
+        mRetryTimes = 0;
+        mResumePending = false;
+        mReusableCrypto.set(null);
+        cancelSession(AuthMetrics.EVENT_CANCEL);
+        // 被取消的会话的失败回调可能在取消前已经安排了重试
+        mScheduler.remove(mFailedRetryRunnable);
+    }
+
+    /**
+     * @param event 记录的统计事件
+     * @return 是否取消了正在准备或者正在识别的会话
+     */
+    private boolean cancelSession(int event) {
+        return cancelSession(event, null);
+    }
+
+    /**
+     * @param expected 只取消这个会话，null表示取消当前的会话
+     */
+    private boolean cancelSession(int event, Attempt expected) {
+        Attempt attempt;
+        synchronized (mAttemptLock) {
+            if (expected != null && mAttempt != expected) {
+                return false;
+            }
+            if (!mState.transition(AuthStateMachine.AUTHENTICATING, AuthStateMachine.CANCELLING)
+                    && !mState.transition(AuthStateMachine.PREPARING, AuthStateMachine.CANCELLING)) {
+                return false;
+            }
+            attempt = mAttempt;
+            mAttempt = null;
+        }
+        mMetrics.recordEvent(event);
+        disarm();
+        if (attempt != null) {
+            // 会等正在执行的回调做完状态检查，回到IDLE之前会话一定已经取消
+            attempt.cancel();
+        }
+        mState.transition(AuthStateMachine.CANCELLING, AuthStateMachine.IDLE);
+        return true;
+    }
+
+    /**
+     * 页面不可见（onStop）时调用：释放传感器，暂停还没执行的重试；保留失败次数和还没有通过认证的加密对象，
+     * 暂停期间的start()会推迟到{@link #resume()}
+     */
+    public void pause() {
+        if (mPaused) {
+            return;
+        }
+        trace(AuthTrace.TYPE_PAUSE, 0);
+        mPausedNanos = System.nanoTime();
+        mPaused = true;
+        boolean inProgress = isAuthenticating() || mChainStartNanos != 0;
+        mScheduler.remove(mFailedRetryRunnable);
+        cancelSession(AuthMetrics.EVENT_PAUSE);
+        if (inProgress) {
+            // 没有识别成功，加密对象还没有被使用过
+            mReusableCrypto.set(mLastCrypto);
+            mResumePending = true;
+        }
+    }
+
+    /**
+     * 页面重新可见（onStart）时调用：暂停前识别流程还没有结束的话立即重新启动，
+     * 直接使用暂停前准备好的加密对象
+     * @return 是否重新启动了识别
+     */
+    public boolean resume() {
+        if (!mPaused) {
+            return false;
+        }
+        trace(AuthTrace.TYPE_RESUME, 0);
+        if (mChainStartNanos != 0) {
+            // 重试流程的耗时不包括不可见的时间
+            mChainStartNanos += System.nanoTime() - mPausedNanos;
+        }
+        mPaused = false;
+        if (!mResumePending) {
+            return false;
+        }
+        mResumePending = false;
+        mMetrics.recordEvent(AuthMetrics.EVENT_RESUME);
+        return startAttempt();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * 释放：取消识别并移除所有延迟任务
+     */
+    public void destroy() {
+        cancel();
+        mScheduler.remove(mLockoutCooldownRunnable);
+        mLastCrypto = null;
+    }
+
+    /**
+     * 一次authenticate调用：会话和它的回调。会话只能结束一次（成功、错误或者取消），
+     * 回调的状态检查和取消在这个对象的锁内互斥执行，结束之后迟到的回调直接丢弃；
+     * 通知Listener在锁外，不会让取消等待Listener
+     */
+    private final class Attempt implements FingerprintSensor.Callback {
+        /** 以下字段由this保护 */
+        private FingerprintSensor.Session mSession;
+        private boolean mEnded;
+
+        /**
+         * 取消会话，会等正在执行的回调做完状态检查（不等待Listener）
+         */
+        synchronized void cancel() {
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+            FingerprintSensor.Session session = mSession;
+            mSession = null;
+            if (session != null) {
+                session.cancel();
+            }
+        }
+
+        /**
+         * 成功或者错误结束会话，调用方持有this
+         * @return 会话已经结束（被取消）时返回false
+         */
+        private boolean end() {
+            if (mEnded) {
+                return false;
+            }
+            mEnded = true;
+            mSession = null;
+            return true;
+        }
+
+        /**
+         * 会话是否还是当前的会话：已经被取消、或者之后又启动了新的会话时返回false
+         */
+        private boolean isCurrent() {
+            return mAttempt == this;
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            boolean lockedOut;
+            synchronized (this) {
+                if (!end()) {
+                    return;
+                }
+                trace(AuthTrace.TYPE_ERROR, errMsgId);
+                lockedOut = errMsgId == FingerprintSensor.ERROR_LOCKOUT
+                        && mState.transition(AuthStateMachine.AUTHENTICATING, AuthStateMachine.LOCKED_OUT);
+                if (!lockedOut && !mState.transition(AuthStateMachine.AUTHENTICATING, AuthStateMachine.IDLE)) {
+                    // 取消方已经先改变了状态，由取消结束这次识别
+                    return;
+                }
+            }
+            if (lockedOut) {
+                scheduleLockoutCooldown();
+            }
+            // 多次指纹密码验证错误后，进入此方法；并且，不能短时间内调用指纹验证,一般间隔从几秒到几十秒不等
+            // 这种情况不建议重试，建议提示用户用其他的方式解锁或者认证
+            mMetrics.recordError(errMsgId);
+            mMetrics.authenticateToResult.recordSince(mAttemptStartNanos);
+            finishRetryChain();
+            disarm();
+            mListener.onError(errMsgId, errString);
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                trace(AuthTrace.TYPE_HELP, helpMsgId);
+            }
+            // 建议根据参数helpString返回值，并且仅针对特定的机型做处理，并不能保证所有厂商返回的状态一致
+            mMetrics.recordHelp(helpMsgId);
+            mListener.onFailed(helpMsgId, helpString);
+            mHelpTimes++;
+            onFailedRetry(this, mRetryPolicy.onHelp(helpMsgId, mHelpTimes));
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                trace(AuthTrace.TYPE_FAILED, 0);
+            }
+            mMetrics.recordEvent(AuthMetrics.EVENT_FAILED);
+            mMetrics.authenticateToResult.recordSince(mAttemptStartNanos);
+            mListener.onFailed(0, "onAuthenticationFailed");
+            mFailedTimes++;
+            onFailedRetry(this, mRetryPolicy.onFailed(mFailedTimes));
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(Object crypto) {
+            synchronized (this) {
+                if (!end()) {
+                    return;
+                }
+                trace(AuthTrace.TYPE_SUCCEEDED, 0);
+                if (!mState.transition(AuthStateMachine.AUTHENTICATING, AuthStateMachine.IDLE)) {
+                    // 和取消同时发生，取消方已经先改变了状态，不再通知成功
+                    return;
+                }
+            }
+            disarm();
+            mLastCrypto = null;
+            mMetrics.recordEvent(AuthMetrics.EVENT_SUCCESS);
+            mMetrics.authenticateToResult.recordSince(mAttemptStartNanos);
+            finishRetryChain();
+            mFailedTimes = 0;
+            mHelpTimes = 0;
+            mListener.onSucceeded(crypto);
+        }
+    }
+
+    /**
+     * 失败或者帮助回调通知Listener之后调用，这时会话可能已经被取消或者换成了新的会话，只处理仍是当前会话的
+     */
+    private void onFailedRetry(Attempt attempt, long retryDelay) {
+        if (!attempt.isCurrent()) {
+            return;
+        }
+        if (retryDelay == RetryPolicy.GIVE_UP) { // 重试次数由重试策略决定，验证成功时清0
+            finishRetryChain();
+            scheduleIdleTimeout();
+            return;
+        }
+        if (retryDelay == RetryPolicy.CONTINUE) {
+            // 传感器仍在监听，不需要重新启动
+            scheduleIdleTimeout();
+            return;
+        }
+        if (!cancelSession(AuthMetrics.EVENT_CANCEL, attempt)) {
+            // 通知Listener期间被取消了，不再重试
+            return;
+        }
+        mScheduler.remove(mFailedRetryRunnable);
+        mScheduler.postDelayed(mFailedRetryRunnable, retryDelay);
+    }
+
+    /**
+     * 传感器在监听时（重新）开始计算空闲时间
+     */
+    private void scheduleIdleTimeout() {
+        long idleTimeoutMs = mIdleTimeoutMs;
+        mScheduler.remove(mIdleTimeoutRunnable);
+        if (idleTimeoutMs > 0 && mState.is(AuthStateMachine.AUTHENTICATING)) {
+            mScheduler.postDelayed(mIdleTimeoutRunnable, idleTimeoutMs);
+        }
+    }
+
+    /**
+     * 会话结束（成功、错误、取消、暂停），记录传感器这次监听了多久
+     */
+    private void disarm() {
+        mScheduler.remove(mIdleTimeoutRunnable);
+        long armedNanos = mArmedNanos.getAndSet(0);
+        if (armedNanos != 0) {
+            mMetrics.sensorArmed.recordSince(armedNanos);
+        }
+    }
+
+    private final Runnable mIdleTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduler.remove(mFailedRetryRunnable);
+            finishRetryChain();
+            mReusableCrypto.set(null);
+            if (cancelSession(AuthMetrics.EVENT_IDLE_TIMEOUT)) {
+                mListener.onError(FingerprintSensor.ERROR_TIMEOUT, "fingerprint sensor idle timeout");
+            }
+        }
+    };
+
+    private final Runnable mFailedRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRetryTimes++;
+            mMetrics.recordEvent(AuthMetrics.EVENT_RETRY);
+            startAttempt();
+        }
+    };
+
+    private void scheduleLockoutCooldown() {
+        // 锁定期间不再重试，避免对被锁定的传感器反复调用
+        mScheduler.remove(mFailedRetryRunnable);
+        mScheduler.remove(mLockoutCooldownRunnable);
+        mScheduler.postDelayed(mLockoutCooldownRunnable, mRetryPolicy.getLockoutCooldownMs());
+    }
+
+    private final Runnable mLockoutCooldownRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mState.transition(AuthStateMachine.LOCKED_OUT, AuthStateMachine.IDLE)) {
+                mFailedTimes = 0;
+                mHelpTimes = 0;
+            }
+        }
+    };
+
+    /**
+     * 一次识别流程结束（成功、错误或者放弃重试），有过重试的话记录整个流程的耗时
+     */
+    private void finishRetryChain() {
+        if (mRetryTimes > 0 && mChainStartNanos != 0) {
+            mMetrics.retryChain.recordSince(mChainStartNanos);
+        }
+        mRetryTimes = 0;
+        mChainStartNanos = 0;
+    }
+
+    public int getFailedTimes() {
+        return mFailedTimes;
+    }
+
+    public int getHelpTimes() {
+        return mHelpTimes;
+    }
+}
@@ -0,0 +1,96 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 指纹认证状态机，所有状态切换都通过CAS完成，可以在主线程、回调线程和重试任务之间安全地共享，
+ * 不合法的状态切换直接返回false，不加锁
+ */
+public class AuthStateMachine {
+
+    /** 空闲，可以开始新的认证 */
+    public static final int IDLE = 0;
+    /** 正在准备CancellationSignal、CryptoObject，还没有调用authenticate */
+    public static final int PREPARING = 1;
+    /** 已经调用authenticate，传感器在监听 */
+    public static final int AUTHENTICATING = 2;
+    /** 正在取消 */
+    public static final int CANCELLING = 3;
+    /** 错误次数过多被系统锁定，冷却结束之前不再调用authenticate */
+    public static final int LOCKED_OUT = 4;
+
+    private static final int STATE_COUNT = 5;
+
+    /** 每个状态允许切换到的目标状态，按位表示 */
+    private static final int[] LEGAL_TRANSITIONS = new int[STATE_COUNT];
+
+    static {
+        allow(IDLE, PREPARING);
+        allow(IDLE, LOCKED_OUT);
+        allow(PREPARING, AUTHENTICATING);
+        allow(PREPARING, CANCELLING);
+        allow(PREPARING, IDLE);
+        allow(AUTHENTICATING, IDLE);
+        allow(AUTHENTICATING, CANCELLING);
+        allow(AUTHENTICATING, LOCKED_OUT);
+        allow(CANCELLING, IDLE);
+        allow(LOCKED_OUT, IDLE);
+    }
+
+    private static void allow(int from, int to) {
+        LEGAL_TRANSITIONS[from] |= 1 << to;
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    public static boolean isLegal(int from, int to) {
+        return from >= 0 && from < STATE_COUNT && to >= 0 && to < STATE_COUNT
+                && (LEGAL_TRANSITIONS[from] & (1 << to)) != 0;
+    }
+
+    /**
+     * 当前状态为from时切换到to
+     * @return 切换成功返回true；切换不合法或者当前状态已经不是from时返回false
+     */
+    public boolean transition(int from, int to) {
+        if (isLegal(from, to) && mState.compareAndSet(from, to)) {
+            return true;
+        }
+        mRejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    public boolean is(int state) {
+        return mState.get() == state;
+    }
+
+    /**
+     * 被拒绝的状态切换次数
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public static String nameOf(int state) {
+        switch (state) {
+            case IDLE:
+                return "IDLE";
+            case PREPARING:
+                return "PREPARING";
+            case AUTHENTICATING:
+                return "AUTHENTICATING";
+            case CANCELLING:
+                return "CANCELLING";
+            case LOCKED_OUT:
+                return "LOCKED_OUT";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
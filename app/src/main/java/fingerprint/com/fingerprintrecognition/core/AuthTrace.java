@@ -0,0 +1,189 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link AuthTraceRecorder}录制的识别事件序列，整个文件读到内存，用于分析和{@link AuthTraceReplayer}回放。
+ *
+ * 文件格式（大端）：
+ * <pre>
+ * 文件头 | magic(4) | version(2) | recordSize(2) | startMillis(8) |
+ * 记录   | timeNanos(8) | type(1) | state(1) | reserved(2) | code(4) |
+ * </pre>
+ * timeNanos是相对录制开始的时间，state是记录时{@link AuthStateMachine}的状态。
+ * 文件按最大记录数预先分配，没有写到的部分全是0，读取时遇到type为0的记录就结束
+ */
+public final class AuthTrace {
+
+    static final int MAGIC = 0x46505431; // "FPT1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+
+    /** 调用方启动识别（{@link AuthSessionController#start()}），不包括重试 */
+    public static final int TYPE_START = 1;
+    /** 调用传感器的authenticate，之后到下一个ARMED之间的回调属于这一次会话 */
+    public static final int TYPE_ARMED = 2;
+    /** authenticate抛出异常 */
+    public static final int TYPE_START_FAILED = 3;
+    public static final int TYPE_SUCCEEDED = 4;
+    public static final int TYPE_FAILED = 5;
+    /** code为帮助码 */
+    public static final int TYPE_HELP = 6;
+    /** code为错误码 */
+    public static final int TYPE_ERROR = 7;
+    /** 调用方取消 */
+    public static final int TYPE_CANCEL = 8;
+    public static final int TYPE_PAUSE = 9;
+    public static final int TYPE_RESUME = 10;
+
+    private final long mStartMillis;
+    private final int mSize;
+    private final long[] mTimes;
+    private final byte[] mTypes;
+    private final byte[] mStates;
+    private final int[] mCodes;
+
+    private AuthTrace(long startMillis, int size, long[] times, byte[] types, byte[] states, int[] codes) {
+        mStartMillis = startMillis;
+        mSize = size;
+        mTimes = times;
+        mTypes = types;
+        mStates = states;
+        mCodes = codes;
+    }
+
+    public static AuthTrace read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buffer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static AuthTrace parse(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not an auth trace");
+        }
+        int version = buffer.getShort(4) & 0xffff;
+        int recordSize = buffer.getShort(6) & 0xffff;
+        if (version != VERSION || recordSize < RECORD_SIZE) {
+            throw new IOException("unsupported auth trace, version: " + version + ", recordSize: " + recordSize);
+        }
+        long startMillis = buffer.getLong(8);
+        int capacity = (buffer.limit() - HEADER_SIZE) / recordSize;
+        int size = 0;
+        while (size < capacity && buffer.get(HEADER_SIZE + size * recordSize + 8) != 0) {
+            size++;
+        }
+        long[] times = new long[size];
+        byte[] types = new byte[size];
+        byte[] states = new byte[size];
+        int[] codes = new int[size];
+        for (int i = 0; i < size; i++) {
+            int offset = HEADER_SIZE + i * recordSize;
+            times[i] = buffer.getLong(offset);
+            types[i] = buffer.get(offset + 8);
+            states[i] = buffer.get(offset + 9);
+            codes[i] = buffer.getInt(offset + 12);
+        }
+        return new AuthTrace(startMillis, size, times, types, states, codes);
+    }
+
+    /**
+     * 录制开始时的系统时间（System.currentTimeMillis），用于和日志对齐
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return 相对录制开始的时间
+     */
+    public long getTimeNanos(int index) {
+        return mTimes[index];
+    }
+
+    public int getType(int index) {
+        return mTypes[index];
+    }
+
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    public int getCode(int index) {
+        return mCodes[index];
+    }
+
+    public long getDurationNanos() {
+        return mSize == 0 ? 0 : mTimes[mSize - 1] - mTimes[0];
+    }
+
+    /**
+     * 事件、状态和码都相同（不比较时间）
+     */
+    public boolean sameEvents(AuthTrace other) {
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mTypes[i] != other.mTypes[i] || mStates[i] != other.mStates[i] || mCodes[i] != other.mCodes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_START:
+                return "START";
+            case TYPE_ARMED:
+                return "ARMED";
+            case TYPE_START_FAILED:
+                return "START_FAILED";
+            case TYPE_SUCCEEDED:
+                return "SUCCEEDED";
+            case TYPE_FAILED:
+                return "FAILED";
+            case TYPE_HELP:
+                return "HELP";
+            case TYPE_ERROR:
+                return "ERROR";
+            case TYPE_CANCEL:
+                return "CANCEL";
+            case TYPE_PAUSE:
+                return "PAUSE";
+            case TYPE_RESUME:
+                return "RESUME";
+            default:
+                return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /**
+     * 每行一条记录：毫秒 事件 状态 码
+     */
+    public void dump(StringBuilder out) {
+        for (int i = 0; i < mSize; i++) {
+            out.append(mTimes[i] / 1000000).append("ms ").append(typeName(mTypes[i])).append(' ')
+                    .append(AuthStateMachine.nameOf(mStates[i]));
+            if (mCodes[i] != 0) {
+                out.append(' ').append(mCodes[i]);
+            }
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 识别事件录制：每个事件一条定长记录（格式见{@link AuthTrace}），直接写到预先分配好的内存映射文件中，
+ * 记录时无锁、不分配内存、不做系统调用，可以一直开着。写满后丢弃之后的事件，进程崩溃时已写入的记录由系统落盘。
+ * 通过{@link AuthSessionController#setTraceRecorder(AuthTraceRecorder)}开启
+ */
+public class AuthTraceRecorder implements Closeable {
+
+    /**
+     * 时间来源，JVM上配合benchmark模块的虚拟时钟调度器时使用虚拟时间
+     */
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final int mMaxRecords;
+    private final Clock mClock;
+    private final long mStartNanos;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mMap;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mClosed;
+
+    public AuthTraceRecorder(File file, int maxRecords) throws IOException {
+        this(file, maxRecords, SYSTEM_CLOCK);
+    }
+
+    /**
+     * 创建（覆盖）录制文件，按最大记录数一次分配好空间
+     */
+    public AuthTraceRecorder(File file, int maxRecords, Clock clock) throws IOException {
+        if (maxRecords <= 0) {
+            throw new IllegalArgumentException("maxRecords must be positive");
+        }
+        mMaxRecords = maxRecords;
+        mClock = clock;
+        long size = AuthTrace.HEADER_SIZE + (long) maxRecords * AuthTrace.RECORD_SIZE;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            mRandomAccessFile.setLength(0);
+            mRandomAccessFile.setLength(size);
+            mMap = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mMap.putInt(0, AuthTrace.MAGIC);
+        mMap.putShort(4, (short) AuthTrace.VERSION);
+        mMap.putShort(6, (short) AuthTrace.RECORD_SIZE);
+        mMap.putLong(8, System.currentTimeMillis());
+        mStartNanos = clock.nanoTime();
+    }
+
+    /**
+     * 追加一条记录，多个线程同时记录时各自占用不同的位置
+     * @param type  {@link AuthTrace#TYPE_START}等
+     * @param state 记录时的{@link AuthStateMachine}状态
+     */
+    public void record(int type, int code, int state) {
+        if (mClosed) {
+            return;
+        }
+        int index = mNext.getAndIncrement();
+        if (index >= mMaxRecords) {
+            mNext.set(mMaxRecords);
+            mDropped.incrementAndGet();
+            return;
+        }
+        int offset = AuthTrace.HEADER_SIZE + index * AuthTrace.RECORD_SIZE;
+        mMap.putLong(offset, mClock.nanoTime() - mStartNanos);
+        mMap.put(offset + 9, (byte) state);
+        mMap.putInt(offset + 12, code);
+        // type最后写，读取时type不为0的记录才是完整的
+        mMap.put(offset + 8, (byte) type);
+    }
+
+    public int getRecordCount() {
+        return Math.min(mNext.get(), mMaxRecords);
+    }
+
+    /**
+     * 写满之后丢弃的事件数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 把已经写入的记录同步到磁盘，例如上传之前
+     */
+    public void flush() {
+        if (!mClosed) {
+            mMap.force();
+        }
+    }
+
+    /**
+     * 停止录制，之后的记录直接丢弃。映射在GC之前仍然有效，正在写入的线程不会出错
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mMap.force();
+        mClosed = true;
+        mRandomAccessFile.close();
+    }
+}
@@ -0,0 +1,328 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把录制的{@link AuthTrace}回放给{@link AuthSessionController}：
+ * <ul>
+ * <li>调用方的动作（START、CANCEL、PAUSE、RESUME）按录制时的时间点调用控制器</li>
+ * <li>{@link #getSensor()}返回的传感器每次authenticate依次回放录制中的一次会话（一个ARMED到下一个ARMED之间），
+ *     回调之间的间隔和录制时一致；重试由控制器自己按重试策略发起</li>
+ * </ul>
+ * 配合{@link HandlerAuthScheduler}按真实速度回放，复现现场的界面表现；配合benchmark模块的VirtualScheduler
+ * 在JVM上以最快速度回放，作为回归和压测的输入
+ */
+public class AuthTraceReplayer {
+
+    private final AuthTrace mTrace;
+    private final AuthScheduler mScheduler;
+    private final float mSpeed;
+    /** 每次会话的ARMED记录位置 */
+    private final int[] mSessionStarts;
+    private final ReplaySensor mSensor = new ReplaySensor();
+
+    /** 以下字段由this保护 */
+    private AuthSessionController mController;
+    /** 下一个调用方动作在录制中的位置，-1表示没有了 */
+    private int mNextAction = -1;
+    private int mNextSession;
+    private int mReplayedEvents;
+
+    /**
+     * @param speed 回放速度，1为录制时的速度，2为两倍速
+     */
+    public AuthTraceReplayer(AuthTrace trace, AuthScheduler scheduler, float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        mTrace = trace;
+        mScheduler = scheduler;
+        mSpeed = speed;
+        int sessions = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) == AuthTrace.TYPE_ARMED) {
+                sessions++;
+            }
+        }
+        mSessionStarts = new int[sessions];
+        sessions = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) == AuthTrace.TYPE_ARMED) {
+                mSessionStarts[sessions++] = i;
+            }
+        }
+    }
+
+    /**
+     * 回放用的传感器，交给控制器（或者{@link FingerprintCore#setFingerprintSensor(FingerprintSensor)}）
+     */
+    public FingerprintSensor getSensor() {
+        return mSensor;
+    }
+
+    /**
+     * 按录制的时间点依次执行调用方的动作，时间从现在开始计算
+     */
+    public void start(AuthSessionController controller) {
+        int first;
+        synchronized (this) {
+            mController = controller;
+            mNextAction = 0;
+            first = nextActionIndex(-1);
+            mNextAction = first;
+        }
+        if (first >= 0) {
+            mScheduler.postDelayed(mActionTimer, delayMs(mTrace.getTimeNanos(first) - mTrace.getTimeNanos(0)));
+        }
+    }
+
+    /**
+     * 停止回放，不再执行之后的动作，正在回放的会话不再产生回调
+     */
+    public void stop() {
+        synchronized (this) {
+            mNextAction = -1;
+            mNextSession = mSessionStarts.length;
+        }
+        mScheduler.remove(mActionTimer);
+        mScheduler.remove(mActionRunnable);
+        mSensor.cancelAll();
+    }
+
+    /**
+     * 到时间后再排到队尾：录制时同一时刻先回调传感器事件，再执行调用方的动作
+     */
+    private final Runnable mActionTimer = new Runnable() {
+        @Override
+        public void run() {
+            mScheduler.postDelayed(mActionRunnable, 0);
+        }
+    };
+
+    private final Runnable mActionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AuthSessionController controller;
+            int index;
+            int next;
+            synchronized (AuthTraceReplayer.this) {
+                controller = mController;
+                index = mNextAction;
+                if (index < 0) {
+                    return;
+                }
+                next = nextActionIndex(index);
+                mNextAction = next;
+            }
+            switch (mTrace.getType(index)) {
+                case AuthTrace.TYPE_START:
+                    controller.start();
+                    break;
+                case AuthTrace.TYPE_CANCEL:
+                    controller.cancel();
+                    break;
+                case AuthTrace.TYPE_PAUSE:
+                    controller.pause();
+                    break;
+                default:
+                    controller.resume();
+                    break;
+            }
+            if (next >= 0) {
+                // 按相对录制开始的时间计算，避免误差累积
+                long baseNanos = mTrace.getTimeNanos(0);
+                mScheduler.postDelayed(mActionTimer, delayMs(mTrace.getTimeNanos(next) - baseNanos)
+                        - delayMs(mTrace.getTimeNanos(index) - baseNanos));
+            }
+        }
+    };
+
+    /**
+     * @return from之后下一个调用方动作的位置，没有时返回-1
+     */
+    private int nextActionIndex(int from) {
+        for (int i = from + 1; i < mTrace.size(); i++) {
+            int type = mTrace.getType(i);
+            if (type == AuthTrace.TYPE_START || type == AuthTrace.TYPE_CANCEL || type == AuthTrace.TYPE_PAUSE
+                    || type == AuthTrace.TYPE_RESUME) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 录制中的会话数
+     */
+    public int getRecordedSessionCount() {
+        return mSessionStarts.length;
+    }
+
+    /**
+     * 已经开始回放的会话数，和录制的会话数不一致说明控制器的行为和录制时不同（例如重试策略不同）
+     */
+    public synchronized int getReplayedSessionCount() {
+        return Math.min(mNextSession, mSessionStarts.length);
+    }
+
+    /**
+     * 已经回调给控制器的传感器事件数
+     */
+    public synchronized int getReplayedEventCount() {
+        return mReplayedEvents;
+    }
+
+    private long delayMs(long nanos) {
+        return (long) (nanos / 1000000 / (double) mSpeed);
+    }
+
+    private synchronized int nextSession() {
+        return mNextSession < mSessionStarts.length ? mSessionStarts[mNextSession++] : -1;
+    }
+
+    private synchronized void onEventReplayed() {
+        mReplayedEvents++;
+    }
+
+    private static boolean isSensorEvent(int type) {
+        return type == AuthTrace.TYPE_SUCCEEDED || type == AuthTrace.TYPE_FAILED || type == AuthTrace.TYPE_HELP
+                || type == AuthTrace.TYPE_ERROR;
+    }
+
+    private final class ReplaySensor implements FingerprintSensor {
+        private final List<ReplaySession> mSessions = new ArrayList<>();
+
+        @Override
+        public boolean isHardwareDetected() {
+            return true;
+        }
+
+        @Override
+        public boolean hasEnrolledFingerprints() {
+            return true;
+        }
+
+        @Override
+        public Session authenticate(Object crypto, Callback callback) {
+            int armed = nextSession();
+            if (armed >= 0 && armed + 1 < mTrace.size()
+                    && mTrace.getType(armed + 1) == AuthTrace.TYPE_START_FAILED) {
+                throw new IllegalStateException("replayed authenticate failure");
+            }
+            ReplaySession session = new ReplaySession(armed, crypto, callback);
+            synchronized (this) {
+                mSessions.add(session);
+            }
+            session.scheduleNext();
+            return session;
+        }
+
+        synchronized void remove(ReplaySession session) {
+            mSessions.remove(session);
+        }
+
+        void cancelAll() {
+            List<ReplaySession> sessions;
+            synchronized (this) {
+                sessions = new ArrayList<>(mSessions);
+            }
+            for (ReplaySession session : sessions) {
+                session.cancel();
+            }
+        }
+    }
+
+    /**
+     * 回放一次会话：从ARMED之后依次回调，到下一个ARMED、成功或者错误为止
+     */
+    private final class ReplaySession implements FingerprintSensor.Session, Runnable {
+        private final Object mCrypto;
+        private final FingerprintSensor.Callback mCallback;
+        /** 以下字段由this保护 */
+        private int mIndex;
+        private long mLastNanos;
+        private boolean mCancelled;
+
+        ReplaySession(int armed, Object crypto, FingerprintSensor.Callback callback) {
+            mCrypto = crypto;
+            mCallback = callback;
+            mIndex = armed;
+            mLastNanos = armed < 0 ? 0 : mTrace.getTimeNanos(armed);
+        }
+
+        void scheduleNext() {
+            long delayMs;
+            synchronized (this) {
+                if (mCancelled || mIndex < 0) {
+                    return;
+                }
+                int next = mIndex + 1;
+                while (next < mTrace.size() && !isSensorEvent(mTrace.getType(next))
+                        && mTrace.getType(next) != AuthTrace.TYPE_ARMED) {
+                    next++;
+                }
+                if (next >= mTrace.size() || mTrace.getType(next) == AuthTrace.TYPE_ARMED) {
+                    // 录制中这次会话之后没有回调了（被取消、暂停或者一直在等待），传感器保持监听
+                    mIndex = -1;
+                    return;
+                }
+                mIndex = next;
+                delayMs = delayMs(mTrace.getTimeNanos(next) - mLastNanos);
+                mLastNanos = mTrace.getTimeNanos(next);
+            }
+            mScheduler.postDelayed(this, delayMs);
+        }
+
+        @Override
+        public void run() {
+            int type;
+            int code;
+            synchronized (this) {
+                if (mCancelled || mIndex < 0) {
+                    return;
+                }
+                type = mTrace.getType(mIndex);
+                code = mTrace.getCode(mIndex);
+                if (type == AuthTrace.TYPE_SUCCEEDED || type == AuthTrace.TYPE_ERROR) {
+                    mCancelled = true;
+                }
+            }
+            onEventReplayed();
+            switch (type) {
+                case AuthTrace.TYPE_SUCCEEDED:
+                    mSensor.remove(this);
+                    mCallback.onAuthenticationSucceeded(mCrypto);
+                    return;
+                case AuthTrace.TYPE_ERROR:
+                    mSensor.remove(this);
+                    mCallback.onAuthenticationError(code, "replayed error " + code);
+                    return;
+                case AuthTrace.TYPE_HELP:
+                    mCallback.onAuthenticationHelp(code, "replayed help " + code);
+                    break;
+                default:
+                    mCallback.onAuthenticationFailed();
+                    break;
+            }
+            scheduleNext();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+            }
+            mScheduler.remove(this);
+            mSensor.remove(this);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+}
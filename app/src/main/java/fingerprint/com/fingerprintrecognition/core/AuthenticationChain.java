@@ -0,0 +1,499 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 认证降级链：按添加的顺序依次尝试，例如指纹、锁屏密码、自定义方式（账号密码等），一步以错误结束或者不可用时
+ * 自动进入下一步，不需要界面自己处理onAuthenticateError之后的降级。
+ * 每一步开始时在后台提前准备下一步（是否设置了锁屏、确认锁屏密码的Intent），降级时不需要再等待准备。
+ * 从开始到认证成功的耗时按最终通过的方式记录在{@link AuthMetrics}的timeToAuth*中，降级的等待记录在fallbackSetup中。
+ *
+ * 都在主线程调用；页面的onActivityResult需要转发给{@link #onActivityResult(int, int)}
+ */
+public class AuthenticationChain {
+
+    public static final int STEP_FINGERPRINT = 0;
+    public static final int STEP_DEVICE_CREDENTIAL = 1;
+    public static final int STEP_CUSTOM = 2;
+
+    /** 锁屏密码或者自定义方式没有通过（例如用户返回） */
+    public static final int ERROR_NOT_CONFIRMED = -1;
+    /** 没有可用的方式 */
+    public static final int ERROR_NO_STEP_AVAILABLE = -2;
+
+    /** 确认锁屏密码页面的requestCode */
+    public static final int REQUEST_CODE_CONFIRM_DEVICE_CREDENTIALS = 0x4643;
+
+    public interface Listener {
+        /**
+         * 开始一步，可以在界面上提示当前的认证方式
+         * @param reason 上一步的错误码，第一步为0
+         */
+        void onStepStarted(int step, int reason);
+
+        void onAuthenticated(int step);
+
+        /**
+         * 所有方式都失败或者不可用
+         * @param lastErrorCode 最后一步的错误码
+         */
+        void onFailed(int lastErrorCode);
+    }
+
+    /**
+     * 认证链中的一步，自定义方式实现这个接口，{@link #getType()}返回{@link #STEP_CUSTOM}
+     */
+    public interface Step {
+        /** {@link #STEP_FINGERPRINT}等 */
+        int getType();
+
+        /**
+         * 准备这一步需要的资源，在主线程调用，耗时的操作放到后台；准备的结果只用于紧接着的一次{@link #start}
+         * @return 以这一步是否可用完成，不可用时直接跳过
+         */
+        CoreFuture<Boolean> prepare();
+
+        /**
+         * 在主线程启动，结束时调用一次callback
+         */
+        void start(Activity activity, StepCallback callback);
+
+        /**
+         * 取消进行中的这一步，之后不再回调
+         */
+        void cancel();
+
+        /**
+         * @return 是这一步启动的页面的结果时返回true
+         */
+        boolean onActivityResult(int requestCode, int resultCode);
+    }
+
+    /**
+     * 可以在任意线程调用
+     */
+    public interface StepCallback {
+        void onSucceeded();
+
+        /**
+         * @param errorCode 指纹的错误码或者{@link #ERROR_NOT_CONFIRMED}，之后降级到下一步
+         */
+        void onFailed(int errorCode);
+    }
+
+    private final AuthMetrics mMetrics;
+    private final List<Step> mSteps = new ArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    /** 以下字段只在主线程访问 */
+    private final List<CoreFuture<Boolean>> mPrepared = new ArrayList<>();
+    private Activity mActivity;
+    /** 每次start加1，丢弃之前的回调 */
+    private int mGeneration;
+    private int mCurrent = -1;
+    private long mStartNanos;
+    private long mFailedNanos;
+    private int mLastErrorCode;
+
+    public AuthenticationChain() {
+        this(AuthMetrics.get());
+    }
+
+    public AuthenticationChain(AuthMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 按顺序添加一步，在start之前调用
+     */
+    public AuthenticationChain addStep(Step step) {
+        mSteps.add(step);
+        mPrepared.add(null);
+        return this;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public boolean isRunning() {
+        return mActivity != null;
+    }
+
+    /**
+     * 当前进行中的一步，没有进行中时返回-1
+     */
+    public int getCurrentStep() {
+        return mCurrent < 0 ? -1 : mSteps.get(mCurrent).getType();
+    }
+
+    /**
+     * 从第一步开始认证
+     * @return 已经在进行中时返回false
+     */
+    public boolean start(Activity activity) {
+        if (isRunning()) {
+            return false;
+        }
+        mActivity = activity;
+        mGeneration++;
+        mStartNanos = System.nanoTime();
+        mFailedNanos = 0;
+        mLastErrorCode = ERROR_NO_STEP_AVAILABLE;
+        advance(0, 0);
+        return true;
+    }
+
+    /**
+     * 取消进行中的一步，之后不再回调监听者
+     */
+    public void cancel() {
+        if (!isRunning()) {
+            return;
+        }
+        if (mCurrent >= 0) {
+            mSteps.get(mCurrent).cancel();
+        }
+        finish();
+    }
+
+    /**
+     * 页面的onActivityResult转发到这里
+     * @return 是认证链启动的页面的结果时返回true
+     */
+    public boolean onActivityResult(int requestCode, int resultCode) {
+        return isRunning() && mCurrent >= 0 && mSteps.get(mCurrent).onActivityResult(requestCode, resultCode);
+    }
+
+    private void finish() {
+        mActivity = null;
+        mCurrent = -1;
+        mGeneration++;
+    }
+
+    /**
+     * 开始准备第index步，已经在准备或者准备好时直接返回
+     */
+    private CoreFuture<Boolean> prepare(int index) {
+        if (index >= mSteps.size()) {
+            return null;
+        }
+        CoreFuture<Boolean> prepared = mPrepared.get(index);
+        if (prepared == null) {
+            Step step = mSteps.get(index);
+            try {
+                prepared = step.prepare();
+            } catch (RuntimeException e) {
+                FPLog.log(FPLog.ERROR, "Failed to prepare step {}, e:{}", step.getType(), e);
+                prepared = new CoreFuture<>();
+                prepared.complete(false);
+            }
+            mPrepared.set(index, prepared);
+        }
+        return prepared;
+    }
+
+    private void advance(final int index, final int reason) {
+        if (index >= mSteps.size()) {
+            Listener listener = mListener;
+            int errorCode = mLastErrorCode;
+            finish();
+            FPLog.log(FPLog.INFO, "authentication chain failed, last error: {}", errorCode);
+            if (listener != null) {
+                listener.onFailed(errorCode);
+            }
+            return;
+        }
+        CoreFuture<Boolean> prepared = prepare(index);
+        if (prepared.isDone()) {
+            startStep(index, reason, Boolean.TRUE.equals(prepared.getNow(false)));
+            return;
+        }
+        // 还没准备好，准备好之后回到主线程继续
+        final int generation = mGeneration;
+        prepared.addListener(new CoreFuture.Listener<Boolean>() {
+            @Override
+            public void onComplete(final CoreFuture<Boolean> future) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            startStep(index, reason, Boolean.TRUE.equals(future.getNow(false)));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void startStep(int index, int reason, boolean available) {
+        // 准备的结果只使用一次，下次重新准备
+        mPrepared.set(index, null);
+        Step step = mSteps.get(index);
+        if (!available) {
+            FPLog.log(FPLog.INFO, "step {} not available, skip", step.getType());
+            mMetrics.recordEvent(AuthMetrics.EVENT_FALLBACK);
+            advance(index + 1, reason);
+            return;
+        }
+        if (mFailedNanos != 0) {
+            mMetrics.fallbackSetup.recordSince(mFailedNanos);
+            mFailedNanos = 0;
+        }
+        mCurrent = index;
+        // 当前这一步进行时准备下一步
+        prepare(index + 1);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStepStarted(step.getType(), reason);
+        }
+        step.start(mActivity, new ChainStepCallback(mGeneration, index));
+    }
+
+    private void onStepSucceeded(int index) {
+        int type = mSteps.get(index).getType();
+        histogramOf(type).recordSince(mStartNanos);
+        Listener listener = mListener;
+        finish();
+        FPLog.log(FPLog.INFO, "authenticated by step {}", type);
+        if (listener != null) {
+            listener.onAuthenticated(type);
+        }
+    }
+
+    private void onStepFailed(int index, int errorCode) {
+        FPLog.log(FPLog.INFO, "step {} failed: {}, fall back", mSteps.get(index).getType(), errorCode);
+        mCurrent = -1;
+        mLastErrorCode = errorCode;
+        mFailedNanos = System.nanoTime();
+        mMetrics.recordEvent(AuthMetrics.EVENT_FALLBACK);
+        advance(index + 1, errorCode);
+    }
+
+    private LatencyHistogram histogramOf(int type) {
+        switch (type) {
+            case STEP_FINGERPRINT:
+                return mMetrics.timeToAuthFingerprint;
+            case STEP_DEVICE_CREDENTIAL:
+                return mMetrics.timeToAuthDeviceCredential;
+            default:
+                return mMetrics.timeToAuthCustom;
+        }
+    }
+
+    /**
+     * 把步骤的结果切回主线程，已经结束或者重新开始的认证不再处理
+     */
+    private final class ChainStepCallback implements StepCallback {
+        private final int mStepGeneration;
+        private final int mIndex;
+
+        ChainStepCallback(int generation, int index) {
+            mStepGeneration = generation;
+            mIndex = index;
+        }
+
+        @Override
+        public void onSucceeded() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent()) {
+                        onStepSucceeded(mIndex);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFailed(final int errorCode) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent()) {
+                        onStepFailed(mIndex, errorCode);
+                    }
+                }
+            });
+        }
+
+        private boolean isCurrent() {
+            return mStepGeneration == mGeneration && mCurrent == mIndex;
+        }
+    }
+
+    /**
+     * 指纹识别，以错误结束（锁定、超时、硬件不可用等）时降级；不支持或者没有录入指纹时跳过
+     */
+    public static class FingerprintStep implements Step {
+        private final FingerprintCore mCore;
+        private final long mTimeoutMs;
+        private volatile CoreFuture<AuthResult> mFuture;
+
+        /**
+         * @param timeoutMs 超过这个时间没有结果时降级，小于等于0表示不限制
+         */
+        public FingerprintStep(FingerprintCore core, long timeoutMs) {
+            mCore = core;
+            mTimeoutMs = timeoutMs;
+        }
+
+        @Override
+        public int getType() {
+            return STEP_FINGERPRINT;
+        }
+
+        @Override
+        public CoreFuture<Boolean> prepare() {
+            return mCore.getReadyFuture().thenApply(new CoreFuture.Function<Boolean, Boolean>() {
+                @Override
+                public Boolean apply(Boolean supported) {
+                    return supported && mCore.isHasEnrolledFingerprints();
+                }
+            });
+        }
+
+        @Override
+        public void start(Activity activity, final StepCallback callback) {
+            final CoreFuture<AuthResult> future = mCore.authenticate(mTimeoutMs);
+            mFuture = future;
+            future.addListener(new CoreFuture.Listener<AuthResult>() {
+                @Override
+                public void onComplete(CoreFuture<AuthResult> completed) {
+                    if (completed.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        completed.get();
+                        callback.onSucceeded();
+                    } catch (ExecutionException e) {
+                        callback.onFailed(errorCodeOf(e.getCause()));
+                    } catch (InterruptedException | CancellationException e) {
+                        // 已经完成，不会发生
+                    }
+                }
+            });
+        }
+
+        private static int errorCodeOf(Throwable failure) {
+            if (failure instanceof AuthException) {
+                return ((AuthException) failure).getErrorCode();
+            }
+            return failure instanceof TimeoutException ? FingerprintSensor.ERROR_TIMEOUT
+                    : FingerprintSensor.ERROR_HW_UNAVAILABLE;
+        }
+
+        @Override
+        public void cancel() {
+            CoreFuture<AuthResult> future = mFuture;
+            if (future != null) {
+                mFuture = null;
+                // 取消Future会取消识别并释放传感器
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public boolean onActivityResult(int requestCode, int resultCode) {
+            return false;
+        }
+    }
+
+    /**
+     * 系统的确认锁屏密码页面（API 21以上），准备时检查是否设置了锁屏并创建好Intent；没有设置锁屏时跳过
+     */
+    public static class DeviceCredentialStep implements Step {
+        private final Context mContext;
+        private final CharSequence mTitle;
+        private final CharSequence mDescription;
+        private volatile Intent mIntent;
+        /** 只在主线程访问 */
+        private StepCallback mCallback;
+
+        public DeviceCredentialStep(Context context, CharSequence title, CharSequence description) {
+            mContext = context.getApplicationContext();
+            mTitle = title;
+            mDescription = description;
+        }
+
+        @Override
+        public int getType() {
+            return STEP_DEVICE_CREDENTIAL;
+        }
+
+        @Override
+        public CoreFuture<Boolean> prepare() {
+            mIntent = null;
+            final CoreFuture<Boolean> result = new CoreFuture<>();
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                result.complete(false);
+                return result;
+            }
+            // 查询锁屏状态和创建Intent都要跨进程，放到后台
+            CoreExecutors.execute(new Runnable() {
+                @Override
+                public void run() {
+                    result.complete(resolveIntent());
+                }
+            });
+            return result;
+        }
+
+        private boolean resolveIntent() {
+            try {
+                KeyguardManager keyguardManager = (KeyguardManager) mContext.getSystemService(Context.KEYGUARD_SERVICE);
+                if (keyguardManager == null || !keyguardManager.isKeyguardSecure()) {
+                    return false;
+                }
+                mIntent = keyguardManager.createConfirmDeviceCredentialIntent(mTitle, mDescription);
+            } catch (Throwable e) {
+                FPLog.log(FPLog.WARN, "Failed to create confirm device credential intent, e:{}", e);
+            }
+            return mIntent != null;
+        }
+
+        @Override
+        public void start(Activity activity, StepCallback callback) {
+            Intent intent = mIntent;
+            mIntent = null;
+            mCallback = callback;
+            activity.startActivityForResult(intent, REQUEST_CODE_CONFIRM_DEVICE_CREDENTIALS);
+        }
+
+        @Override
+        public void cancel() {
+            // 系统页面无法关闭，之后的结果直接忽略
+            mCallback = null;
+        }
+
+        @Override
+        public boolean onActivityResult(int requestCode, int resultCode) {
+            StepCallback callback = mCallback;
+            if (requestCode != REQUEST_CODE_CONFIRM_DEVICE_CREDENTIALS || callback == null) {
+                return false;
+            }
+            mCallback = null;
+            if (resultCode == Activity.RESULT_OK) {
+                callback.onSucceeded();
+            } else {
+                callback.onFailed(ERROR_NOT_CONFIRMED);
+            }
+            return true;
+        }
+    }
+}
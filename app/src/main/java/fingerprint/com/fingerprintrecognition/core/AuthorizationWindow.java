@@ -0,0 +1,596 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 授权窗口（批量模式）：秘钥设置了认证有效期，一次指纹识别成功后在有限的时间和操作次数内
+ * 都可以直接使用，排队的加密、解密和签名请求在同一个后台流水线中依次完成，不需要每条数据都按一次指纹。
+ *
+ * 用法：通过{@link FingerprintCore#setAuthorizationWindow(AuthorizationWindow)}关联后，
+ * 指纹识别成功会自动调用{@link #open()}；窗口关闭时有新请求会回调{@link Listener#onAuthorizationRequired()}，
+ * 由界面再次发起指纹识别。
+ *
+ * 加密秘钥带版本号，版本号写在{@link CryptoEnvelope}头部。秘钥设置了认证有效期，系统不会因为录入新指纹让它失效，
+ * 只有关闭或者重置了锁屏才会，{@link #prewarm()}或者使用时发现后会生成新版本的秘钥并回调
+ * {@link KeyListener#onKeyInvalidated(int, int)}。录入新指纹要由每次都认证的秘钥发现（见{@link KeyInvalidationListener}），
+ * 然后用{@link #rotateKey()}轮换，旧版本的数据通过{@link #rewrap(byte[])}在后台重新加密，
+ * 全部完成后再用{@link #deleteKeysBefore(int)}删除旧秘钥。
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class AuthorizationWindow {
+
+    /** 第1版秘钥的别名，之后的版本加上"_v版本号"后缀 */
+    private static final String CIPHER_KEY_NAME = "crypto_object_fingerprint_batch_gcm_key";
+    private static final String KEY_VERSION_SUFFIX = "_v";
+    private static final int FIRST_KEY_VERSION = 1;
+    private static final String MAC_KEY_NAME = "crypto_object_fingerprint_batch_mac_key";
+    private static final String CIPHER_TRANSFORMATION = KeyProperties.KEY_ALGORITHM_AES + "/"
+            + KeyProperties.BLOCK_MODE_GCM + "/" + KeyProperties.ENCRYPTION_PADDING_NONE;
+
+    /** 窗口关闭时间比秘钥有效期提前一点，避免操作进行到一半秘钥过期 */
+    private static final long EXPIRE_MARGIN_MS = 1000;
+
+    private static final int OP_ENCRYPT = 0;
+    private static final int OP_DECRYPT = 1;
+    private static final int OP_SIGN = 2;
+
+    public interface Listener {
+        /** 有排队的请求但窗口没有打开，需要一次指纹识别 */
+        void onAuthorizationRequired();
+
+        /** 窗口因为超时、次数用完或者秘钥要求重新认证而关闭 */
+        void onWindowClosed(int remainingOperations);
+    }
+
+    public interface KeyListener {
+        /**
+         * 加密秘钥永久失效（关闭或者重置了锁屏），已经切换到新版本；用旧版本加密的数据无法再解密，
+         * 在后台线程回调
+         */
+        void onKeyInvalidated(int oldVersion, int newVersion);
+    }
+
+    private static final class Operation {
+        final int mType;
+        final byte[] mInput;
+        final CoreFuture<byte[]> mFuture = new CoreFuture<>();
+
+        Operation(int type, byte[] input) {
+            mType = type;
+            mInput = input;
+        }
+    }
+
+    private final int mValiditySeconds;
+    private final int mMaxOperations;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<>();
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private volatile Listener mListener;
+    private volatile KeyListener mKeyListener;
+
+    /** 以下字段都由mQueue的锁保护 */
+    private boolean mOpen = false;
+    private long mDeadline = 0;
+    private int mRemainingOperations = 0;
+
+    /** 以下字段由mKeyLock保护，流水线线程和重新加密的线程都会访问 */
+    private final Object mKeyLock = new Object();
+    private KeyStore mKeyStore;
+    private int mKeyVersion = 0;
+    private final Map<Integer, Key> mKeyCache = new HashMap<>();
+
+    /** 重新加密可以在多个线程并行，每个线程一对Cipher */
+    private final ThreadLocal<Cipher[]> mRewrapCiphers = new ThreadLocal<>();
+
+    /** 以下字段只在流水线线程中使用 */
+    private Cipher mEncryptCipher;
+    private Cipher mDecryptCipher;
+    private Mac mMac;
+
+    /**
+     * @param validitySeconds 一次认证后秘钥的有效期（秒）
+     * @param maxOperations   一次认证最多允许完成的操作数
+     */
+    public AuthorizationWindow(int validitySeconds, int maxOperations) {
+        if (validitySeconds <= 0 || maxOperations <= 0) {
+            throw new IllegalArgumentException("validitySeconds and maxOperations must be positive");
+        }
+        mValiditySeconds = validitySeconds;
+        mMaxOperations = maxOperations;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setKeyListener(KeyListener listener) {
+        mKeyListener = listener;
+    }
+
+    /**
+     * 在后台检查当前版本的加密秘钥：不存在时生成，永久失效时切换到新版本。
+     * 不需要认证，建议在界面发起指纹识别之前调用，避免识别成功后才发现秘钥失效。
+     * @return 检查后的秘钥版本
+     */
+    public CoreFuture<Integer> prewarm() {
+        final CoreFuture<Integer> result = new CoreFuture<>();
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int version = getKeyVersion();
+                    try {
+                        Cipher.getInstance(CIPHER_TRANSFORMATION).init(Cipher.ENCRYPT_MODE, getCipherKey(version));
+                    } catch (UserNotAuthenticatedException e) {
+                        // 秘钥有效，只是还没有认证
+                    } catch (KeyPermanentlyInvalidatedException e) {
+                        version = onKeyInvalidated(version);
+                    }
+                    result.complete(version);
+                } catch (Exception e) {
+                    FPLog.log(FPLog.ERROR, "Failed to prewarm batch key, e:{}", e);
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 当前用于加密的秘钥版本，第一次调用时从KeyStore中查找
+     */
+    public int getKeyVersion() throws Exception {
+        synchronized (mKeyLock) {
+            if (mKeyVersion == 0) {
+                mKeyVersion = findLatestKeyVersion();
+            }
+            return mKeyVersion;
+        }
+    }
+
+    /**
+     * 生成新版本的加密秘钥，之后的加密都使用新秘钥，旧秘钥保留用于解密和{@link #rewrap(byte[])}
+     * @return 新版本号
+     */
+    public int rotateKey() throws Exception {
+        synchronized (mKeyLock) {
+            int version = getKeyVersion() + 1;
+            if (version > CryptoEnvelope.MAX_KEY_VERSION) {
+                throw new IllegalStateException("key version overflow");
+            }
+            createCipherKey(version);
+            mKeyVersion = version;
+            FPLog.log(FPLog.INFO, "batch key rotated to v{}", version);
+            return version;
+        }
+    }
+
+    /**
+     * 删除比version旧的加密秘钥，用这些秘钥加密的数据将无法解密
+     */
+    public void deleteKeysBefore(int version) {
+        synchronized (mKeyLock) {
+            try {
+                KeyStore keyStore = getKeyStore();
+                for (int v = FIRST_KEY_VERSION; v < version && v < mKeyVersion; v++) {
+                    keyStore.deleteEntry(keyAliasOf(v));
+                    mKeyCache.remove(v);
+                }
+            } catch (Exception e) {
+                FPLog.log(FPLog.ERROR, "Failed to delete old batch keys, e:{}", e);
+            }
+        }
+    }
+
+    /**
+     * envelope是否不是用当前版本的秘钥加密的，只读取头部
+     */
+    public boolean needsRewrap(ByteBuffer envelope) throws Exception {
+        return keyVersionOf(CryptoEnvelope.parseHeader(envelope.duplicate())) != getKeyVersion();
+    }
+
+    /**
+     * 用旧版本秘钥解密后以当前版本秘钥重新加密，已经是当前版本时原样返回。
+     * 不经过请求队列，不占用窗口的操作次数，可以在多个后台线程并行调用，但同样要求在认证有效期内，
+     * 否则抛出{@link UserNotAuthenticatedException}；旧秘钥已失效时抛出{@link KeyPermanentlyInvalidatedException}。
+     */
+    public byte[] rewrap(byte[] envelope) throws Exception {
+        CryptoEnvelope parsed = CryptoEnvelope.parse(envelope);
+        int version = getKeyVersion();
+        int oldVersion = keyVersionOf(parsed);
+        if (oldVersion == version) {
+            return envelope;
+        }
+        Cipher[] ciphers = mRewrapCiphers.get();
+        if (ciphers == null) {
+            ciphers = new Cipher[]{Cipher.getInstance(CIPHER_TRANSFORMATION), Cipher.getInstance(CIPHER_TRANSFORMATION)};
+            mRewrapCiphers.set(ciphers);
+        }
+        ciphers[0].init(Cipher.DECRYPT_MODE, getCipherKey(oldVersion), parsed.newParameterSpec());
+        byte[] plainText = parsed.open(ciphers[0]);
+        try {
+            ciphers[1].init(Cipher.ENCRYPT_MODE, getCipherKey(version));
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // 当前秘钥失效不代表这条数据丢失，换新秘钥加密
+            version = onKeyInvalidated(version);
+            ciphers[1].init(Cipher.ENCRYPT_MODE, getCipherKey(version));
+        }
+        return CryptoEnvelope.seal(ciphers[1], version, plainText);
+    }
+
+    /**
+     * AES-GCM加密，结果为{@link CryptoEnvelope}格式，用当前版本的秘钥
+     */
+    public CoreFuture<byte[]> encrypt(byte[] plainText) {
+        return enqueue(new Operation(OP_ENCRYPT, plainText));
+    }
+
+    /**
+     * 解密{@link #encrypt(byte[])}的结果，按头部的版本号选择秘钥
+     */
+    public CoreFuture<byte[]> decrypt(byte[] ivAndCipherText) {
+        return enqueue(new Operation(OP_DECRYPT, ivAndCipherText));
+    }
+
+    /**
+     * HmacSHA256签名
+     */
+    public CoreFuture<byte[]> sign(byte[] data) {
+        return enqueue(new Operation(OP_SIGN, data));
+    }
+
+    /**
+     * 认证成功后打开窗口并开始处理排队的请求
+     */
+    public void open() {
+        synchronized (mQueue) {
+            mOpen = true;
+            mDeadline = SystemClock.elapsedRealtime() + mValiditySeconds * 1000L - EXPIRE_MARGIN_MS;
+            mRemainingOperations = mMaxOperations;
+        }
+        FPLog.log(FPLog.DEBUG, "authorization window open, {} ops", mMaxOperations);
+        scheduleDrain();
+    }
+
+    public void close() {
+        int remaining;
+        synchronized (mQueue) {
+            if (!mOpen) {
+                return;
+            }
+            mOpen = false;
+            remaining = mQueue.size();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onWindowClosed(remaining);
+        }
+    }
+
+    public boolean isOpen() {
+        synchronized (mQueue) {
+            return isOpenLocked();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * 取消所有排队的请求
+     */
+    public void clear() {
+        Operation[] operations;
+        synchronized (mQueue) {
+            operations = mQueue.toArray(new Operation[mQueue.size()]);
+            mQueue.clear();
+        }
+        for (Operation operation : operations) {
+            operation.mFuture.cancel(false);
+        }
+    }
+
+    private boolean isOpenLocked() {
+        return mOpen && mRemainingOperations > 0 && SystemClock.elapsedRealtime() < mDeadline;
+    }
+
+    private CoreFuture<byte[]> enqueue(Operation operation) {
+        boolean open;
+        synchronized (mQueue) {
+            mQueue.add(operation);
+            open = isOpenLocked();
+        }
+        if (open) {
+            scheduleDrain();
+        } else {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onAuthorizationRequired();
+            }
+        }
+        return operation.mFuture;
+    }
+
+    private void scheduleDrain() {
+        if (mDraining.compareAndSet(false, true)) {
+            CoreExecutors.execute(mDrainRunnable);
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drain();
+            } finally {
+                mDraining.set(false);
+            }
+            // 处理过程中又有新的请求进来
+            boolean more;
+            synchronized (mQueue) {
+                more = !mQueue.isEmpty() && isOpenLocked();
+            }
+            if (more) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    private void drain() {
+        while (true) {
+            Operation operation;
+            synchronized (mQueue) {
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                if (!isOpenLocked()) {
+                    break;
+                }
+                operation = mQueue.poll();
+                mRemainingOperations--;
+            }
+            if (operation.mFuture.isDone()) {
+                continue;
+            }
+            try {
+                operation.mFuture.complete(execute(operation));
+            } catch (UserNotAuthenticatedException e) {
+                // 秘钥的认证有效期已过，请求放回队首，等下一次认证
+                FPLog.log(FPLog.INFO, "authorization expired, requeue");
+                synchronized (mQueue) {
+                    mQueue.addFirst(operation);
+                    mRemainingOperations = 0;
+                }
+                break;
+            } catch (KeyPermanentlyInvalidatedException e) {
+                FPLog.log(FPLog.ERROR, "batch key permanently invalidated, e:{}", e);
+                if (operation.mType == OP_DECRYPT) {
+                    // 旧秘钥加密的数据已经无法恢复
+                    operation.mFuture.completeExceptionally(e);
+                    continue;
+                }
+                try {
+                    if (operation.mType == OP_ENCRYPT) {
+                        onKeyInvalidated(getKeyVersion());
+                    } else {
+                        deleteMacKey();
+                    }
+                } catch (Exception rotateError) {
+                    operation.mFuture.completeExceptionally(rotateError);
+                    continue;
+                }
+                // 用新秘钥重试
+                synchronized (mQueue) {
+                    mQueue.addFirst(operation);
+                    mRemainingOperations++;
+                }
+            } catch (Exception e) {
+                FPLog.log(FPLog.ERROR, "batch operation failed, e:{}", e);
+                operation.mFuture.completeExceptionally(e);
+            }
+        }
+        // 窗口已关闭但还有请求
+        int remaining;
+        boolean wasOpen;
+        synchronized (mQueue) {
+            wasOpen = mOpen;
+            mOpen = false;
+            remaining = mQueue.size();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            if (wasOpen) {
+                listener.onWindowClosed(remaining);
+            }
+            listener.onAuthorizationRequired();
+        }
+    }
+
+    private byte[] execute(Operation operation) throws Exception {
+        switch (operation.mType) {
+            case OP_ENCRYPT: {
+                int version = getKeyVersion();
+                Cipher cipher = getEncryptCipher();
+                cipher.init(Cipher.ENCRYPT_MODE, getCipherKey(version));
+                return CryptoEnvelope.seal(cipher, version, operation.mInput);
+            }
+            case OP_DECRYPT: {
+                CryptoEnvelope envelope = CryptoEnvelope.parse(operation.mInput);
+                Cipher cipher = getDecryptCipher();
+                cipher.init(Cipher.DECRYPT_MODE, getCipherKey(keyVersionOf(envelope)), envelope.newParameterSpec());
+                return envelope.open(cipher);
+            }
+            default: {
+                Mac mac = getMac();
+                mac.init(getMacKey());
+                return mac.doFinal(operation.mInput);
+            }
+        }
+    }
+
+    /**
+     * 当前秘钥失效，切换到新版本并通知监听者；其他线程已经切换过时直接返回当前版本
+     */
+    private int onKeyInvalidated(int version) throws Exception {
+        int newVersion;
+        synchronized (mKeyLock) {
+            if (version != getKeyVersion()) {
+                return mKeyVersion;
+            }
+            getKeyStore().deleteEntry(keyAliasOf(version));
+            mKeyCache.remove(version);
+            newVersion = rotateKey();
+        }
+        KeyListener listener = mKeyListener;
+        if (listener != null) {
+            listener.onKeyInvalidated(version, newVersion);
+        }
+        return newVersion;
+    }
+
+    private KeyStore getKeyStore() throws Exception {
+        synchronized (mKeyLock) {
+            if (mKeyStore == null) {
+                KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+                keyStore.load(null);
+                mKeyStore = keyStore;
+            }
+            return mKeyStore;
+        }
+    }
+
+    private int findLatestKeyVersion() throws Exception {
+        int latest = FIRST_KEY_VERSION;
+        Enumeration<String> aliases = getKeyStore().aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (alias.startsWith(CIPHER_KEY_NAME + KEY_VERSION_SUFFIX)) {
+                try {
+                    latest = Math.max(latest,
+                            Integer.parseInt(alias.substring(CIPHER_KEY_NAME.length() + KEY_VERSION_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    FPLog.log(FPLog.WARN, "unknown batch key alias");
+                }
+            }
+        }
+        return latest;
+    }
+
+    private static String keyAliasOf(int version) {
+        return version == FIRST_KEY_VERSION ? CIPHER_KEY_NAME : CIPHER_KEY_NAME + KEY_VERSION_SUFFIX + version;
+    }
+
+    /** VERSION_1格式的数据没有版本号，都是第1版秘钥加密的 */
+    private static int keyVersionOf(CryptoEnvelope envelope) {
+        int version = envelope.getKeyVersion();
+        return version == CryptoEnvelope.NO_KEY_VERSION ? FIRST_KEY_VERSION : version;
+    }
+
+    /**
+     * 当前版本的秘钥不存在时生成；旧版本的秘钥不存在说明已经删除，数据无法解密
+     */
+    private Key getCipherKey(int version) throws Exception {
+        synchronized (mKeyLock) {
+            Key key = mKeyCache.get(version);
+            if (key != null) {
+                return key;
+            }
+            KeyStore keyStore = getKeyStore();
+            if (!keyStore.containsAlias(keyAliasOf(version))) {
+                if (version != getKeyVersion()) {
+                    throw new KeyPermanentlyInvalidatedException("batch key v" + version + " deleted");
+                }
+                createCipherKey(version);
+            }
+            key = keyStore.getKey(keyAliasOf(version), null);
+            mKeyCache.put(version, key);
+            return key;
+        }
+    }
+
+    private void createCipherKey(int version) throws Exception {
+        long startNanos = System.nanoTime();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        keyGenerator.init(new KeyGenParameterSpec.Builder(keyAliasOf(version),
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setUserAuthenticationRequired(true)
+                // 认证后在有效期内可以多次使用，不需要每次都绑定CryptoObject
+                .setUserAuthenticationValidityDurationSeconds(mValiditySeconds)
+                .build());
+        keyGenerator.generateKey();
+        AuthMetrics.get().keyCreation.recordSince(startNanos);
+    }
+
+    private Key getMacKey() throws Exception {
+        synchronized (mKeyLock) {
+            KeyStore keyStore = getKeyStore();
+            if (!keyStore.containsAlias(MAC_KEY_NAME)) {
+                long startNanos = System.nanoTime();
+                KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256,
+                        "AndroidKeyStore");
+                keyGenerator.init(new KeyGenParameterSpec.Builder(MAC_KEY_NAME, KeyProperties.PURPOSE_SIGN)
+                        .setUserAuthenticationRequired(true)
+                        .setUserAuthenticationValidityDurationSeconds(mValiditySeconds)
+                        .build());
+                keyGenerator.generateKey();
+                AuthMetrics.get().keyCreation.recordSince(startNanos);
+            }
+            return keyStore.getKey(MAC_KEY_NAME, null);
+        }
+    }
+
+    private Cipher getEncryptCipher() throws GeneralSecurityException {
+        if (mEncryptCipher == null) {
+            mEncryptCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        }
+        return mEncryptCipher;
+    }
+
+    private Cipher getDecryptCipher() throws GeneralSecurityException {
+        if (mDecryptCipher == null) {
+            mDecryptCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        }
+        return mDecryptCipher;
+    }
+
+    private Mac getMac() throws GeneralSecurityException {
+        if (mMac == null) {
+            mMac = Mac.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256);
+        }
+        return mMac;
+    }
+
+    private void deleteMacKey() throws Exception {
+        synchronized (mKeyLock) {
+            getKeyStore().deleteEntry(MAC_KEY_NAME);
+        }
+        mMac = null;
+    }
+}
@@ -0,0 +1,92 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一次指纹认证签名的一批服务端挑战。指纹保护的签名秘钥每次认证只允许一次签名操作，
+ * 所以整批挑战按固定格式拼接后只签一次，服务端用同样的格式验证：
+ * <pre>
+ * | magic "FPCB"(4) | count(4) | length(4) | challenge | length(4) | challenge | ...
+ * </pre>
+ * 整数都是大端，长度前缀保证不同的拆分方式得到不同的签名内容。
+ * 签名和验证都不依赖Android，服务端可以直接使用
+ */
+public final class ChallengeBatch {
+
+    /** 签名秘钥为P-256的EC秘钥 */
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    public static final int MAX_CHALLENGES = 1024;
+    public static final int MAX_CHALLENGE_LENGTH = 1024;
+    private static final int MAGIC = 0x46504342;
+
+    private final List<byte[]> mChallenges;
+    private volatile byte[] mSignature;
+
+    /**
+     * @param challenges 按顺序签名，服务端验证时顺序必须一致
+     */
+    public ChallengeBatch(List<byte[]> challenges) {
+        if (challenges.isEmpty() || challenges.size() > MAX_CHALLENGES) {
+            throw new IllegalArgumentException("challenge count out of range: " + challenges.size());
+        }
+        List<byte[]> copy = new ArrayList<>(challenges.size());
+        for (byte[] challenge : challenges) {
+            if (challenge.length == 0 || challenge.length > MAX_CHALLENGE_LENGTH) {
+                throw new IllegalArgumentException("challenge length out of range: " + challenge.length);
+            }
+            copy.add(challenge.clone());
+        }
+        mChallenges = Collections.unmodifiableList(copy);
+    }
+
+    public int size() {
+        return mChallenges.size();
+    }
+
+    public List<byte[]> getChallenges() {
+        return mChallenges;
+    }
+
+    /**
+     * @return 还没有签名时返回null
+     */
+    public byte[] getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * 用已经initSign（并且通过指纹认证）的Signature签名整批挑战
+     * @return DER格式的ECDSA签名
+     */
+    public byte[] sign(Signature signature) throws SignatureException {
+        update(signature);
+        byte[] result = signature.sign();
+        mSignature = result;
+        return result;
+    }
+
+    /**
+     * @param signature 已经用注册的公钥initVerify的Signature
+     */
+    public boolean verify(Signature signature, byte[] signatureBytes) throws SignatureException {
+        update(signature);
+        return signature.verify(signatureBytes);
+    }
+
+    private void update(Signature signature) throws SignatureException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(mChallenges.size());
+        signature.update(header.array());
+        byte[] length = new byte[4];
+        for (byte[] challenge : mChallenges) {
+            ByteBuffer.wrap(length).putInt(challenge.length);
+            signature.update(length);
+            signature.update(challenge);
+        }
+    }
+}
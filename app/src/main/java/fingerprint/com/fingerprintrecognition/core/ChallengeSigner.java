@@ -0,0 +1,284 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 签名模式：用KeyStore中指纹保护的EC秘钥对（P-256，PURPOSE_SIGN）向服务端证明身份。
+ * 注册时把{@link #exportPublicKey()}上传到服务端；之后服务端下发的挑战通过{@link #enqueue(byte[])}排队，
+ * 一次指纹识别成功后整批签名（格式见{@link ChallengeBatch}），每个挑战的future都以同一个签好的批次完成。
+ *
+ * 用法：通过{@link FingerprintCore#setChallengeSigner(ChallengeSigner)}关联后，有排队的挑战时识别绑定签名用的
+ * CryptoObject，识别成功后自动签名；有新挑战时回调{@link Listener#onAuthorizationRequired(int)}，由界面发起识别。
+ * 私钥每次使用都需要认证，一次识别只能签一次，所以一批的挑战数不超过{@link ChallengeBatch#MAX_CHALLENGES}。
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class ChallengeSigner {
+
+    public static final String DEFAULT_KEY_NAME = "crypto_object_fingerprint_sign_key";
+    private static final String EC_CURVE = "secp256r1";
+
+    public interface Listener {
+        /** 有排队的挑战等待签名，需要一次指纹识别 */
+        void onAuthorizationRequired(int pendingCount);
+
+        /**
+         * 录入新指纹后签名秘钥永久失效，已经生成了新的秘钥对，新公钥需要重新注册到服务端，在后台线程回调
+         * @param publicKey X.509格式的新公钥
+         */
+        void onKeyRegenerated(byte[] publicKey);
+    }
+
+    private static final class Pending {
+        final byte[] mChallenge;
+        final CoreFuture<ChallengeBatch> mFuture = new CoreFuture<>();
+
+        Pending(byte[] challenge) {
+            mChallenge = challenge;
+        }
+    }
+
+    private final String mAlias;
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+    private volatile Listener mListener;
+
+    /** KeyStore不是线程安全的，由mKeyLock保护 */
+    private final Object mKeyLock = new Object();
+    private KeyStore mKeyStore;
+
+    public ChallengeSigner() {
+        this(DEFAULT_KEY_NAME);
+    }
+
+    /**
+     * @param alias 签名秘钥的别名，多账号时每个账号一个
+     */
+    public ChallengeSigner(String alias) {
+        mAlias = alias;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 导出公钥用于注册，秘钥对不存在时生成。导出公钥不需要认证，会访问KeyStore，不要在主线程调用
+     * @return X.509格式的公钥
+     */
+    public byte[] exportPublicKey() throws GeneralSecurityException, IOException {
+        synchronized (mKeyLock) {
+            KeyStore keyStore = getKeyStore();
+            if (!keyStore.containsAlias(mAlias)) {
+                createKeyPair();
+            }
+            Certificate certificate = keyStore.getCertificate(mAlias);
+            if (certificate == null) {
+                throw new GeneralSecurityException("no certificate for " + mAlias);
+            }
+            return certificate.getPublicKey().getEncoded();
+        }
+    }
+
+    /**
+     * 创建已经initSign的CryptoObject交给authenticate()，秘钥永久失效时重新生成秘钥对并通知重新注册
+     * @return 创建失败时返回null
+     */
+    public FingerprintManager.CryptoObject createSignCryptoObject() {
+        long startNanos = System.nanoTime();
+        byte[] regeneratedPublicKey = null;
+        Signature signature;
+        synchronized (mKeyLock) {
+            try {
+                signature = Signature.getInstance(ChallengeBatch.SIGNATURE_ALGORITHM);
+                KeyStore keyStore = getKeyStore();
+                if (!keyStore.containsAlias(mAlias)) {
+                    createKeyPair();
+                }
+                try {
+                    signature.initSign((PrivateKey) keyStore.getKey(mAlias, null));
+                } catch (KeyPermanentlyInvalidatedException e) {
+                    // 录入了新指纹或者修改了锁屏，旧公钥在服务端已经没有用了
+                    FPLog.log(FPLog.WARN, "Signing key permanently invalidated, regenerate it.");
+                    keyStore.deleteEntry(mAlias);
+                    createKeyPair();
+                    signature.initSign((PrivateKey) keyStore.getKey(mAlias, null));
+                    regeneratedPublicKey = keyStore.getCertificate(mAlias).getPublicKey().getEncoded();
+                }
+            } catch (GeneralSecurityException | IOException e) {
+                FPLog.log(FPLog.ERROR, "Failed to init Signature, e:{}", e);
+                return null;
+            }
+        }
+        AuthMetrics.get().cipherInit.recordSince(startNanos);
+        Listener listener = mListener;
+        if (regeneratedPublicKey != null && listener != null) {
+            listener.onKeyRegenerated(regeneratedPublicKey);
+        }
+        return new FingerprintManager.CryptoObject(signature);
+    }
+
+    /**
+     * 排队等待下一次识别成功后签名
+     * @return 以包含这个挑战的已签名批次完成
+     */
+    public CoreFuture<ChallengeBatch> enqueue(byte[] challenge) {
+        if (challenge.length == 0 || challenge.length > ChallengeBatch.MAX_CHALLENGE_LENGTH) {
+            throw new IllegalArgumentException("challenge length out of range: " + challenge.length);
+        }
+        Pending pending = new Pending(challenge.clone());
+        int pendingCount;
+        synchronized (mQueue) {
+            mQueue.add(pending);
+            pendingCount = mQueue.size();
+        }
+        Listener listener = mListener;
+        if (pendingCount == 1 && listener != null) {
+            // 只在队列从空变为非空时通知，一次识别会签掉之后进来的挑战
+            listener.onAuthorizationRequired(pendingCount);
+        }
+        return pending.mFuture;
+    }
+
+    public int getPendingCount() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * 识别成功后调用，在后台用通过认证的Signature签名排队的挑战；crypto不是Signature时不做任何事。
+     * 超过一批上限的挑战继续排队，并再次要求认证
+     * @param crypto 识别成功回调中的加密对象
+     */
+    public void onAuthenticated(Object crypto) {
+        if (!(crypto instanceof Signature)) {
+            return;
+        }
+        final Signature signature = (Signature) crypto;
+        final List<Pending> batch = new ArrayList<>();
+        synchronized (mQueue) {
+            while (!mQueue.isEmpty() && batch.size() < ChallengeBatch.MAX_CHALLENGES) {
+                Pending pending = mQueue.poll();
+                if (!pending.mFuture.isDone()) {
+                    batch.add(pending);
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                sign(signature, batch);
+            }
+        });
+    }
+
+    private void sign(Signature signature, List<Pending> batch) {
+        List<byte[]> challenges = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            challenges.add(pending.mChallenge);
+        }
+        ChallengeBatch signed = new ChallengeBatch(challenges);
+        try {
+            signed.sign(signature);
+        } catch (GeneralSecurityException e) {
+            // 认证已经失效（例如签名前被取消），放回队首等下一次认证
+            FPLog.log(FPLog.ERROR, "Failed to sign challenges, e:{}", e);
+            synchronized (mQueue) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    mQueue.addFirst(batch.get(i));
+                }
+            }
+            notifyAuthorizationRequired();
+            return;
+        }
+        FPLog.log(FPLog.DEBUG, "signed {} challenges", batch.size());
+        for (Pending pending : batch) {
+            pending.mFuture.complete(signed);
+        }
+        notifyAuthorizationRequired();
+    }
+
+    private void notifyAuthorizationRequired() {
+        int pendingCount = getPendingCount();
+        Listener listener = mListener;
+        if (pendingCount > 0 && listener != null) {
+            listener.onAuthorizationRequired(pendingCount);
+        }
+    }
+
+    /**
+     * 取消所有排队的挑战
+     */
+    public void clear() {
+        Pending[] pendings;
+        synchronized (mQueue) {
+            pendings = mQueue.toArray(new Pending[mQueue.size()]);
+            mQueue.clear();
+        }
+        for (Pending pending : pendings) {
+            pending.mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * 删除秘钥对，例如账号退出登录时；服务端的公钥也应当注销
+     */
+    public void deleteKey() {
+        synchronized (mKeyLock) {
+            try {
+                getKeyStore().deleteEntry(mAlias);
+            } catch (GeneralSecurityException | IOException e) {
+                FPLog.log(FPLog.ERROR, "Failed to delete signing key, e:{}", e);
+            }
+        }
+    }
+
+    /**
+     * 调用方持有mKeyLock
+     */
+    private void createKeyPair() throws GeneralSecurityException {
+        long startNanos = System.nanoTime();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+        generator.initialize(new KeyGenParameterSpec.Builder(mAlias, KeyProperties.PURPOSE_SIGN)
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec(EC_CURVE))
+                // 每次签名都需要指纹认证
+                .setUserAuthenticationRequired(true)
+                .build());
+        generator.generateKeyPair();
+        AuthMetrics.get().keyCreation.recordSince(startNanos);
+    }
+
+    /**
+     * 只加载一次，调用方持有mKeyLock
+     */
+    private KeyStore getKeyStore() throws GeneralSecurityException, IOException {
+        if (mKeyStore == null) {
+            KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+            keyStore.load(null);
+            mKeyStore = keyStore;
+        }
+        return mKeyStore;
+    }
+}
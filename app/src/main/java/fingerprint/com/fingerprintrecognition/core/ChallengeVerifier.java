@@ -0,0 +1,76 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 本地的服务端替身，用于联调和压测：用注册时上传的公钥验证{@link ChallengeBatch}的签名，
+ * 挑战由这里发出，只能使用一次，防止重放。真实服务端按同样的逻辑实现
+ */
+public class ChallengeVerifier {
+
+    public static final int CHALLENGE_LENGTH = 32;
+
+    private final PublicKey mPublicKey;
+    private final SecureRandom mRandom = new SecureRandom();
+    /** 以下字段由this保护 */
+    private final Signature mSignature;
+    private final Set<ByteBuffer> mOutstanding = new HashSet<>();
+
+    /**
+     * @param encodedPublicKey X.509格式的公钥，即{@link ChallengeSigner#exportPublicKey()}的结果
+     */
+    public ChallengeVerifier(byte[] encodedPublicKey) throws GeneralSecurityException {
+        mPublicKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encodedPublicKey));
+        mSignature = Signature.getInstance(ChallengeBatch.SIGNATURE_ALGORITHM);
+    }
+
+    /**
+     * 发出一个新的随机挑战
+     */
+    public synchronized byte[] issueChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        mRandom.nextBytes(challenge);
+        mOutstanding.add(ByteBuffer.wrap(challenge));
+        return challenge;
+    }
+
+    /**
+     * 发出还没有验证过的挑战数
+     */
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+    /**
+     * 签名正确、每个挑战都是这里发出且没有使用过时通过，通过后这些挑战作废；不通过时不影响任何挑战
+     */
+    public synchronized boolean verify(ChallengeBatch batch) throws GeneralSecurityException {
+        byte[] signature = batch.getSignature();
+        if (signature == null) {
+            return false;
+        }
+        List<byte[]> challenges = batch.getChallenges();
+        Set<ByteBuffer> seen = new HashSet<>(challenges.size() * 2);
+        for (byte[] challenge : challenges) {
+            ByteBuffer key = ByteBuffer.wrap(challenge);
+            if (!mOutstanding.contains(key) || !seen.add(key)) {
+                return false;
+            }
+        }
+        mSignature.initVerify(mPublicKey);
+        if (!batch.verify(mSignature, signature)) {
+            return false;
+        }
+        mOutstanding.removeAll(seen);
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * 流式加解密：按固定大小分块读取，通过Cipher.update写入复用的ByteBuffer，
+ * 内存占用只和分块大小有关，与数据大小无关，适合几百MB的附件。
+ *
+ * 输入输出可以是任意Channel（包括FileChannel），缓冲区可以选择direct buffer。
+ * 软件实现的Cipher处理direct buffer时内部还要再拷贝到数组，所以默认使用heap buffer，
+ * 只有Channel读写的开销占主要部分时才建议使用direct buffer（见CipherStreamBenchmark）。
+ * 一个实例只能在一个线程中使用。
+ */
+public class CipherStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int mChunkSize;
+    private final boolean mDirect;
+    private final ByteBuffer mInput;
+    private ByteBuffer mOutput;
+
+    public CipherStream() {
+        this(DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * @param chunkSize 每次update处理的字节数
+     * @param direct    是否使用direct buffer
+     */
+    public CipherStream(int chunkSize, boolean direct) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mChunkSize = chunkSize;
+        mDirect = direct;
+        mInput = allocate(chunkSize);
+        // 分组密码的输出最多比输入多两个分组，第一次使用时按实际Cipher再调整
+        mOutput = allocate(chunkSize + 32);
+    }
+
+    /**
+     * 读取in直到结束，用已经初始化好的cipher（例如识别成功后的CryptoObject中的Cipher）处理后写入out
+     * @return 写入out的字节数
+     */
+    public long transfer(Cipher cipher, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        ensureOutputCapacity(cipher.getOutputSize(mChunkSize));
+        ByteBuffer input = mInput;
+        long written = 0;
+        while (true) {
+            input.clear();
+            boolean eof = fill(in, input);
+            input.flip();
+            if (eof) {
+                // GCM解密时前面的数据都缓存在Cipher里，doFinal才一次性输出
+                ensureOutputCapacity(cipher.getOutputSize(input.remaining()));
+            }
+            ByteBuffer output = mOutput;
+            output.clear();
+            if (eof) {
+                cipher.doFinal(input, output);
+            } else {
+                cipher.update(input, output);
+            }
+            output.flip();
+            written += writeFully(out, output);
+            if (eof) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * 加密并在数据前写入{@link CryptoEnvelope}的头部（版本、模式、IV），密文和GCM的tag紧跟在后面
+     */
+    public long encrypt(Cipher encryptCipher, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = encryptCipher.getIV();
+        ByteBuffer header = ByteBuffer.allocate(CryptoEnvelope.headerSize(iv == null ? 0 : iv.length));
+        CryptoEnvelope.writeHeader(CryptoEnvelope.modeOf(encryptCipher), iv, header);
+        header.flip();
+        long written = writeFully(out, header);
+        return written + transfer(encryptCipher, in, out);
+    }
+
+    /**
+     * 读取{@link #encrypt}写入的头部，用{@link CryptoEnvelope#newParameterSpec()}初始化解密的Cipher，
+     * 之后再用{@link #transfer}解密剩余数据。
+     * 注意GCM解密要校验完tag才会输出明文，数据会在Cipher内部缓存到doFinal，内存占用与数据大小相关，
+     * 很大的文件建议分段加密或者使用CBC。
+     */
+    public static CryptoEnvelope readHeader(ReadableByteChannel in) throws IOException, GeneralSecurityException {
+        ByteBuffer prefix = ByteBuffer.allocate(CryptoEnvelope.PREFIX_SIZE);
+        if (fill(in, prefix)) {
+            throw new EOFException("truncated envelope header");
+        }
+        prefix.flip();
+        ByteBuffer header = ByteBuffer.allocate(CryptoEnvelope.headerSizeOf(prefix));
+        header.put(prefix);
+        if (fill(in, header)) {
+            throw new EOFException("truncated envelope header");
+        }
+        header.flip();
+        return CryptoEnvelope.parseHeader(header);
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (mOutput.capacity() < capacity) {
+            mOutput = allocate(capacity);
+        }
+    }
+
+    /**
+     * 读满buffer或者读到结束
+     * @return 是否读到了结束
+     */
+    private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,62 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * core包内秘钥、加密相关的后台任务统一在这里执行，默认是一个有界、具名的守护线程池，
+ * 可以通过{@link #setExecutor(Executor)}替换成应用自己的线程池
+ */
+public class CoreExecutors {
+
+    private static final int MAX_POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile Executor sExecutor;
+
+    public static Executor getExecutor() {
+        Executor executor = sExecutor;
+        if (executor == null) {
+            synchronized (CoreExecutors.class) {
+                executor = sExecutor;
+                if (executor == null) {
+                    executor = createDefaultExecutor();
+                    sExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 替换core包使用的线程池，需要在第一次使用指纹识别之前调用，传null恢复默认线程池
+     */
+    public static void setExecutor(Executor executor) {
+        sExecutor = executor;
+    }
+
+    public static void execute(Runnable runnable) {
+        getExecutor().execute(runnable);
+    }
+
+    private static Executor createDefaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_POOL_SIZE, MAX_POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "FingerprintLogic:Worker-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
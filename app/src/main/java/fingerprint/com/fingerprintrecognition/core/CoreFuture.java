@@ -0,0 +1,241 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 可以手动完成、支持完成回调的Future，用于在不阻塞调用线程的情况下等待后台初始化等结果。
+ * 可以用{@link #thenApply}、{@link #thenCompose}串联后续的解密、网络请求等步骤，
+ * 取消下游的Future会一直取消到最上游（例如正在进行的指纹识别）
+ */
+public class CoreFuture<T> implements Future<T> {
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    public interface Listener<T> {
+        /**
+         * 完成时回调，在完成Future的线程上执行；如果添加时已经完成则立即在当前线程执行
+         */
+        void onComplete(CoreFuture<T> future);
+    }
+
+    public interface Function<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    public interface AsyncFunction<T, R> {
+        CoreFuture<R> apply(T value) throws Exception;
+    }
+
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+    private final List<Listener<T>> mListeners = new ArrayList<>();
+    private int mState = PENDING;
+    private T mValue;
+    private Throwable mFailure;
+
+    public boolean complete(T value) {
+        return finish(COMPLETED, value, null);
+    }
+
+    public boolean completeExceptionally(Throwable failure) {
+        return finish(FAILED, null, failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+
+    private boolean finish(int state, T value, Throwable failure) {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = state;
+            mValue = value;
+            mFailure = failure;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        mDoneLatch.countDown();
+        for (Listener<T> listener : listeners) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public void removeListener(Listener<T> listener) {
+        synchronized (this) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * 正常完成后在完成Future的线程上执行fn，失败和取消直接传给返回的Future
+     */
+    public <R> CoreFuture<R> thenApply(Function<? super T, ? extends R> fn) {
+        return thenApply(fn, null);
+    }
+
+    /**
+     * 同{@link #thenApply(Function)}，fn在executor上执行，用于耗时的步骤
+     */
+    public <R> CoreFuture<R> thenApply(final Function<? super T, ? extends R> fn, final Executor executor) {
+        final CoreFuture<R> next = new CoreFuture<>();
+        propagateCancel(next, this);
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(final CoreFuture<T> future) {
+                if (!future.forwardFailure(next)) {
+                    return;
+                }
+                Runnable apply = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            next.complete(fn.apply(future.mValue));
+                        } catch (Exception e) {
+                            next.completeExceptionally(e);
+                        }
+                    }
+                };
+                if (executor == null) {
+                    apply.run();
+                } else {
+                    executor.execute(apply);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * 正常完成后用结果启动下一个异步步骤，返回的Future在下一个步骤完成时完成
+     */
+    public <R> CoreFuture<R> thenCompose(final AsyncFunction<? super T, R> fn) {
+        final CoreFuture<R> next = new CoreFuture<>();
+        propagateCancel(next, this);
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(CoreFuture<T> future) {
+                if (!future.forwardFailure(next)) {
+                    return;
+                }
+                CoreFuture<R> stage;
+                try {
+                    stage = fn.apply(future.mValue);
+                } catch (Exception e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                if (stage == null) {
+                    next.completeExceptionally(new NullPointerException("stage is null"));
+                    return;
+                }
+                propagateCancel(next, stage);
+                stage.addListener(new Listener<R>() {
+                    @Override
+                    public void onComplete(CoreFuture<R> stage) {
+                        if (stage.forwardFailure(next)) {
+                            next.complete(stage.mValue);
+                        }
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * 已完成的Future失败或者被取消时把结果传给target
+     * @return 是否正常完成
+     */
+    private synchronized boolean forwardFailure(CoreFuture<?> target) {
+        if (mState == FAILED) {
+            target.completeExceptionally(mFailure);
+        } else if (mState == CANCELLED) {
+            target.cancel(false);
+        }
+        return mState == COMPLETED;
+    }
+
+    /**
+     * 下游被取消时取消上游
+     */
+    private static <U> void propagateCancel(CoreFuture<U> downstream, final CoreFuture<?> upstream) {
+        downstream.addListener(new Listener<U>() {
+            @Override
+            public void onComplete(CoreFuture<U> future) {
+                if (future.isCancelled()) {
+                    upstream.cancel(false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    public synchronized boolean isCompletedNormally() {
+        return mState == COMPLETED;
+    }
+
+    /**
+     * 已经正常完成时返回结果，否则返回defaultValue，不会阻塞
+     */
+    public synchronized T getNow(T defaultValue) {
+        return mState == COMPLETED ? mValue : defaultValue;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDoneLatch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDoneLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mFailure);
+        }
+        return mValue;
+    }
+}
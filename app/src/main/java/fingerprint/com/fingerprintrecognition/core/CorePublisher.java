@@ -0,0 +1,204 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按需推送的事件流，接口和java.util.concurrent.Flow一致（Flow需要Java 9，这里自己定义）：
+ * 订阅者通过{@link Subscription#request(long)}声明还能处理多少个事件，没有需求时事件暂存在有界缓冲区中，
+ * 缓冲区满了丢弃最旧的事件，不会阻塞发布线程（识别回调线程）。
+ * 事件在发布线程或者调用request的线程上按顺序回调，同一个订阅者不会并发收到回调。
+ */
+public class CorePublisher<T> {
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /** 还能处理n个事件，可以多次调用，累加 */
+        void request(long n);
+
+        void cancel();
+    }
+
+    private final int mBufferSize;
+    private final CopyOnWriteArrayList<SubscriptionImpl> mSubscriptions = new CopyOnWriteArrayList<>();
+    /** 以下字段由this保护 */
+    private boolean mDone;
+    private Throwable mFailure;
+
+    /**
+     * @param bufferSize 每个订阅者最多暂存的事件数
+     */
+    public CorePublisher(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * 已经结束时立即收到onComplete或者onError
+     */
+    public void subscribe(Subscriber<? super T> subscriber) {
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+        boolean done;
+        Throwable failure;
+        synchronized (this) {
+            done = mDone;
+            failure = mFailure;
+            if (!done) {
+                mSubscriptions.add(subscription);
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        if (done) {
+            subscription.terminate(failure);
+        }
+    }
+
+    public void publish(T item) {
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    public void complete() {
+        terminate(null);
+    }
+
+    public void error(Throwable failure) {
+        terminate(failure);
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    private void terminate(Throwable failure) {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mFailure = failure;
+        }
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.terminate(failure);
+        }
+        mSubscriptions.clear();
+    }
+
+    private final class SubscriptionImpl implements Subscription {
+        private final Subscriber<? super T> mSubscriber;
+        /** 保证同一时刻只有一个线程在回调订阅者 */
+        private final AtomicInteger mWip = new AtomicInteger();
+        /** 以下字段由this保护 */
+        private final ArrayDeque<T> mBuffer = new ArrayDeque<>();
+        private long mDemand;
+        private boolean mCancelled;
+        private boolean mTerminated;
+        private Throwable mFailure;
+        private boolean mTerminalDelivered;
+
+        SubscriptionImpl(Subscriber<? super T> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // 与Reactive Streams规范3.9一致
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+            synchronized (this) {
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mBuffer.clear();
+            }
+            mSubscriptions.remove(this);
+        }
+
+        void offer(T item) {
+            synchronized (this) {
+                if (mCancelled || mTerminated) {
+                    return;
+                }
+                if (mBuffer.size() == mBufferSize) {
+                    mBuffer.poll();
+                }
+                mBuffer.add(item);
+            }
+            drain();
+        }
+
+        void terminate(Throwable failure) {
+            synchronized (this) {
+                if (mTerminated) {
+                    return;
+                }
+                mTerminated = true;
+                mFailure = failure;
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (mWip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                while (true) {
+                    T item;
+                    synchronized (this) {
+                        if (mCancelled || mDemand == 0 || mBuffer.isEmpty()) {
+                            break;
+                        }
+                        item = mBuffer.poll();
+                        mDemand--;
+                    }
+                    mSubscriber.onNext(item);
+                }
+                boolean deliverTerminal;
+                Throwable failure;
+                synchronized (this) {
+                    // 缓冲的事件都交付之后才结束
+                    deliverTerminal = mTerminated && !mTerminalDelivered && !mCancelled && mBuffer.isEmpty();
+                    if (deliverTerminal) {
+                        mTerminalDelivered = true;
+                    }
+                    failure = mFailure;
+                }
+                if (deliverTerminal) {
+                    if (failure == null) {
+                        mSubscriber.onComplete();
+                    } else {
+                        mSubscriber.onError(failure);
+                    }
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * 加密数据的二进制信封格式，保存解密需要的全部参数：
+ * <pre>
+ * | version(1) | mode(1) | ivLength(1) | tagLength(1) | iv | cipherText | tag |             VERSION_1
+ * | version(1) | mode(1) | ivLength(1) | tagLength(1) | keyVersion(1) | iv | cipherText | tag | VERSION_2
+ * </pre>
+ * 秘钥会轮换时使用VERSION_2记录加密所用的秘钥版本，解密时据此选择秘钥。
+ * GCM模式下tag由Cipher直接附加在密文后面；CBC模式没有tag（tagLength为0），完整性需要另外计算MAC。
+ *
+ * 解析时不拷贝数据，iv和密文都是原始buffer的切片。
+ */
+public final class CryptoEnvelope {
+
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    /** VERSION_1没有秘钥版本 */
+    public static final int NO_KEY_VERSION = 0;
+    public static final int MAX_KEY_VERSION = 0xff;
+
+    /** 所有版本共有的头部前缀长度，读取前缀后可以用{@link #headerSizeOf(ByteBuffer)}得到完整头部长度 */
+    public static final int PREFIX_SIZE = 4;
+
+    public static final int MODE_CBC = 0;
+    public static final int MODE_GCM = 1;
+
+    /** GCM认证tag长度（字节） */
+    public static final int GCM_TAG_LENGTH = 16;
+    public static final int GCM_IV_LENGTH = 12;
+
+    private final int mVersion;
+    private final int mMode;
+    private final int mTagLength;
+    private final int mKeyVersion;
+    private final ByteBuffer mIv;
+    private final ByteBuffer mPayload;
+
+    private CryptoEnvelope(int version, int mode, int tagLength, int keyVersion, ByteBuffer iv, ByteBuffer payload) {
+        mVersion = version;
+        mMode = mode;
+        mTagLength = tagLength;
+        mKeyVersion = keyVersion;
+        mIv = iv;
+        mPayload = payload;
+    }
+
+    /**
+     * 解析buffer中从position到limit的信封，不修改buffer的position
+     * @throws GeneralSecurityException 格式错误或者版本不支持
+     */
+    public static CryptoEnvelope parse(ByteBuffer buffer) throws GeneralSecurityException {
+        return parse(buffer, true);
+    }
+
+    /**
+     * 只解析头部（流式数据的密文不在buffer中），{@link #getPayload()}为空
+     */
+    public static CryptoEnvelope parseHeader(ByteBuffer buffer) throws GeneralSecurityException {
+        return parse(buffer, false);
+    }
+
+    private static CryptoEnvelope parse(ByteBuffer buffer, boolean withPayload) throws GeneralSecurityException {
+        ByteBuffer data = buffer.slice();
+        if (data.remaining() < PREFIX_SIZE) {
+            throw new GeneralSecurityException("envelope too short");
+        }
+        int version = data.get() & 0xff;
+        int mode = data.get() & 0xff;
+        int ivLength = data.get() & 0xff;
+        int tagLength = data.get() & 0xff;
+        checkHeader(version, mode, tagLength);
+        int keyVersion = NO_KEY_VERSION;
+        if (version == VERSION_2) {
+            if (!data.hasRemaining()) {
+                throw new GeneralSecurityException("envelope truncated");
+            }
+            keyVersion = data.get() & 0xff;
+        }
+        if (data.remaining() < ivLength + (withPayload ? tagLength : 0)) {
+            throw new GeneralSecurityException("envelope truncated");
+        }
+        ByteBuffer iv = slice(data, ivLength);
+        ByteBuffer payload = withPayload ? data.slice() : slice(data, 0);
+        return new CryptoEnvelope(version, mode, tagLength, keyVersion, iv, payload);
+    }
+
+    public static CryptoEnvelope parse(byte[] envelope) throws GeneralSecurityException {
+        return parse(ByteBuffer.wrap(envelope));
+    }
+
+    /**
+     * @param keyVersion 秘钥版本，{@link #NO_KEY_VERSION}时使用VERSION_1格式
+     * @return 头部的长度
+     */
+    public static int headerSize(int ivLength, int keyVersion) {
+        return PREFIX_SIZE + (keyVersion == NO_KEY_VERSION ? 0 : 1) + ivLength;
+    }
+
+    public static int headerSize(int ivLength) {
+        return headerSize(ivLength, NO_KEY_VERSION);
+    }
+
+    /**
+     * 根据已读取的{@link #PREFIX_SIZE}字节前缀计算完整的头部长度，用于流式读取
+     */
+    public static int headerSizeOf(ByteBuffer prefix) {
+        int version = prefix.get(prefix.position()) & 0xff;
+        int ivLength = prefix.get(prefix.position() + 2) & 0xff;
+        return PREFIX_SIZE + (version == VERSION_2 ? 1 : 0) + ivLength;
+    }
+
+    /**
+     * 把头部写入out
+     * @param keyVersion 秘钥版本，{@link #NO_KEY_VERSION}时使用VERSION_1格式
+     */
+    public static void writeHeader(int mode, int keyVersion, byte[] iv, ByteBuffer out) {
+        if (keyVersion < NO_KEY_VERSION || keyVersion > MAX_KEY_VERSION) {
+            throw new IllegalArgumentException("bad key version " + keyVersion);
+        }
+        int ivLength = iv == null ? 0 : iv.length;
+        out.put((byte) (keyVersion == NO_KEY_VERSION ? VERSION_1 : VERSION_2));
+        out.put((byte) mode);
+        out.put((byte) ivLength);
+        out.put((byte) tagLengthOf(mode));
+        if (keyVersion != NO_KEY_VERSION) {
+            out.put((byte) keyVersion);
+        }
+        if (ivLength > 0) {
+            out.put(iv);
+        }
+    }
+
+    public static void writeHeader(int mode, byte[] iv, ByteBuffer out) {
+        writeHeader(mode, NO_KEY_VERSION, iv, out);
+    }
+
+    /**
+     * 用已初始化为ENCRYPT_MODE的cipher加密，头部和密文写入同一个数组，只分配一次
+     */
+    public static byte[] seal(Cipher encryptCipher, byte[] plainText) throws GeneralSecurityException {
+        return seal(encryptCipher, NO_KEY_VERSION, plainText);
+    }
+
+    /**
+     * 同{@link #seal(Cipher, byte[])}，并在头部记录秘钥版本
+     */
+    public static byte[] seal(Cipher encryptCipher, int keyVersion, byte[] plainText) throws GeneralSecurityException {
+        int mode = modeOf(encryptCipher);
+        byte[] iv = encryptCipher.getIV();
+        int headerSize = headerSize(iv == null ? 0 : iv.length, keyVersion);
+        byte[] result = new byte[headerSize + encryptCipher.getOutputSize(plainText.length)];
+        writeHeader(mode, keyVersion, iv, ByteBuffer.wrap(result));
+        int length = encryptCipher.doFinal(plainText, 0, plainText.length, result, headerSize);
+        if (headerSize + length == result.length) {
+            return result;
+        }
+        byte[] trimmed = new byte[headerSize + length];
+        System.arraycopy(result, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    /**
+     * 用已初始化为DECRYPT_MODE的cipher（参数来自{@link #newParameterSpec()}）解密
+     */
+    public byte[] open(Cipher decryptCipher) throws GeneralSecurityException {
+        ByteBuffer payload = mPayload.duplicate();
+        ByteBuffer output = ByteBuffer.allocate(decryptCipher.getOutputSize(payload.remaining()));
+        decryptCipher.doFinal(payload, output);
+        if (output.position() == output.capacity()) {
+            return output.array();
+        }
+        byte[] result = new byte[output.position()];
+        System.arraycopy(output.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * 解密时初始化Cipher需要的参数：GCM为GCMParameterSpec，CBC为IvParameterSpec
+     */
+    public AlgorithmParameterSpec newParameterSpec() {
+        ByteBuffer iv = mIv;
+        byte[] array;
+        int offset;
+        if (iv.hasArray()) {
+            array = iv.array();
+            offset = iv.arrayOffset() + iv.position();
+        } else {
+            // direct buffer只能拷贝出IV，IV只有十几个字节
+            array = new byte[iv.remaining()];
+            iv.duplicate().get(array);
+            offset = 0;
+        }
+        if (mMode == MODE_GCM) {
+            return new GCMParameterSpec(mTagLength * 8, array, offset, iv.remaining());
+        }
+        return new IvParameterSpec(array, offset, iv.remaining());
+    }
+
+    /**
+     * 根据Cipher的算法名判断模式，例如 AES/GCM/NoPadding
+     */
+    public static int modeOf(Cipher cipher) {
+        return cipher.getAlgorithm().toUpperCase().contains("/GCM/") ? MODE_GCM : MODE_CBC;
+    }
+
+    public static int tagLengthOf(int mode) {
+        return mode == MODE_GCM ? GCM_TAG_LENGTH : 0;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getTagLength() {
+        return mTagLength;
+    }
+
+    /** 加密所用的秘钥版本，VERSION_1格式为{@link #NO_KEY_VERSION} */
+    public int getKeyVersion() {
+        return mKeyVersion;
+    }
+
+    /** IV的只读切片 */
+    public ByteBuffer getIv() {
+        return mIv.asReadOnlyBuffer();
+    }
+
+    public byte[] getIvBytes() {
+        byte[] iv = new byte[mIv.remaining()];
+        mIv.duplicate().get(iv);
+        return iv;
+    }
+
+    /** 密文（GCM模式包含末尾的tag）的只读切片 */
+    public ByteBuffer getPayload() {
+        return mPayload.asReadOnlyBuffer();
+    }
+
+    /** GCM的tag的只读切片，CBC模式或者只解析了头部时为空 */
+    public ByteBuffer getTag() {
+        if (mPayload.remaining() < mTagLength) {
+            return slice(mPayload.duplicate(), 0).asReadOnlyBuffer();
+        }
+        ByteBuffer tag = mPayload.duplicate();
+        tag.position(tag.limit() - mTagLength);
+        return tag.slice().asReadOnlyBuffer();
+    }
+
+    private static void checkHeader(int version, int mode, int tagLength) throws GeneralSecurityException {
+        if (version != VERSION_1 && version != VERSION_2) {
+            throw new GeneralSecurityException("unsupported envelope version " + version);
+        }
+        if (mode != MODE_CBC && mode != MODE_GCM) {
+            throw new GeneralSecurityException("unsupported cipher mode " + mode);
+        }
+        if (tagLength != tagLengthOf(mode)) {
+            throw new GeneralSecurityException("bad tag length " + tagLength);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int length) {
+        ByteBuffer slice = data.slice();
+        slice.limit(length);
+        data.position(data.position() + length);
+        return slice;
+    }
+}
@@ -4,9 +4,9 @@ import android.annotation.TargetApi;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
-import android.util.Log;
 
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
@@ -14,12 +14,18 @@ import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
 
 import fingerprint.com.fingerprintrecognition.log.FPLog;
 
@@ -30,21 +36,66 @@ import fingerprint.com.fingerprintrecognition.log.FPLog;
 @TargetApi(Build.VERSION_CODES.M)
 public class CryptoObjectCreator {
 
+    /** CBC秘钥沿用原来的别名，已经用它加密过的数据仍然可以解密 */
     private static final String KEY_NAME = "crypto_object_fingerprint_key";
+    private static final String GCM_KEY_NAME = "crypto_object_fingerprint_gcm_key";
+    /** 第1版秘钥的别名即KEY_NAME、GCM_KEY_NAME，之后的版本加上"_v版本号"后缀 */
+    private static final String KEY_VERSION_SUFFIX = "_v";
+    private static final int FIRST_KEY_VERSION = 1;
 
-    private FingerprintManager.CryptoObject mCryptoObject;
+    /** AES/CBC/PKCS7Padding，没有完整性校验，需要另外计算MAC */
+    public static final int CIPHER_MODE_CBC = CryptoEnvelope.MODE_CBC;
+    /** AES/GCM/NoPadding，一次完成加密和认证，新秘钥默认使用 */
+    public static final int CIPHER_MODE_GCM = CryptoEnvelope.MODE_GCM;
+
+    /** 每次创建都重新生成秘钥（原有行为） */
+    public static final int PROVISION_ALWAYS_CREATE = 0;
+    /** 秘钥已存在且参数一致时直接复用，只有秘钥失效时才重新生成 */
+    public static final int PROVISION_REUSE = 1;
+
+    /** 冷加载：重新生成秘钥的次数 */
+    private static final AtomicInteger sColdKeyLoads = new AtomicInteger();
+    /** 热加载：复用已有秘钥的次数 */
+    private static final AtomicInteger sWarmKeyLoads = new AtomicInteger();
+    /** 发现秘钥永久失效的次数 */
+    private static final AtomicInteger sKeyInvalidations = new AtomicInteger();
+
+    private final int mProvisionMode;
+    private final int mCipherMode;
+    private volatile FingerprintManager.CryptoObject mCryptoObject;
     private KeyStore mKeyStore;
+    private volatile boolean mKeyStoreLoaded;
     private KeyGenerator mKeyGenerator;
     private Cipher mCipher;
+    private final CoreFuture<FingerprintManager.CryptoObject> mPreparedFuture = new CoreFuture<>();
+    /** 当前用于加密的秘钥版本，准备时从KeyStore中查找，秘钥失效时在this的锁内切换 */
+    private volatile int mKeyVersion = FIRST_KEY_VERSION;
+    /** 以下字段由this保护 */
+    private KeyInvalidationListener mKeyInvalidationListener;
+    /** 设置监听者之前（例如prewarm准备时）发生的失效，设置时补发 */
+    private int[] mUndeliveredInvalidation;
 
     public interface ICryptoObjectCreateListener {
         void onDataPrepared(FingerprintManager.CryptoObject cryptoObject);
     }
 
     public CryptoObjectCreator(ICryptoObjectCreateListener createListener) {
+        this(createListener, PROVISION_REUSE);
+    }
+
+    public CryptoObjectCreator(ICryptoObjectCreateListener createListener, int provisionMode) {
+        this(createListener, provisionMode, CIPHER_MODE_GCM);
+    }
+
+    /**
+     * @param cipherMode {@link #CIPHER_MODE_GCM}或者{@link #CIPHER_MODE_CBC}，两种模式使用不同的秘钥
+     */
+    public CryptoObjectCreator(ICryptoObjectCreateListener createListener, int provisionMode, int cipherMode) {
+        mProvisionMode = provisionMode;
+        mCipherMode = cipherMode;
         mKeyStore = providesKeystore();
         mKeyGenerator = providesKeyGenerator();
-        mCipher = providesCipher(mKeyStore);
+        mCipher = providesCipher(cipherMode);
         if (mKeyStore != null && mKeyGenerator != null && mCipher != null) {
             mCryptoObject = new FingerprintManager.CryptoObject(mCipher);
         }
@@ -52,26 +103,171 @@ public class CryptoObjectCreator {
     }
 
     private void prepareData(final ICryptoObjectCreateListener createListener) {
-        new Thread("FingerprintLogic:InitThread") {
+        CoreExecutors.execute(new Runnable() {
             @Override
             public void run() {
                 try {
                     if (mCryptoObject != null) {
-                        createKey();
+                        mKeyVersion = findLatestKeyVersion();
+                        provisionKey();
                         // Set up the crypto object for later. The object will be authenticated by use
                         // of the fingerprint.
                         if (!initCipher()) {
-                            FPLog.log("Failed to init Cipher.");
+                            // The key was invalidated by a new enrollment or a lock screen change.
+                            // Keep it and switch to a new version, so the caller can tell which data
+                            // needs to be enrolled again.
+                            onKeyInvalidated(mKeyVersion);
+                            if (!initCipher()) {
+                                // 不能把未初始化的Cipher交给authenticate()
+                                FPLog.log(FPLog.ERROR, "Failed to init Cipher.");
+                                mCryptoObject = null;
+                            }
                         }
                     }
                 } catch (Exception e) {
-                    FPLog.log(" Failed to init Cipher, e:" + Log.getStackTraceString(e));
+                    FPLog.log(FPLog.ERROR, "Failed to init Cipher, e:{}", e);
+                    mCryptoObject = null;
                 }
                 if (createListener != null) {
                     createListener.onDataPrepared(mCryptoObject);
                 }
+                mPreparedFuture.complete(mCryptoObject);
+            }
+        });
+    }
+
+    /**
+     * Makes sure a usable key exists for the selected cipher mode. In {@link #PROVISION_REUSE} mode an
+     * existing key is reused as long as its parameters still match, which skips the expensive
+     * key generation round-trip into the keystore.
+     */
+    private void provisionKey() {
+        if (mProvisionMode == PROVISION_REUSE && isExistingKeyUsable()) {
+            sWarmKeyLoads.incrementAndGet();
+            return;
+        }
+        createKey();
+    }
+
+    private boolean isExistingKeyUsable() {
+        try {
+            loadKeyStore();
+            String keyName = keyAliasOf(mCipherMode, mKeyVersion);
+            if (!mKeyStore.containsAlias(keyName)) {
+                return false;
+            }
+            SecretKey key = (SecretKey) mKeyStore.getKey(keyName, null);
+            if (key == null) {
+                return false;
+            }
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(key.getAlgorithm(), "AndroidKeyStore");
+            KeyInfo keyInfo = (KeyInfo) factory.getKeySpec(key, KeyInfo.class);
+            return isKeySpecMatched(keyInfo, mCipherMode);
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
+            FPLog.log(FPLog.ERROR, "Failed to load existing key, e:{}", e);
+            return false;
+        }
+    }
+
+    private static boolean isKeySpecMatched(KeyInfo keyInfo, int cipherMode) {
+        int purposes = KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT;
+        return keyInfo != null
+                && (keyInfo.getPurposes() & purposes) == purposes
+                && keyInfo.isUserAuthenticationRequired()
+                && Arrays.asList(keyInfo.getBlockModes()).contains(blockModeOf(cipherMode))
+                && Arrays.asList(keyInfo.getEncryptionPaddings()).contains(paddingOf(cipherMode));
+    }
+
+    /**
+     * KeyStore只需要加载一次
+     */
+    private synchronized void loadKeyStore() throws CertificateException, IOException, NoSuchAlgorithmException {
+        if (!mKeyStoreLoaded) {
+            mKeyStore.load(null);
+            mKeyStoreLoaded = true;
+        }
+    }
+
+    /**
+     * 当前模式下KeyStore中最新的秘钥版本，没有带版本的秘钥时为第1版
+     */
+    private int findLatestKeyVersion() throws KeyStoreException, CertificateException, IOException,
+            NoSuchAlgorithmException {
+        loadKeyStore();
+        String prefix = keyNameOf(mCipherMode) + KEY_VERSION_SUFFIX;
+        int latest = FIRST_KEY_VERSION;
+        Enumeration<String> aliases = mKeyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (alias.startsWith(prefix)) {
+                try {
+                    latest = Math.max(latest, Integer.parseInt(alias.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    FPLog.log(FPLog.WARN, "unknown key alias {}", alias);
+                }
             }
-        }.start();
+        }
+        return latest;
+    }
+
+    /**
+     * version版本的秘钥永久失效：保留它，生成新版本并通知监听者；其他线程已经切换过时直接返回当前版本
+     * @return 之后使用的版本
+     */
+    private int onKeyInvalidated(int version) {
+        int newVersion;
+        synchronized (this) {
+            if (version != mKeyVersion) {
+                return mKeyVersion;
+            }
+            newVersion = version + 1;
+            if (newVersion > CryptoEnvelope.MAX_KEY_VERSION) {
+                throw new IllegalStateException("key version overflow");
+            }
+            FPLog.log(FPLog.WARN, "Key v{} permanently invalidated, switch to v{}.", version, newVersion);
+            sKeyInvalidations.incrementAndGet();
+            createKey(newVersion);
+            mKeyVersion = newVersion;
+        }
+        notifyKeyInvalidated(version, newVersion);
+        return newVersion;
+    }
+
+    private void notifyKeyInvalidated(int oldVersion, int newVersion) {
+        KeyInvalidationListener listener;
+        synchronized (this) {
+            listener = mKeyInvalidationListener;
+            if (listener == null) {
+                // 连续失效多次时只需要知道最早失效的版本
+                int firstInvalidated = mUndeliveredInvalidation == null ? oldVersion : mUndeliveredInvalidation[0];
+                mUndeliveredInvalidation = new int[]{firstInvalidated, newVersion};
+                return;
+            }
+        }
+        listener.onKeyInvalidated(keyNameOf(mCipherMode), oldVersion, newVersion);
+    }
+
+    /**
+     * 秘钥永久失效时回调，设置之前已经发生的失效会在后台补发一次
+     */
+    public void setKeyInvalidationListener(final KeyInvalidationListener listener) {
+        final int[] undelivered;
+        synchronized (this) {
+            mKeyInvalidationListener = listener;
+            undelivered = listener == null ? null : mUndeliveredInvalidation;
+            if (undelivered != null) {
+                mUndeliveredInvalidation = null;
+            }
+        }
+        if (undelivered != null) {
+            CoreExecutors.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onKeyInvalidated(keyNameOf(mCipherMode), undelivered[0], undelivered[1]);
+                }
+            });
+        }
     }
 
     /**
@@ -79,26 +275,33 @@ public class CryptoObjectCreator {
      * authenticated with fingerprint.
      */
     private void createKey() {
+        createKey(mKeyVersion);
+    }
+
+    private void createKey(int version) {
         // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
         // for your flow. Use of keys is necessary if you need to know if the set of
         // enrolled fingerprints has changed.
+        long startNanos = System.nanoTime();
         try {
-            mKeyStore.load(null);
+            loadKeyStore();
             // Set the alias of the entry in Android KeyStore where the key will appear
             // and the constrains (purposes) in the constructor of the Builder
-            mKeyGenerator.init(new KeyGenParameterSpec.Builder(KEY_NAME,
+            mKeyGenerator.init(new KeyGenParameterSpec.Builder(keyAliasOf(mCipherMode, version),
                     KeyProperties.PURPOSE_ENCRYPT |
                             KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
+                    .setBlockModes(blockModeOf(mCipherMode))
                     // Require the user to authenticate with a fingerprint to authorize every use
                     // of the key
                     .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
+                    .setEncryptionPaddings(paddingOf(mCipherMode))
                     .build());
             mKeyGenerator.generateKey();
+            sColdKeyLoads.incrementAndGet();
+            AuthMetrics.get().keyCreation.recordSince(startNanos);
         } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException
                 | CertificateException | IOException e) {
-            FPLog.log(" Failed to createKey, e:" + Log.getStackTraceString(e));
+            FPLog.log(FPLog.ERROR, "Failed to createKey, e:{}", e);
             throw new RuntimeException(e);
         }
     }
@@ -112,21 +315,90 @@ public class CryptoObjectCreator {
      * the key was generated.
      */
     private boolean initCipher() {
+        long startNanos = System.nanoTime();
         try {
-            mKeyStore.load(null);
-            SecretKey key = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
+            loadKeyStore();
+            SecretKey key = (SecretKey) mKeyStore.getKey(keyAliasOf(mCipherMode, mKeyVersion), null);
             mCipher.init(Cipher.ENCRYPT_MODE, key);
+            AuthMetrics.get().cipherInit.recordSince(startNanos);
             return true;
         } catch (KeyPermanentlyInvalidatedException e) {
-            FPLog.log(" Failed to initCipher, e:" + Log.getStackTraceString(e));
+            FPLog.log(FPLog.ERROR, "Failed to initCipher, e:{}", e);
             return false;
         } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
                 | NoSuchAlgorithmException | InvalidKeyException e) {
-            FPLog.log(" Failed to initCipher, e :" + Log.getStackTraceString(e));
+            FPLog.log(FPLog.ERROR, "Failed to initCipher, e:{}", e);
             throw new RuntimeException("Failed to init Cipher", e);
         }
     }
 
+    /**
+     * Creates a CryptoObject with its own, freshly initialized encrypt {@link Cipher}, so every
+     * authentication gets a Cipher that has never been used. Used by {@link PreparedCryptoProvider}
+     * to prepare the next session in the background. If the current key version has been
+     * invalidated, a new version is created and reported to the {@link KeyInvalidationListener}.
+     * Seal the result with {@link #getKeyVersion()} so it can be decrypted with the right key.
+     *
+     * @return {@code null} if the key is not ready yet or cannot be used
+     */
+    public FingerprintManager.CryptoObject createEncryptCryptoObject() {
+        if (!mPreparedFuture.isDone() || mKeyStore == null) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            loadKeyStore();
+            int version = mKeyVersion;
+            SecretKey key = (SecretKey) mKeyStore.getKey(keyAliasOf(mCipherMode, version), null);
+            Cipher cipher = providesCipher(mCipherMode);
+            if (key == null || cipher == null) {
+                return null;
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key);
+            } catch (KeyPermanentlyInvalidatedException e) {
+                version = onKeyInvalidated(version);
+                cipher.init(Cipher.ENCRYPT_MODE, mKeyStore.getKey(keyAliasOf(mCipherMode, version), null));
+            }
+            AuthMetrics.get().cipherInit.recordSince(startNanos);
+            return new FingerprintManager.CryptoObject(cipher);
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeyException | RuntimeException e) {
+            FPLog.log(FPLog.ERROR, "Failed to create encrypt cipher, e:{}", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a CryptoObject whose {@link Cipher} decrypts the given envelope, produced by
+     * {@link CryptoEnvelope#seal} or {@link CipherStream#encrypt}. The key and the IV are taken
+     * from the envelope header, so data written in CBC mode stays readable after switching to GCM,
+     * and data sealed with an older key version stays readable as long as that version is valid.
+     * Hand it to authenticate() and open the envelope with the authenticated Cipher.
+     *
+     * @return {@code null} if the key is missing or has been invalidated
+     */
+    public FingerprintManager.CryptoObject createDecryptCryptoObject(CryptoEnvelope envelope) {
+        long startNanos = System.nanoTime();
+        try {
+            loadKeyStore();
+            SecretKey key = (SecretKey) mKeyStore.getKey(keyAliasOf(envelope.getMode(),
+                    keyVersionOf(envelope)), null);
+            if (key == null) {
+                return null;
+            }
+            Cipher cipher = providesCipher(envelope.getMode());
+            cipher.init(Cipher.DECRYPT_MODE, key, envelope.newParameterSpec());
+            AuthMetrics.get().cipherInit.recordSince(startNanos);
+            return new FingerprintManager.CryptoObject(cipher);
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException
+                | RuntimeException e) {
+            FPLog.log(FPLog.ERROR, "Failed to create decrypt cipher, e:{}", e);
+            return null;
+        }
+    }
+
     public static KeyStore providesKeystore() {
         try {
             return KeyStore.getInstance("AndroidKeyStore");
@@ -143,16 +415,79 @@ public class CryptoObjectCreator {
         }
     }
 
-    public static Cipher providesCipher(KeyStore keyStore) {
+    public static Cipher providesCipher(int cipherMode) {
         try {
             return Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/"
-                    + KeyProperties.BLOCK_MODE_CBC + "/"
-                    + KeyProperties.ENCRYPTION_PADDING_PKCS7);
+                    + blockModeOf(cipherMode) + "/"
+                    + paddingOf(cipherMode));
         } catch (Throwable e) {
             return null;
         }
     }
 
+    private static String keyNameOf(int cipherMode) {
+        return cipherMode == CIPHER_MODE_GCM ? GCM_KEY_NAME : KEY_NAME;
+    }
+
+    private static String keyAliasOf(int cipherMode, int version) {
+        return version == FIRST_KEY_VERSION
+                ? keyNameOf(cipherMode) : keyNameOf(cipherMode) + KEY_VERSION_SUFFIX + version;
+    }
+
+    /** VERSION_1格式的数据没有版本号，都是第1版秘钥加密的 */
+    private static int keyVersionOf(CryptoEnvelope envelope) {
+        int version = envelope.getKeyVersion();
+        return version == CryptoEnvelope.NO_KEY_VERSION ? FIRST_KEY_VERSION : version;
+    }
+
+    static String blockModeOf(int cipherMode) {
+        return cipherMode == CIPHER_MODE_GCM ? KeyProperties.BLOCK_MODE_GCM : KeyProperties.BLOCK_MODE_CBC;
+    }
+
+    static String paddingOf(int cipherMode) {
+        return cipherMode == CIPHER_MODE_GCM
+                ? KeyProperties.ENCRYPTION_PADDING_NONE : KeyProperties.ENCRYPTION_PADDING_PKCS7;
+    }
+
+    public int getCipherMode() {
+        return mCipherMode;
+    }
+
+    /**
+     * 当前用于加密的秘钥版本，加密结果用{@link CryptoEnvelope#seal(Cipher, int, byte[])}记录它
+     */
+    public int getKeyVersion() {
+        return mKeyVersion;
+    }
+
+    /**
+     * 重新生成秘钥的次数
+     */
+    public static int getColdKeyLoadCount() {
+        return sColdKeyLoads.get();
+    }
+
+    /**
+     * 复用已有秘钥的次数
+     */
+    public static int getWarmKeyLoadCount() {
+        return sWarmKeyLoads.get();
+    }
+
+    /**
+     * 发现秘钥永久失效（录入了新指纹或者修改了锁屏）并切换到新版本的次数
+     */
+    public static int getKeyInvalidationCount() {
+        return sKeyInvalidations.get();
+    }
+
+    /**
+     * 秘钥和Cipher准备完成后完成，结果为准备好的CryptoObject（不支持时为null）
+     */
+    public CoreFuture<FingerprintManager.CryptoObject> getPreparedFuture() {
+        return mPreparedFuture;
+    }
+
     public FingerprintManager.CryptoObject getCryptoObject() {
         return mCryptoObject;
     }
@@ -0,0 +1,91 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.Random;
+
+/**
+ * 默认重试策略：
+ * 1. 手指移动太快、按压不完整等短暂的帮助信息不算失败，传感器继续监听，厂商自定义的帮助码立即重新启动；
+ * 2. 真正的识别失败按指数退避加随机抖动重试，超过最大次数后放弃；
+ * 3. 被系统锁定后冷却一段时间，冷却期间不再调用authenticate
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+    // 与FingerprintManager.FINGERPRINT_ACQUIRED_*取值一致，这里不直接引用是为了能在JVM上运行
+    private static final int ACQUIRED_PARTIAL = 1;
+    private static final int ACQUIRED_INSUFFICIENT = 2;
+    private static final int ACQUIRED_IMAGER_DIRTY = 3;
+    private static final int ACQUIRED_TOO_SLOW = 4;
+    private static final int ACQUIRED_TOO_FAST = 5;
+    private static final int ACQUIRED_VENDOR_BASE = 1000;
+
+    public static final int DEFAULT_MAX_FAILED_TIMES = 5;
+    public static final long DEFAULT_BASE_DELAY_MS = 300;
+    public static final long DEFAULT_MAX_DELAY_MS = 5000;
+    public static final long DEFAULT_LOCKOUT_COOLDOWN_MS = 30 * 1000;
+    /** 厂商帮助码立即重启的次数上限，避免异常设备上无限重启 */
+    private static final int MAX_HELP_REARM_TIMES = 10;
+
+    private final int mMaxFailedTimes;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final float mJitter;
+    private final long mLockoutCooldownMs;
+    private final Random mRandom;
+
+    public DefaultRetryPolicy() {
+        this(DEFAULT_MAX_FAILED_TIMES, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, 0.2f,
+                DEFAULT_LOCKOUT_COOLDOWN_MS, new Random());
+    }
+
+    /**
+     * @param jitter 随机抖动比例，0.2表示在退避时间上下浮动20%
+     */
+    public DefaultRetryPolicy(int maxFailedTimes, long baseDelayMs, long maxDelayMs, float jitter,
+                              long lockoutCooldownMs, Random random) {
+        mMaxFailedTimes = maxFailedTimes;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mJitter = jitter;
+        mLockoutCooldownMs = lockoutCooldownMs;
+        mRandom = random;
+    }
+
+    @Override
+    public long onHelp(int helpMsgId, int helpTimes) {
+        switch (helpMsgId) {
+            case ACQUIRED_PARTIAL:
+            case ACQUIRED_INSUFFICIENT:
+            case ACQUIRED_IMAGER_DIRTY:
+            case ACQUIRED_TOO_SLOW:
+            case ACQUIRED_TOO_FAST:
+                return CONTINUE;
+            default:
+                // 厂商自定义的帮助码不能保证传感器还在监听，立即重新启动
+                if (helpMsgId >= ACQUIRED_VENDOR_BASE && helpTimes <= MAX_HELP_REARM_TIMES) {
+                    return 0;
+                }
+                return helpTimes <= MAX_HELP_REARM_TIMES ? CONTINUE : GIVE_UP;
+        }
+    }
+
+    @Override
+    public long onFailed(int failedTimes) {
+        if (failedTimes > mMaxFailedTimes) {
+            return GIVE_UP;
+        }
+        long delay = mBaseDelayMs << Math.min(failedTimes - 1, 16);
+        if (delay > mMaxDelayMs || delay <= 0) {
+            delay = mMaxDelayMs;
+        }
+        if (mJitter > 0) {
+            float factor = 1 + mJitter * (mRandom.nextFloat() * 2 - 1);
+            delay = (long) (delay * factor);
+        }
+        return delay;
+    }
+
+    @Override
+    public long getLockoutCooldownMs() {
+        return mLockoutCooldownMs;
+    }
+}
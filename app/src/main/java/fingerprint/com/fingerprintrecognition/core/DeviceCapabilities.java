@@ -0,0 +1,243 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.app.KeyguardManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 指纹硬件、指纹录入和锁屏密码状态的不可变快照。
+ * 这些检测都是到系统服务的同步binder调用，部分厂商ROM上很慢，所以统一在后台线程检测一次并缓存，
+ * 主线程通过{@link #peek()}直接读取；解锁、亮屏广播或者页面onResume时通过{@link #invalidate()}让缓存失效
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class DeviceCapabilities {
+
+    /** 缓存的检测结果和它所属的代数，代数不是当前的快照视为已经失效 */
+    private static final AtomicReference<Snapshot> sCurrent = new AtomicReference<>();
+    private static final AtomicReference<PendingProbe> sPendingProbe = new AtomicReference<>();
+    /** 每次invalidate加1，检测过程中发生了invalidate的结果不再缓存 */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    private static BroadcastReceiver sInvalidationReceiver;
+
+    private static final class Snapshot {
+        final int mGeneration;
+        final DeviceCapabilities mCapabilities;
+
+        Snapshot(int generation, DeviceCapabilities capabilities) {
+            mGeneration = generation;
+            mCapabilities = capabilities;
+        }
+    }
+
+    /** 正在进行的检测以及它开始时的代数 */
+    private static final class PendingProbe {
+        final CoreFuture<DeviceCapabilities> mFuture = new CoreFuture<>();
+        final int mGeneration;
+
+        PendingProbe(int generation) {
+            mGeneration = generation;
+        }
+    }
+
+    private final boolean mHardwareDetected;
+    private final boolean mHasEnrolledFingerprints;
+    private final boolean mKeyguardSecure;
+    private final long mProbedAtMillis;
+    private final long mHardwareProbeNanos;
+    private final long mEnrolledProbeNanos;
+    private final long mKeyguardProbeNanos;
+
+    private DeviceCapabilities(boolean hardwareDetected, boolean hasEnrolledFingerprints, boolean keyguardSecure,
+                               long hardwareProbeNanos, long enrolledProbeNanos, long keyguardProbeNanos) {
+        mHardwareDetected = hardwareDetected;
+        mHasEnrolledFingerprints = hasEnrolledFingerprints;
+        mKeyguardSecure = keyguardSecure;
+        mProbedAtMillis = System.currentTimeMillis();
+        mHardwareProbeNanos = hardwareProbeNanos;
+        mEnrolledProbeNanos = enrolledProbeNanos;
+        mKeyguardProbeNanos = keyguardProbeNanos;
+    }
+
+    /**
+     * 返回缓存的检测结果，还没有检测或者已经失效时返回null，不会触发binder调用
+     */
+    public static DeviceCapabilities peek() {
+        Snapshot snapshot = sCurrent.get();
+        // 检测结束时刚好发生了invalidate的话，可能存进了过期的快照，按代数忽略
+        return snapshot != null && snapshot.mGeneration == sGeneration.get() ? snapshot.mCapabilities : null;
+    }
+
+    /**
+     * 有缓存时直接返回已完成的Future，否则在后台线程检测；同一代只会有一个检测在进行，
+     * 正在进行的检测开始之后发生过invalidate时，它的结果不会缓存，重新开始一个检测
+     */
+    public static CoreFuture<DeviceCapabilities> refresh(Context context) {
+        DeviceCapabilities current = peek();
+        if (current != null) {
+            CoreFuture<DeviceCapabilities> done = new CoreFuture<>();
+            done.complete(current);
+            return done;
+        }
+        int generation = sGeneration.get();
+        PendingProbe pending = sPendingProbe.get();
+        if (pending != null && pending.mGeneration == generation) {
+            return pending.mFuture;
+        }
+        // 没有检测在进行，或者进行中的检测已经过期（结果不会缓存），开始新的检测
+        final PendingProbe probe = new PendingProbe(generation);
+        if (!sPendingProbe.compareAndSet(pending, probe)) {
+            return refresh(context);
+        }
+        final Context appContext = context.getApplicationContext();
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                DeviceCapabilities capabilities = probe(appContext);
+                storeSnapshot(new Snapshot(probe.mGeneration, capabilities));
+                sPendingProbe.compareAndSet(probe, null);
+                probe.mFuture.complete(capabilities);
+            }
+        });
+        return probe.mFuture;
+    }
+
+    /**
+     * 只在代数仍是当前的时候保存，不会覆盖更新一代的快照；保存之后才发生的invalidate由peek()按代数忽略
+     */
+    private static void storeSnapshot(Snapshot snapshot) {
+        while (snapshot.mGeneration == sGeneration.get()) {
+            Snapshot current = sCurrent.get();
+            if (current != null && current.mGeneration >= snapshot.mGeneration) {
+                return;
+            }
+            if (sCurrent.compareAndSet(current, snapshot)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 让缓存失效，下次{@link #refresh(Context)}会重新检测
+     */
+    public static void invalidate() {
+        sGeneration.incrementAndGet();
+        sCurrent.set(null);
+    }
+
+    /**
+     * 注册解锁、亮屏广播，用户可能在锁屏期间修改了锁屏密码或者指纹，收到广播后让缓存失效
+     */
+    public static synchronized void registerInvalidationReceiver(Context context) {
+        if (sInvalidationReceiver != null) {
+            return;
+        }
+        sInvalidationReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_USER_PRESENT);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        try {
+            context.getApplicationContext().registerReceiver(sInvalidationReceiver, filter);
+        } catch (Throwable throwable) {
+            sInvalidationReceiver = null;
+            FPLog.log(FPLog.WARN, "register capabilities receiver failed {}", throwable);
+        }
+    }
+
+    public static synchronized void unregisterInvalidationReceiver(Context context) {
+        if (sInvalidationReceiver == null) {
+            return;
+        }
+        try {
+            context.getApplicationContext().unregisterReceiver(sInvalidationReceiver);
+        } catch (Throwable throwable) {
+            FPLog.log(FPLog.WARN, "unregister capabilities receiver failed {}", throwable);
+        }
+        sInvalidationReceiver = null;
+    }
+
+    private static DeviceCapabilities probe(Context context) {
+        FingerprintManager fingerprintManager = FingerprintCore.getFingerprintManager(context);
+
+        long start = System.nanoTime();
+        boolean hardwareDetected = false;
+        try {
+            hardwareDetected = fingerprintManager != null && fingerprintManager.isHardwareDetected();
+        } catch (Throwable e) {
+        }
+        long hardwareProbeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        boolean hasEnrolled = false;
+        try {
+            // 有些厂商api23之前的版本可能没有做好兼容，这个方法内部会崩溃
+            hasEnrolled = hardwareDetected && fingerprintManager.hasEnrolledFingerprints();
+        } catch (Throwable e) {
+        }
+        long enrolledProbeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        boolean keyguardSecure = false;
+        try {
+            if (Build.VERSION.SDK_INT >= 16) {
+                KeyguardManager keyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+                keyguardSecure = keyguardManager != null && keyguardManager.isKeyguardSecure();
+            }
+        } catch (Throwable e) {
+        }
+        long keyguardProbeNanos = System.nanoTime() - start;
+
+        DeviceCapabilities capabilities = new DeviceCapabilities(hardwareDetected, hasEnrolled, keyguardSecure,
+                hardwareProbeNanos, enrolledProbeNanos, keyguardProbeNanos);
+        FPLog.log(FPLog.INFO, "probe capabilities: {}", capabilities);
+        return capabilities;
+    }
+
+    public boolean isHardwareDetected() {
+        return mHardwareDetected;
+    }
+
+    public boolean hasEnrolledFingerprints() {
+        return mHasEnrolledFingerprints;
+    }
+
+    public boolean isKeyguardSecure() {
+        return mKeyguardSecure;
+    }
+
+    public long getProbedAtMillis() {
+        return mProbedAtMillis;
+    }
+
+    public long getHardwareProbeNanos() {
+        return mHardwareProbeNanos;
+    }
+
+    public long getEnrolledProbeNanos() {
+        return mEnrolledProbeNanos;
+    }
+
+    public long getKeyguardProbeNanos() {
+        return mKeyguardProbeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceCapabilities{hardware=" + mHardwareDetected + " (" + mHardwareProbeNanos / 1000 + "us)"
+                + ", enrolled=" + mHasEnrolledFingerprints + " (" + mEnrolledProbeNanos / 1000 + "us)"
+                + ", keyguardSecure=" + mKeyguardSecure + " (" + mKeyguardProbeNanos / 1000 + "us)}";
+    }
+}
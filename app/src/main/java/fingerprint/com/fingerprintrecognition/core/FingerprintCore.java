@@ -1,15 +1,21 @@
 package fingerprint.com.fingerprintrecognition.core;
 
 import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
-import android.os.CancellationSignal;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
 
 import fingerprint.com.fingerprintrecognition.log.FPLog;
 
@@ -19,20 +25,53 @@ import fingerprint.com.fingerprintrecognition.log.FPLog;
 @TargetApi(Build.VERSION_CODES.M)
 public class FingerprintCore {
 
-    private static final int NONE = 0;
-    private static final int CANCEL = 1;
-    private static final int AUTHENTICATING = 2;
-    private int mState = NONE;
+    private static final int AUTH_EVENT_BUFFER_SIZE = 16;
+
+    private volatile FingerprintManager mFingerprintManager;
+    private volatile FingerprintSensor mSensor;
+    /** 通过{@link SensorArbiter}排队使用传感器时，控制器使用的排队传感器 */
+    private volatile FingerprintSensor mArbitratedSensor;
+    private final FingerprintEventDispatcher mDispatcher = new FingerprintEventDispatcher();
+    /** 通过setFingerprintManager设置的监听者 */
+    private IFingerprintResultListener mPrimaryListener;
+    private volatile CryptoObjectCreator mCryptoObjectCreator;
+    /** 最近一次识别成功后通过认证的Cipher，只能被取走一次 */
+    private final AtomicReference<Cipher> mAuthenticatedCipher = new AtomicReference<>();
+    /** 批量模式的授权窗口，识别成功后打开 */
+    private volatile AuthorizationWindow mAuthorizationWindow;
+    /** 设置后使用KeyManager中当前账号的秘钥，代替CryptoObjectCreator的默认秘钥 */
+    private volatile KeyManager mKeyManager;
+    private volatile String mKeyAlias;
+    /** 双缓冲模式下每次启动使用新的CryptoObject，下一个在后台提前准备 */
+    private volatile PreparedCryptoProvider mPreparedCrypto;
+    /** 签名模式：有排队的服务端挑战时识别绑定签名秘钥，成功后整批签名 */
+    private volatile ChallengeSigner mChallengeSigner;
+    /** CryptoObjectCreator和KeyManager的秘钥失效时回调 */
+    private volatile KeyInvalidationListener mKeyInvalidationListener;
+
+    private volatile boolean isSupport = false;
+    /** 硬件检测和秘钥数据都准备好之后完成，结果为是否支持指纹识别 */
+    private final CoreFuture<Boolean> mReadyFuture = new CoreFuture<>();
+    /** 初始化完成前调用了startAuthenticate，等待初始化完成后在主线程启动 */
+    private volatile boolean mPendingStart = false;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    /** 系统指纹回调、重试都在独立的回调线程上执行，不占用主线程 */
+    private Handler mCallbackHandler = FingerprintEventDispatcher.getCallbackHandler();
+    /** 识别会话的状态、重试、锁定都交给AuthSessionController处理 */
+    private final AuthSessionController mController;
+
+    /** {@link #authenticate(long)}返回的、还没有结束的识别 */
+    private final AtomicReference<PendingAuth> mPendingAuth = new AtomicReference<>();
+    /** 识别失败、帮助信息的事件流 */
+    private final CorePublisher<AuthEvent> mAuthEvents = new CorePublisher<>(AUTH_EVENT_BUFFER_SIZE);
 
-    private FingerprintManager mFingerprintManager;
-    private WeakReference<IFingerprintResultListener> mFpResultListener;
-    private CancellationSignal mCancellationSignal;
-    private CryptoObjectCreator mCryptoObjectCreator;
-    private FingerprintManager.AuthenticationCallback mAuthCallback;
+    /** 通过attachToLifecycle绑定的页面，页面不可见时暂停识别 */
+    private Activity mLifecycleActivity;
+    private volatile AuthTraceRecorder mTraceRecorder;
+    private volatile AuthTraceReplayer mTraceReplayer;
 
-    private int mFailedTimes = 0;
-    private boolean isSupport = false;
-    private Handler mHandler = new Handler(Looper.getMainLooper());
+    /** prewarm提前准备好的秘钥数据，只会被下一个FingerprintCore使用一次 */
+    private static final AtomicReference<CryptoObjectCreator> sPrewarmedCreator = new AtomicReference<>();
 
     /**
      * 指纹识别回调接口
@@ -52,13 +91,117 @@ public class FingerprintCore {
     }
 
     public FingerprintCore(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param lazyInit 为true时构造函数中不做任何系统服务、硬件检测和KeyStore相关的操作，全部放到后台线程执行，
+     *                 初始化完成的状态通过{@link #getReadyFuture()}获取；在初始化完成之前调用{@link #startAuthenticate()}
+     *                 会等到初始化完成之后再启动识别
+     */
+    public FingerprintCore(Context context, boolean lazyInit) {
+        mController = new AuthSessionController(null, new HandlerAuthScheduler(mCallbackHandler),
+                AuthMetrics.get(), mControllerListener);
+        mController.setCryptoProvider(new AuthSessionController.CryptoProvider() {
+            @Override
+            public Object getCrypto() {
+                ChallengeSigner signer = mChallengeSigner;
+                if (signer != null && signer.getPendingCount() > 0) {
+                    FingerprintManager.CryptoObject signCrypto = signer.createSignCryptoObject();
+                    if (signCrypto != null) {
+                        return signCrypto;
+                    }
+                }
+                KeyManager keyManager = mKeyManager;
+                if (keyManager != null) {
+                    return keyManager.getCryptoObject(mKeyAlias);
+                }
+                // 不能用getCryptoObject()：它的Cipher只在准备时初始化一次，GCM的Cipher加密过一次之后就不能再用，
+                // 第二次识别成功后加密会失败，所以每次启动都要一个新的Cipher，默认由双缓冲在后台提前初始化
+                PreparedCryptoProvider prepared = mPreparedCrypto;
+                if (prepared != null) {
+                    return prepared.getCrypto();
+                }
+                CryptoObjectCreator creator = mCryptoObjectCreator;
+                return creator == null ? null : creator.createEncryptCryptoObject();
+            }
+        });
+        // 默认开启：启动路径上不做KeyStore和Cipher初始化
+        setDoubleBuffered(true);
+        if (lazyInit) {
+            final Context appContext = context.getApplicationContext();
+            CoreExecutors.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initFingerprintManager(appContext);
+                    initCryptoObject();
+                }
+            });
+        } else {
+            initFingerprintManager(context);
+            initCryptoObject();
+        }
+    }
+
+    private void initFingerprintManager(Context context) {
         mFingerprintManager = getFingerprintManager(context);
+        if (mFingerprintManager != null) {
+            setFingerprintSensor(new SystemFingerprintSensor(mFingerprintManager, mCallbackHandler));
+        }
         isSupport = (mFingerprintManager != null && isHardwareDetected());
-        FPLog.log("fingerprint isSupport: " + isSupport);
-        initCryptoObject();
+        FPLog.log(FPLog.INFO, "fingerprint isSupport: {}", Boolean.valueOf(isSupport));
+    }
+
+    /**
+     * 在后台线程提前完成KeyStore、秘钥和Cipher的初始化，建议在Application.onCreate中调用，
+     * 这样用户点击开始识别时startAuthenticate()不需要再等待这些耗时操作
+     */
+    public static void prewarm(Context context) {
+        final Context appContext = context.getApplicationContext();
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (getFingerprintManager(appContext) == null) {
+                    return;
+                }
+                try {
+                    CryptoObjectCreator old = sPrewarmedCreator.getAndSet(new CryptoObjectCreator(null));
+                    if (old != null) {
+                        old.onDestroy();
+                    }
+                } catch (Throwable throwable) {
+                    FPLog.log(FPLog.WARN, "prewarm cryptoObject failed!");
+                }
+            }
+        });
     }
 
     private void initCryptoObject() {
+        CryptoObjectCreator prewarmed = sPrewarmedCreator.getAndSet(null);
+        if (prewarmed != null) {
+            FPLog.log(FPLog.DEBUG, "use prewarmed cryptoObject");
+            mCryptoObjectCreator = prewarmed;
+        } else {
+            createCryptoObject();
+        }
+        CryptoObjectCreator creator = mCryptoObjectCreator;
+        if (creator == null) {
+            mReadyFuture.complete(isSupport);
+            return;
+        }
+        KeyInvalidationListener keyInvalidationListener = mKeyInvalidationListener;
+        if (keyInvalidationListener != null) {
+            creator.setKeyInvalidationListener(keyInvalidationListener);
+        }
+        creator.getPreparedFuture().addListener(new CoreFuture.Listener<FingerprintManager.CryptoObject>() {
+            @Override
+            public void onComplete(CoreFuture<FingerprintManager.CryptoObject> future) {
+                mReadyFuture.complete(isSupport);
+            }
+        });
+    }
+
+    private void createCryptoObject() {
         try {
             mCryptoObjectCreator = new CryptoObjectCreator(new CryptoObjectCreator.ICryptoObjectCreateListener() {
                 @Override
@@ -68,144 +211,499 @@ public class FingerprintCore {
                 }
             });
         } catch (Throwable throwable) {
-            FPLog.log("create cryptoObject failed!");
+            FPLog.log(FPLog.WARN, "create cryptoObject failed!");
         }
     }
 
+    /**
+     * 设置主线程回调的监听者（弱引用），会替换之前设置的监听者
+     */
     public void setFingerprintManager(IFingerprintResultListener fingerprintResultListener) {
-        mFpResultListener = new WeakReference<IFingerprintResultListener>(fingerprintResultListener);
+        if (mPrimaryListener != null) {
+            mDispatcher.removeListener(mPrimaryListener);
+        }
+        mPrimaryListener = fingerprintResultListener;
+        mDispatcher.addListener(fingerprintResultListener, FingerprintEventDispatcher.DELIVERY_MAIN_THREAD, true);
     }
 
-    public void startAuthenticate() {
-        startAuthenticate(mCryptoObjectCreator.getCryptoObject());
+    /**
+     * 添加一个监听者（强引用），多个监听者都会收到识别结果
+     * @param delivery {@link FingerprintEventDispatcher#DELIVERY_MAIN_THREAD}或者
+     *                 {@link FingerprintEventDispatcher#DELIVERY_BACKGROUND}
+     */
+    public void addResultListener(IFingerprintResultListener listener, int delivery) {
+        mDispatcher.addListener(listener, delivery, false);
     }
 
-    public boolean isAuthenticating() {
-        return mState == AUTHENTICATING;
+    public void removeResultListener(IFingerprintResultListener listener) {
+        mDispatcher.removeListener(listener);
     }
 
-    private void startAuthenticate(FingerprintManager.CryptoObject cryptoObject) {
-        prepareData();
-        mState = AUTHENTICATING;
-        try {
-            mFingerprintManager.authenticate(cryptoObject, mCancellationSignal, 0, mAuthCallback, null);
-            notifyStartAuthenticateResult(true, "");
-        } catch (SecurityException e) {
-            try {
-                mFingerprintManager.authenticate(null, mCancellationSignal, 0, mAuthCallback, null);
-                notifyStartAuthenticateResult(true, "");
-            } catch (SecurityException e2) {
-                notifyStartAuthenticateResult(false, Log.getStackTraceString(e2));
-            } catch (Throwable throwable) {
+    /**
+     * 硬件检测和秘钥数据都准备好之后完成，结果为是否支持指纹识别
+     */
+    public CoreFuture<Boolean> getReadyFuture() {
+        return mReadyFuture;
+    }
 
+    public boolean isReady() {
+        return mReadyFuture.isDone();
+    }
+
+    public void startAuthenticate() {
+        if (!mReadyFuture.isDone()) {
+            // 秘钥数据还没准备好，不能把未初始化完成的CryptoObject交给系统，等准备好之后再启动
+            FPLog.log(FPLog.DEBUG, "not ready, start authenticate after prepared");
+            if (!mPendingStart) {
+                mPendingStart = true;
+                mReadyFuture.addListener(mStartWhenReadyListener);
             }
-        } catch (Throwable throwable) {
+            return;
+        }
+        if (!mController.start()) {
+            FPLog.log(FPLog.WARN, "startAuthenticate ignored, state: {}", mController.getStateMachine().get());
+        }
+    }
 
+    /**
+     * 启动识别并返回结果，可以用{@link CoreFuture#thenApply}、{@link CoreFuture#thenCompose}串联后续的解密、网络请求。
+     * 识别以错误结束时以{@link AuthException}失败；超过timeoutMs没有结果时自动取消识别、释放传感器，
+     * 以{@link TimeoutException}失败；取消返回的Future（或者串联在后面的Future）会取消识别。
+     * 同一时刻只有一个进行中的识别，再次调用会取消之前返回的Future，但不会中断正在进行的识别。
+     * @param timeoutMs 超时时间，小于等于0表示不限制
+     */
+    public CoreFuture<AuthResult> authenticate(long timeoutMs) {
+        final PendingAuth pending = new PendingAuth();
+        PendingAuth old = mPendingAuth.getAndSet(pending);
+        if (old != null) {
+            old.mFuture.cancel(false);
         }
+        pending.mFuture.addListener(new CoreFuture.Listener<AuthResult>() {
+            @Override
+            public void onComplete(CoreFuture<AuthResult> future) {
+                Handler handler = mCallbackHandler;
+                if (handler != null) {
+                    handler.removeCallbacks(pending.mDeadline);
+                }
+                // 被调用方取消（而不是识别结束）时取消识别
+                if (future.isCancelled() && mPendingAuth.compareAndSet(pending, null)) {
+                    cancelAuthenticate();
+                }
+            }
+        });
+        Handler handler = mCallbackHandler;
+        if (timeoutMs > 0 && handler != null) {
+            handler.postDelayed(pending.mDeadline, timeoutMs);
+        }
+        startAuthenticate();
+        return pending.mFuture;
     }
 
-    private void notifyStartAuthenticateResult(boolean isSuccess, String exceptionMsg) {
-        if (isSuccess) {
-            FPLog.log("start authenticate...");
-            if (mFpResultListener.get() != null) {
-                mFpResultListener.get().onStartAuthenticateResult(true);
+    /**
+     * 识别失败和帮助信息的事件流，按需推送，订阅者处理不过来时丢弃最旧的事件；onDestroy时结束
+     */
+    public CorePublisher<AuthEvent> getAuthEvents() {
+        return mAuthEvents;
+    }
+
+    private final class PendingAuth {
+        final CoreFuture<AuthResult> mFuture = new CoreFuture<>();
+        final long mStartNanos = System.nanoTime();
+        volatile int mFailedTimes;
+
+        final Runnable mDeadline = new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingAuth.compareAndSet(PendingAuth.this, null)) {
+                    FPLog.log(FPLog.INFO, "authenticate timeout, cancel");
+                    cancelAuthenticate();
+                    mFuture.completeExceptionally(new TimeoutException("fingerprint authenticate timeout"));
+                }
             }
-        } else {
-            FPLog.log("startListening, Exception" + exceptionMsg);
-            if (mFpResultListener.get() != null) {
-                mFpResultListener.get().onStartAuthenticateResult(false);
+        };
+    }
+
+    private CoreFuture.Listener<Boolean> mStartWhenReadyListener = new CoreFuture.Listener<Boolean>() {
+        @Override
+        public void onComplete(CoreFuture<Boolean> future) {
+            Handler handler = mHandler;
+            if (handler == null) {
+                return;
             }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPendingStart) {
+                        mPendingStart = false;
+                        startAuthenticate();
+                    }
+                }
+            });
         }
+    };
+
+    public boolean isAuthenticating() {
+        return mController.isAuthenticating() || mPendingStart;
     }
 
-    private void notifyAuthenticationSucceeded() {
-        FPLog.log("onAuthenticationSucceeded");
-        mFailedTimes = 0;
-        if (null != mFpResultListener && null != mFpResultListener.get()) {
-            mFpResultListener.get().onAuthenticateSuccess();
+    private final AuthSessionController.Listener mControllerListener = new AuthSessionController.Listener() {
+        @Override
+        public void onStartResult(boolean isSuccess, Throwable exception) {
+            if (isSuccess) {
+                FPLog.log(FPLog.INFO, "start authenticate...");
+            } else {
+                FPLog.log(FPLog.ERROR, "startListening, Exception {}", exception);
+                PendingAuth pending = mPendingAuth.getAndSet(null);
+                if (pending != null) {
+                    pending.mFuture.completeExceptionally(new AuthException(FingerprintSensor.ERROR_HW_UNAVAILABLE,
+                            "start authenticate failed", exception));
+                }
+            }
+            mDispatcher.dispatchStartResult(isSuccess);
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+            FPLog.log(FPLog.INFO, "onAuthenticationSucceeded");
+            mAuthenticatedCipher.set(crypto instanceof Cipher ? (Cipher) crypto : null);
+            KeyManager keyManager = mKeyManager;
+            String keyAlias = mKeyAlias;
+            if (keyManager != null) {
+                // 认证只对这个Cipher的一次使用有效，在后台重新初始化，下次识别直接命中缓存
+                keyManager.invalidate(keyAlias, CryptoObjectCreator.CIPHER_MODE_GCM);
+                keyManager.prewarm(keyAlias, CryptoObjectCreator.CIPHER_MODE_GCM);
+            }
+            AuthorizationWindow window = mAuthorizationWindow;
+            if (window != null) {
+                window.open();
+            }
+            ChallengeSigner signer = mChallengeSigner;
+            if (signer != null) {
+                signer.onAuthenticated(crypto);
+            }
+            PendingAuth pending = mPendingAuth.getAndSet(null);
+            if (pending != null) {
+                pending.mFuture.complete(new AuthResult(crypto, pending.mFailedTimes,
+                        (System.nanoTime() - pending.mStartNanos) / 1000000));
+            }
+            mDispatcher.dispatchSuccess();
         }
-    }
 
-    private void notifyAuthenticationError(int errMsgId, CharSequence errString) {
-        FPLog.log("onAuthenticationError, errId:" + errMsgId + ", err:" + errString + ", retry after 30 seconds");
-        if (null != mFpResultListener && null != mFpResultListener.get()) {
-            mFpResultListener.get().onAuthenticateError(errMsgId);
+        @Override
+        public void onFailed(int msgId, CharSequence message) {
+            FPLog.log(FPLog.INFO, "onAuthenticationFailed, msgId: {} errString: {}", msgId, message);
+            PendingAuth pending = mPendingAuth.get();
+            if (pending != null && msgId == 0) {
+                pending.mFailedTimes++;
+            }
+            mAuthEvents.publish(new AuthEvent(msgId == 0 ? AuthEvent.TYPE_FAILED : AuthEvent.TYPE_HELP,
+                    msgId, message));
+            mDispatcher.dispatchFailed(msgId);
+        }
+
+        @Override
+        public void onError(int errMsgId, CharSequence errString) {
+            FPLog.log(FPLog.WARN, "onAuthenticationError, errId:{}, err:{}", errMsgId, errString);
+            PendingAuth pending = mPendingAuth.getAndSet(null);
+            if (pending != null) {
+                pending.mFuture.completeExceptionally(new AuthException(errMsgId, errString));
+            }
+            mDispatcher.dispatchError(errMsgId);
         }
+    };
+
+    /**
+     * 识别跟随页面可见性：onStop时暂停识别、释放传感器，onStart时恢复，页面销毁时自动解绑；
+     * 页面仍然需要自己调用{@link #onDestroy()}。效果等同于在页面的onStart/onStop中调用{@link #onStart()}/{@link #onStop()}
+     */
+    public void attachToLifecycle(Activity activity) {
+        detachFromLifecycle();
+        mLifecycleActivity = activity;
+        activity.getApplication().registerActivityLifecycleCallbacks(mLifecycleCallbacks);
     }
 
-    private void notifyAuthenticationFailed(int msgId, String errString) {
-        FPLog.log("onAuthenticationFailed, msdId: " +  msgId + " errString: " + errString);
-        if (null != mFpResultListener && null != mFpResultListener.get()) {
-            mFpResultListener.get().onAuthenticateFailed(msgId);
+    public void detachFromLifecycle() {
+        Activity activity = mLifecycleActivity;
+        if (activity != null) {
+            activity.getApplication().unregisterActivityLifecycleCallbacks(mLifecycleCallbacks);
+            mLifecycleActivity = null;
         }
     }
 
-    private void prepareData() {
-        if (mCancellationSignal == null) {
-            mCancellationSignal = new CancellationSignal();
+    /**
+     * 页面重新可见：恢复暂停前还没有结束的识别，直接使用暂停前准备好的CryptoObject，不再访问KeyStore
+     */
+    public void onStart() {
+        if (mController.resume()) {
+            FPLog.log(FPLog.DEBUG, "resume authenticate");
         }
-        if (mAuthCallback == null) {
-            mAuthCallback = new FingerprintManager.AuthenticationCallback() {
+    }
+
+    /**
+     * 页面不可见：取消正在进行的识别、暂停重试，释放传感器，失败次数保留到恢复之后
+     */
+    public void onStop() {
+        mController.pause();
+    }
+
+    /**
+     * 传感器连续idleTimeoutMs没有任何事件（用户一直没有触摸）时自动释放，
+     * 以{@link FingerprintSensor#ERROR_TIMEOUT}结束识别；0表示不限制（默认）
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mController.setIdleTimeout(idleTimeoutMs);
+    }
+
+    private final Application.ActivityLifecycleCallbacks mLifecycleCallbacks =
+            new Application.ActivityLifecycleCallbacks() {
+                @Override
+                public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                }
+
                 @Override
-                public void onAuthenticationError(int errMsgId, CharSequence errString) {
-                    // 多次指纹密码验证错误后，进入此方法；并且，不能短时间内调用指纹验证,一般间隔从几秒到几十秒不等
-                    // 这种情况不建议重试，建议提示用户用其他的方式解锁或者认证
-                    mState = NONE;
-                    notifyAuthenticationError(errMsgId, errString);
+                public void onActivityStarted(Activity activity) {
+                    if (activity == mLifecycleActivity) {
+                        onStart();
+                    }
                 }
 
                 @Override
-                public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
-                    mState = NONE;
-                    // 建议根据参数helpString返回值，并且仅针对特定的机型做处理，并不能保证所有厂商返回的状态一致
-                    notifyAuthenticationFailed(helpMsgId , helpString.toString());
-                    onFailedRetry(helpMsgId, helpString.toString());
+                public void onActivityResumed(Activity activity) {
                 }
 
                 @Override
-                public void onAuthenticationFailed() {
-                    mState = NONE;
-                    notifyAuthenticationFailed(0 , "onAuthenticationFailed");
-                    onFailedRetry(-1, "onAuthenticationFailed");
+                public void onActivityPaused(Activity activity) {
                 }
 
                 @Override
-                public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
-                    mState = NONE;
-                    notifyAuthenticationSucceeded();
+                public void onActivityStopped(Activity activity) {
+                    if (activity == mLifecycleActivity) {
+                        onStop();
+                    }
+                }
+
+                @Override
+                public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                }
+
+                @Override
+                public void onActivityDestroyed(Activity activity) {
+                    if (activity == mLifecycleActivity) {
+                        detachFromLifecycle();
+                    }
                 }
             };
+
+    /**
+     * 开始把识别事件录制到file（覆盖），用于复现现场问题；最多maxRecords条，每条16字节
+     */
+    public void startTraceRecording(File file, int maxRecords) throws IOException {
+        stopTraceRecording();
+        AuthTraceRecorder recorder = new AuthTraceRecorder(file, maxRecords);
+        mTraceRecorder = recorder;
+        mController.setTraceRecorder(recorder);
+    }
+
+    public void stopTraceRecording() {
+        AuthTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mTraceRecorder = null;
+        mController.setTraceRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            FPLog.log(FPLog.WARN, "close trace recorder failed, e:{}", e);
+        }
+    }
+
+    /**
+     * 用录制的事件代替真实传感器，按speed倍速回放（包括当时的启动、取消操作），结果照常回调给监听者；
+     * 调用{@link #stopTraceReplay()}或者{@link #setFingerprintSensor(FingerprintSensor)}恢复
+     */
+    public AuthTraceReplayer replayTrace(AuthTrace trace, float speed) {
+        stopTraceReplay();
+        AuthTraceReplayer replayer = new AuthTraceReplayer(trace, new HandlerAuthScheduler(mCallbackHandler), speed);
+        mTraceReplayer = replayer;
+        mController.cancel();
+        mController.setSensor(replayer.getSensor());
+        replayer.start(mController);
+        return replayer;
+    }
+
+    public void stopTraceReplay() {
+        AuthTraceReplayer replayer = mTraceReplayer;
+        if (replayer == null) {
+            return;
+        }
+        mTraceReplayer = null;
+        replayer.stop();
+        mController.cancel();
+        FingerprintSensor sensor = mSensor;
+        if (sensor != null) {
+            setFingerprintSensor(sensor);
         }
     }
 
     public void cancelAuthenticate() {
-        if (mCancellationSignal != null && mState != CANCEL) {
-            FPLog.log("cancelAuthenticate...");
-            mState = CANCEL;
-            mCancellationSignal.cancel();
-            mCancellationSignal = null;
+        mPendingStart = false;
+        FPLog.log(FPLog.DEBUG, "cancelAuthenticate...");
+        mController.cancel();
+    }
+
+    /**
+     * 设置识别失败后的重试策略，默认为{@link DefaultRetryPolicy}
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mController.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * 取走最近一次识别成功后通过认证的Cipher，可以配合{@link CipherStream}加密大文件；
+     * 认证只对一次使用有效，所以每次识别成功后只能取一次
+     */
+    public Cipher takeAuthenticatedCipher() {
+        return mAuthenticatedCipher.getAndSet(null);
+    }
+
+    /**
+     * 开启批量模式：识别成功后打开授权窗口，窗口内排队的加密、解密和签名请求不需要再次识别，传null关闭。
+     * 设置时会在后台检查窗口的秘钥，在用户识别之前发现关闭或者重置锁屏导致的秘钥失效；
+     * 录入新指纹不会让窗口的秘钥失效，由{@link #setKeyInvalidationListener(KeyInvalidationListener)}发现
+     */
+    public void setAuthorizationWindow(AuthorizationWindow window) {
+        mAuthorizationWindow = window;
+        if (window != null) {
+            window.prewarm();
         }
     }
 
-    private void onFailedRetry(int msgId, String helpString) {
-        mFailedTimes++;
-        FPLog.log("on failed retry time " + mFailedTimes);
-        if (mFailedTimes > 5) { // 每个验证流程最多重试5次，这个根据使用场景而定，验证成功时清0
-            FPLog.log("on failed retry time more than 5 times");
+    public AuthorizationWindow getAuthorizationWindow() {
+        return mAuthorizationWindow;
+    }
+
+    /**
+     * 开启签名模式：有排队的挑战时识别绑定signer的签名秘钥，识别成功后整批签名，传null关闭
+     */
+    public void setChallengeSigner(ChallengeSigner signer) {
+        mChallengeSigner = signer;
+    }
+
+    public ChallengeSigner getChallengeSigner() {
+        return mChallengeSigner;
+    }
+
+    /**
+     * 多账号时使用：识别绑定keyManager中alias对应的秘钥（GCM），切换账号时再次调用即可，
+     * 已经初始化过的Cipher从缓存中取；传null恢复默认秘钥。会在后台提前初始化alias的Cipher
+     */
+    public void setKeyManager(KeyManager keyManager, String alias) {
+        mKeyAlias = alias;
+        mKeyManager = keyManager;
+        if (keyManager != null) {
+            KeyInvalidationListener keyInvalidationListener = mKeyInvalidationListener;
+            if (keyInvalidationListener != null) {
+                keyManager.setKeyInvalidationListener(keyInvalidationListener);
+            }
+            keyManager.prewarm(alias, CryptoObjectCreator.CIPHER_MODE_GCM);
+        }
+    }
+
+    /**
+     * 识别绑定的秘钥（默认秘钥和KeyManager中的秘钥）因为录入新指纹或者修改锁屏永久失效时回调，
+     * 已经换用新版本的秘钥；在监听者中提示用户重新录入数据，或者配合
+     * {@link fingerprint.com.fingerprintrecognition.vault.CredentialVault#rekeyOnKeyInvalidation}轮换保险箱的秘钥
+     */
+    public void setKeyInvalidationListener(KeyInvalidationListener listener) {
+        mKeyInvalidationListener = listener;
+        CryptoObjectCreator creator = mCryptoObjectCreator;
+        if (creator != null) {
+            creator.setKeyInvalidationListener(listener);
+        }
+        KeyManager keyManager = mKeyManager;
+        if (keyManager != null) {
+            keyManager.setKeyInvalidationListener(listener);
+        }
+    }
+
+    /**
+     * 双缓冲（默认开启）：每次启动识别（包括失败后的重试）都换上一个在后台提前初始化好的新CryptoObject，
+     * 启动时不再访问KeyStore，也不会把已经用过的Cipher再交给系统。启动耗时见{@link AuthMetrics#rearm}。
+     * 关闭后每次启动在调用线程上同步初始化新的Cipher，只建议用于对比启动耗时。
+     * 使用{@link #setKeyManager(KeyManager, String)}时由KeyManager提供CryptoObject，不受影响
+     */
+    public void setDoubleBuffered(boolean enabled) {
+        PreparedCryptoProvider old = mPreparedCrypto;
+        if (enabled == (old != null)) {
             return;
         }
-        FPLog.log("onFailedRetry: msgId " + msgId + " helpString: " + helpString);
-        cancelAuthenticate();
-        mHandler.removeCallbacks(mFailedRetryRunnable);
-        mHandler.postDelayed(mFailedRetryRunnable, 300); // 每次重试间隔一会儿再启动
+        if (!enabled) {
+            mPreparedCrypto = null;
+            old.close();
+            return;
+        }
+        final PreparedCryptoProvider prepared = new PreparedCryptoProvider(new PreparedCryptoProvider.Factory() {
+            @Override
+            public Object create() {
+                CryptoObjectCreator creator = mCryptoObjectCreator;
+                return creator == null ? null : creator.createEncryptCryptoObject();
+            }
+        }, CoreExecutors.getExecutor());
+        mPreparedCrypto = prepared;
+        // 秘钥准备好之后准备第一个
+        mReadyFuture.addListener(new CoreFuture.Listener<Boolean>() {
+            @Override
+            public void onComplete(CoreFuture<Boolean> future) {
+                prepared.prepareNext();
+            }
+        });
+    }
+
+    /**
+     * 双缓冲模式下的准备情况（命中、未命中次数），关闭时返回null
+     */
+    public PreparedCryptoProvider getPreparedCryptoProvider() {
+        return mPreparedCrypto;
+    }
+
+    /**
+     * 替换底层的指纹传感器，例如在没有指纹硬件的环境里换成假传感器调试
+     */
+    public void setFingerprintSensor(FingerprintSensor sensor) {
+        AuthTraceReplayer replayer = mTraceReplayer;
+        if (replayer != null) {
+            mTraceReplayer = null;
+            replayer.stop();
+        }
+        mSensor = sensor;
+        FingerprintSensor arbitrated = mArbitratedSensor;
+        if (arbitrated != null) {
+            SensorArbiter.get().setSensor(sensor);
+            mController.setSensor(arbitrated);
+        } else {
+            mController.setSensor(sensor);
+        }
     }
 
-    private Runnable mFailedRetryRunnable = new Runnable() {
-        @Override
-        public void run() {
-            startAuthenticate(mCryptoObjectCreator.getCryptoObject());
+    /**
+     * 多个页面各自有FingerprintCore时开启：识别请求经过进程内唯一的{@link SensorArbiter}排队，
+     * 不会互相取消；优先级更高的请求会抢占正在识别的请求，被抢占的请求在传感器空闲后自动恢复
+     * @param priority  参考{@link SensorArbiter#PRIORITY_NORMAL}
+     * @param maxWaitMs 最长排队时间，超时以{@link FingerprintSensor#ERROR_TIMEOUT}结束，
+     *                  {@link SensorArbiter#NO_DEADLINE}表示不限制
+     */
+    public void setSensorPriority(int priority, long maxWaitMs) {
+        SensorArbiter arbiter = SensorArbiter.get();
+        if (!arbiter.hasScheduler()) {
+            arbiter.setScheduler(new HandlerAuthScheduler(FingerprintEventDispatcher.getCallbackHandler()));
         }
-    };
+        mArbitratedSensor = arbiter.newClient(priority, maxWaitMs);
+        FingerprintSensor sensor = mSensor;
+        if (sensor != null) {
+            setFingerprintSensor(sensor);
+        }
+    }
 
     public boolean isSupport() {
         return isSupport;
@@ -216,11 +714,8 @@ public class FingerprintCore {
      * @return
      */
     public boolean isHardwareDetected() {
-        try {
-            return mFingerprintManager.isHardwareDetected();
-        } catch (SecurityException e) {
-        } catch (Throwable e) {}
-        return false;
+        FingerprintSensor sensor = mSensor;
+        return sensor != null && sensor.isHardwareDetected();
     }
 
     /**
@@ -228,13 +723,8 @@ public class FingerprintCore {
      * @return
      */
     public boolean isHasEnrolledFingerprints() {
-        try {
-            // 有些厂商api23之前的版本可能没有做好兼容，这个方法内部会崩溃（redmi note2, redmi note3等）
-            return mFingerprintManager.hasEnrolledFingerprints();
-        } catch (SecurityException e) {
-        } catch (Throwable e) {
-        }
-        return false;
+        FingerprintSensor sensor = mSensor;
+        return sensor != null && sensor.hasEnrolledFingerprints();
     }
 
     public static FingerprintManager getFingerprintManager(Context context) {
@@ -242,18 +732,38 @@ public class FingerprintCore {
         try {
             fingerprintManager = (FingerprintManager) context.getSystemService(Context.FINGERPRINT_SERVICE);
         } catch (Throwable e) {
-            FPLog.log("have not class FingerprintManager");
+            FPLog.log(FPLog.WARN, "have not class FingerprintManager");
         }
         return fingerprintManager;
     }
 
     public void onDestroy() {
-        cancelAuthenticate();
+        detachFromLifecycle();
+        stopTraceReplay();
+        stopTraceRecording();
+        mPendingStart = false;
+        PendingAuth pending = mPendingAuth.getAndSet(null);
+        if (pending != null) {
+            pending.mFuture.cancel(false);
+        }
+        mAuthEvents.complete();
+        mController.destroy();
+        mReadyFuture.removeListener(mStartWhenReadyListener);
         mHandler = null;
-        mAuthCallback = null;
-        mFpResultListener = null;
-        mCancellationSignal = null;
+        mCallbackHandler = null;
+        mDispatcher.clear();
+        mPrimaryListener = null;
         mFingerprintManager = null;
+        mAuthorizationWindow = null;
+        mKeyManager = null;
+        mChallengeSigner = null;
+        mKeyInvalidationListener = null;
+        PreparedCryptoProvider prepared = mPreparedCrypto;
+        if (prepared != null) {
+            mPreparedCrypto = null;
+            prepared.close();
+        }
+        mAuthenticatedCipher.set(null);
         if (mCryptoObjectCreator != null) {
             mCryptoObjectCreator.onDestroy();
             mCryptoObjectCreator = null;
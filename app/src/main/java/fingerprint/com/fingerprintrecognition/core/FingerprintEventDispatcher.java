@@ -0,0 +1,167 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * 指纹识别结果分发：系统回调统一在独立的回调线程上接收，再分发给多个监听者。
+ * 监听者数组写时复制，分发时无锁、不分配内存；每个监听者可以选择在主线程或者回调线程上接收结果，
+ * 统计、审计之类的监听者放在回调线程，不占用解锁界面的主线程。两种方式都是投递消息，
+ * 不会在分发方的线程（持有识别会话状态的传感器回调、调用startAuthenticate的线程）上直接执行监听者
+ */
+public class FingerprintEventDispatcher {
+
+    /** 在主线程回调 */
+    public static final int DELIVERY_MAIN_THREAD = 0;
+    /** 投递到指纹回调线程上回调，按分发顺序执行，不要在里面做耗时操作 */
+    public static final int DELIVERY_BACKGROUND = 1;
+
+    private static final int MSG_SUCCESS = 1;
+    private static final int MSG_FAILED = 2;
+    private static final int MSG_ERROR = 3;
+    private static final int MSG_START_RESULT = 4;
+
+    private static final Registration[] EMPTY = new Registration[0];
+
+    private static HandlerThread sCallbackThread;
+    private static Handler sCallbackHandler;
+
+    private volatile Registration[] mRegistrations = EMPTY;
+    private final Handler.Callback mDeliverCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            deliver((Registration) msg.obj, msg.what, msg.arg1);
+            return true;
+        }
+    };
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper(), mDeliverCallback);
+    private final Handler mBackgroundHandler = new Handler(getCallbackHandler().getLooper(), mDeliverCallback);
+
+    private static final class Registration {
+        final WeakReference<FingerprintCore.IFingerprintResultListener> mWeakListener;
+        final FingerprintCore.IFingerprintResultListener mListener;
+        final int mDelivery;
+
+        Registration(FingerprintCore.IFingerprintResultListener listener, int delivery, boolean weak) {
+            mWeakListener = weak ? new WeakReference<>(listener) : null;
+            mListener = weak ? null : listener;
+            mDelivery = delivery;
+        }
+
+        FingerprintCore.IFingerprintResultListener get() {
+            return mWeakListener != null ? mWeakListener.get() : mListener;
+        }
+    }
+
+    /**
+     * 所有FingerprintCore共用的指纹回调线程
+     */
+    public static synchronized Handler getCallbackHandler() {
+        if (sCallbackHandler == null) {
+            sCallbackThread = new HandlerThread("FingerprintLogic:Callback", Process.THREAD_PRIORITY_BACKGROUND);
+            sCallbackThread.start();
+            sCallbackHandler = new Handler(sCallbackThread.getLooper());
+        }
+        return sCallbackHandler;
+    }
+
+    /**
+     * @param delivery {@link #DELIVERY_MAIN_THREAD}或者{@link #DELIVERY_BACKGROUND}
+     * @param weak 为true时只持有弱引用，监听者被回收后自动失效
+     */
+    public synchronized void addListener(FingerprintCore.IFingerprintResultListener listener, int delivery, boolean weak) {
+        if (listener == null) {
+            return;
+        }
+        Registration[] old = mRegistrations;
+        Registration[] registrations = new Registration[old.length + 1];
+        System.arraycopy(old, 0, registrations, 0, old.length);
+        registrations[old.length] = new Registration(listener, delivery, weak);
+        mRegistrations = registrations;
+    }
+
+    /**
+     * 移除监听者，同时清理已经被回收的弱引用监听者
+     */
+    public synchronized void removeListener(FingerprintCore.IFingerprintResultListener listener) {
+        Registration[] old = mRegistrations;
+        int remain = 0;
+        Registration[] registrations = new Registration[old.length];
+        for (Registration registration : old) {
+            FingerprintCore.IFingerprintResultListener current = registration.get();
+            if (current != null && current != listener) {
+                registrations[remain++] = registration;
+            }
+        }
+        if (remain == 0) {
+            mRegistrations = EMPTY;
+        } else if (remain != old.length) {
+            Registration[] trimmed = new Registration[remain];
+            System.arraycopy(registrations, 0, trimmed, 0, remain);
+            mRegistrations = trimmed;
+        }
+    }
+
+    public synchronized void clear() {
+        mRegistrations = EMPTY;
+        mMainHandler.removeCallbacksAndMessages(null);
+        mBackgroundHandler.removeCallbacksAndMessages(null);
+    }
+
+    public boolean hasListeners() {
+        return mRegistrations.length > 0;
+    }
+
+    public void dispatchSuccess() {
+        dispatch(MSG_SUCCESS, 0);
+    }
+
+    public void dispatchFailed(int helpId) {
+        dispatch(MSG_FAILED, helpId);
+    }
+
+    public void dispatchError(int errMsgId) {
+        dispatch(MSG_ERROR, errMsgId);
+    }
+
+    public void dispatchStartResult(boolean isSuccess) {
+        dispatch(MSG_START_RESULT, isSuccess ? 1 : 0);
+    }
+
+    private void dispatch(int what, int arg) {
+        Registration[] registrations = mRegistrations;
+        for (Registration registration : registrations) {
+            Handler handler = registration.mDelivery == DELIVERY_BACKGROUND ? mBackgroundHandler : mMainHandler;
+            // Message来自消息池，不会分配新对象
+            handler.obtainMessage(what, arg, 0, registration).sendToTarget();
+        }
+    }
+
+    private static void deliver(Registration registration, int what, int arg) {
+        FingerprintCore.IFingerprintResultListener listener = registration.get();
+        if (listener == null) {
+            return;
+        }
+        switch (what) {
+            case MSG_SUCCESS:
+                listener.onAuthenticateSuccess();
+                break;
+            case MSG_FAILED:
+                listener.onAuthenticateFailed(arg);
+                break;
+            case MSG_ERROR:
+                listener.onAuthenticateError(arg);
+                break;
+            case MSG_START_RESULT:
+                listener.onStartAuthenticateResult(arg != 0);
+                break;
+            default:
+                break;
+        }
+    }
+}
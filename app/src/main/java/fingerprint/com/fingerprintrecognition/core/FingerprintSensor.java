@@ -0,0 +1,48 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 指纹传感器抽象，core包只依赖这个接口，真实设备上是{@link SystemFingerprintSensor}，
+ * 离线测试、压测时使用benchmark模块中的FakeFingerprintSensor。接口本身不依赖Android，可以在JVM上使用
+ */
+public interface FingerprintSensor {
+
+    // 与FingerprintManager.FINGERPRINT_ERROR_*取值一致
+    int ERROR_HW_UNAVAILABLE = 1;
+    int ERROR_TIMEOUT = 3;
+    int ERROR_CANCELED = 5;
+    int ERROR_LOCKOUT = 7;
+
+    boolean isHardwareDetected();
+
+    boolean hasEnrolledFingerprints();
+
+    /**
+     * 开始一次识别
+     * @param crypto 需要绑定的Cipher、Signature或Mac，为null时不绑定加密对象
+     * @return 本次识别的会话，用于取消
+     * @throws SecurityException 没有指纹权限等原因无法启动时抛出
+     */
+    Session authenticate(Object crypto, Callback callback);
+
+    /**
+     * 一次识别会话；取消之后这个会话不会再有任何回调
+     */
+    interface Session {
+        void cancel();
+
+        boolean isCancelled();
+    }
+
+    interface Callback {
+        void onAuthenticationError(int errMsgId, CharSequence errString);
+
+        void onAuthenticationHelp(int helpMsgId, CharSequence helpString);
+
+        void onAuthenticationFailed();
+
+        /**
+         * @param crypto 识别通过、已经授权的加密对象，启动时没有绑定则为null
+         */
+        void onAuthenticationSucceeded(Object crypto);
+    }
+}
@@ -0,0 +1,199 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按帧合并界面更新：回调中只提交不可变的界面状态，每一帧在主线程只绘制最新的一个，
+ * 一帧之内被新状态覆盖的更新直接丢弃。识别失败、帮助信息成串到达时不会重复刷新界面。
+ * API 16以上由Choreographer驱动，以下退化为主线程Handler
+ *
+ * @param <T> 界面状态，必须不可变并实现equals，和最新状态相同的提交会被忽略
+ */
+public class FrameCoalescer<T> {
+
+    public interface Renderer<T> {
+        /**
+         * 在主线程调用，只需要更新previous和state之间变化的属性
+         * @param previous 上一次绘制的状态
+         */
+        void render(T previous, T state);
+    }
+
+    private final Renderer<T> mRenderer;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** 还没有绘制的最新状态 */
+    private final AtomicReference<T> mPending = new AtomicReference<>();
+    /** 最新提交的状态，在它的基础上产生下一个状态 */
+    private volatile T mLatest;
+    /** 只在主线程访问 */
+    private T mRendered;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /** 最早一个还没有绘制的提交时间，用于计算提交到绘制的延迟 */
+    private final AtomicLong mFirstPendingNanos = new AtomicLong();
+    private volatile boolean mReleased;
+    /** API 16以上的Choreographer.FrameCallback，声明为Object避免低版本加载类时出错 */
+    private Object mFrameCallback;
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mFrames = new AtomicLong();
+    /** 每帧绘制耗时 */
+    public final LatencyHistogram frameTime = new LatencyHistogram("frameTime");
+    /** 从提交到绘制的延迟 */
+    public final LatencyHistogram submitToFrame = new LatencyHistogram("submitToFrame");
+
+    /**
+     * @param initial 界面当前已经显示的状态，和它相同的属性不会再设置
+     */
+    public FrameCoalescer(T initial, Renderer<T> renderer) {
+        mRenderer = renderer;
+        mLatest = initial;
+        mRendered = initial;
+    }
+
+    /**
+     * 最新提交的状态（可能还没有绘制）
+     */
+    public T getLatest() {
+        return mLatest;
+    }
+
+    /**
+     * 提交新状态，在下一帧绘制，可以在任意线程调用
+     */
+    public void submit(T state) {
+        if (mReleased || state.equals(mLatest)) {
+            return;
+        }
+        mLatest = state;
+        mSubmitted.incrementAndGet();
+        mFirstPendingNanos.compareAndSet(0, System.nanoTime());
+        if (mPending.getAndSet(state) != null) {
+            // 上一个状态还没来得及绘制就被覆盖了
+            mDropped.incrementAndGet();
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleFrame();
+            } else {
+                mMainHandler.post(mScheduleRunnable);
+            }
+        }
+    }
+
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduleFrame();
+        }
+    };
+
+    /**
+     * Choreographer只能在主线程使用
+     */
+    private void scheduleFrame() {
+        if (mReleased) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            mMainHandler.post(mRenderRunnable);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    renderFrame();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            renderFrame();
+        }
+    };
+
+    private void renderFrame() {
+        mScheduled.set(false);
+        T state = mPending.getAndSet(null);
+        if (mReleased || state == null) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long firstPendingNanos = mFirstPendingNanos.getAndSet(0);
+        if (firstPendingNanos != 0) {
+            submitToFrame.recordNanos(startNanos - firstPendingNanos);
+        }
+        T previous = mRendered;
+        mRendered = state;
+        mRenderer.render(previous, state);
+        mFrames.incrementAndGet();
+        frameTime.recordSince(startNanos);
+    }
+
+    /**
+     * 提交的状态数
+     */
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    /**
+     * 绘制之前就被新状态覆盖、没有绘制的状态数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 实际绘制的帧数
+     */
+    public long getFrameCount() {
+        return mFrames.get();
+    }
+
+    /**
+     * 停止绘制，页面销毁时调用
+     */
+    public void release() {
+        mReleased = true;
+        mPending.set(null);
+        mMainHandler.removeCallbacks(mScheduleRunnable);
+        mMainHandler.removeCallbacks(mRenderRunnable);
+        if (mFrameCallback != null) {
+            removeFrameCallback();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameCoalescer{submitted=" + getSubmittedCount()
+                + ", dropped=" + getDroppedCount()
+                + ", frames=" + getFrameCount()
+                + ", " + frameTime.snapshot()
+                + ", " + submitToFrame.snapshot()
+                + '}';
+    }
+}
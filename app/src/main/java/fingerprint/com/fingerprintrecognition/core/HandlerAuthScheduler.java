@@ -0,0 +1,25 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.os.Handler;
+
+/**
+ * 基于Handler的调度实现
+ */
+public class HandlerAuthScheduler implements AuthScheduler {
+
+    private final Handler mHandler;
+
+    public HandlerAuthScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+        mHandler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+}
@@ -0,0 +1,15 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 每次使用都需要指纹认证的秘钥永久失效（录入了新指纹或者修改了锁屏）。系统只会让这类秘钥因为录入新指纹而失效，
+ * 设置了认证有效期的秘钥（例如{@link AuthorizationWindow}）不会，所以指纹变化要从这里发现。
+ * 失效的版本保留不删除，已经生成了新版本的秘钥，在后台线程回调
+ */
+public interface KeyInvalidationListener {
+    /**
+     * @param keyName    秘钥名称（不带版本后缀），KeyManager中为别名
+     * @param oldVersion 失效的版本，用它加密的数据已经无法解密
+     * @param newVersion 之后使用的版本
+     */
+    void onKeyInvalidated(String keyName, int oldVersion, int newVersion);
+}
@@ -0,0 +1,304 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 多秘钥管理：按别名（每个账号、每种用途一个）管理指纹保护的秘钥，所有别名共用一个只加载一次的KeyStore。
+ * 已经初始化好的加密CryptoObject放在按LRU淘汰的缓存中，切换账号时命中缓存就不需要再访问KeyStore。
+ *
+ * 指纹认证只对Cipher的一次使用有效，识别成功并使用后要调用{@link #invalidate(String, int)}，
+ * 下次会重新初始化，可以紧接着用{@link #prewarm(String, int)}在后台重新初始化；
+ * 通过{@link FingerprintCore#setKeyManager(KeyManager, String)}使用时会自动处理。
+ * 一个别名只能用于一种加密模式。
+ *
+ * 每个别名的秘钥带版本号，第1版就是别名本身，之后加上"_v版本号"后缀。录入新指纹后秘钥永久失效，
+ * 失效的版本保留，换用新版本并回调{@link KeyInvalidationListener}，用{@link #getKeyVersion(String)}记录
+ * 数据是哪个版本加密的。
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class KeyManager {
+
+    private static final String ALIAS_PREFIX = "crypto_object_fingerprint_";
+    private static final String KEY_VERSION_SUFFIX = "_v";
+    private static final int FIRST_KEY_VERSION = 1;
+
+    public interface EvictionListener {
+        /** 缓存满了按LRU淘汰，在触发淘汰的线程回调 */
+        void onEvicted(String alias, int cipherMode, FingerprintManager.CryptoObject cryptoObject);
+    }
+
+    private static final class CacheKey {
+        final String mAlias;
+        final int mCipherMode;
+
+        CacheKey(String alias, int cipherMode) {
+            mAlias = alias;
+            mCipherMode = cipherMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return mCipherMode == other.mCipherMode && mAlias.equals(other.mAlias);
+        }
+
+        @Override
+        public int hashCode() {
+            return mAlias.hashCode() * 31 + mCipherMode;
+        }
+    }
+
+    private final LruCache<CacheKey, FingerprintManager.CryptoObject> mCache;
+    private volatile EvictionListener mEvictionListener;
+    private volatile KeyInvalidationListener mKeyInvalidationListener;
+
+    /** KeyStore和KeyGenerator不是线程安全的，由mKeyStoreLock保护 */
+    private final Object mKeyStoreLock = new Object();
+    private KeyStore mKeyStore;
+    private KeyGenerator mKeyGenerator;
+    /** 每个别名当前使用的版本，第一次使用时从KeyStore中查找，由mKeyStoreLock保护 */
+    private final Map<String, Integer> mKeyVersions = new HashMap<>();
+
+    /**
+     * @param maxCachedCiphers 最多缓存的CryptoObject个数
+     */
+    public KeyManager(int maxCachedCiphers) {
+        mCache = new LruCache<CacheKey, FingerprintManager.CryptoObject>(maxCachedCiphers) {
+            @Override
+            protected FingerprintManager.CryptoObject create(CacheKey key) {
+                return createCryptoObject(key.mAlias, key.mCipherMode);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, CacheKey key, FingerprintManager.CryptoObject oldValue,
+                                        FingerprintManager.CryptoObject newValue) {
+                EvictionListener listener = mEvictionListener;
+                if (evicted && listener != null) {
+                    listener.onEvicted(key.mAlias, key.mCipherMode, oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * 按账号和用途生成别名，例如aliasOf("user@example.com", "login")
+     */
+    public static String aliasOf(String account, String purpose) {
+        return ALIAS_PREFIX + purpose + "_" + account;
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    /**
+     * 秘钥永久失效并切换到新版本时回调，keyName为别名
+     */
+    public void setKeyInvalidationListener(KeyInvalidationListener listener) {
+        mKeyInvalidationListener = listener;
+    }
+
+    /**
+     * alias当前用于加密的秘钥版本，会访问KeyStore，不要在主线程第一次调用
+     */
+    public int getKeyVersion(String alias) throws GeneralSecurityException, IOException {
+        synchronized (mKeyStoreLock) {
+            return getKeyVersionLocked(alias);
+        }
+    }
+
+    public FingerprintManager.CryptoObject getCryptoObject(String alias) {
+        return getCryptoObject(alias, CryptoObjectCreator.CIPHER_MODE_GCM);
+    }
+
+    /**
+     * 返回已初始化为ENCRYPT_MODE的CryptoObject，缓存中没有时创建（秘钥不存在时生成，已失效时换用新版本），
+     * 会访问KeyStore，不要在主线程第一次调用
+     * @return 初始化失败时返回null
+     */
+    public FingerprintManager.CryptoObject getCryptoObject(String alias, int cipherMode) {
+        return mCache.get(new CacheKey(alias, cipherMode));
+    }
+
+    /**
+     * 在后台线程提前初始化，例如在切换账号的动画期间调用
+     */
+    public void prewarm(final String alias, final int cipherMode) {
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                getCryptoObject(alias, cipherMode);
+            }
+        });
+    }
+
+    /**
+     * Cipher已经通过认证并使用过，从缓存中移除，下次重新初始化
+     */
+    public void invalidate(String alias, int cipherMode) {
+        mCache.remove(new CacheKey(alias, cipherMode));
+    }
+
+    /**
+     * 删除秘钥的所有版本以及缓存，例如账号退出登录时
+     */
+    public void deleteKey(String alias) {
+        mCache.remove(new CacheKey(alias, CryptoObjectCreator.CIPHER_MODE_GCM));
+        mCache.remove(new CacheKey(alias, CryptoObjectCreator.CIPHER_MODE_CBC));
+        synchronized (mKeyStoreLock) {
+            try {
+                KeyStore keyStore = getKeyStore();
+                int latest = getKeyVersionLocked(alias);
+                for (int version = FIRST_KEY_VERSION; version <= latest; version++) {
+                    keyStore.deleteEntry(keyAliasOf(alias, version));
+                }
+                mKeyVersions.remove(alias);
+            } catch (GeneralSecurityException | IOException e) {
+                FPLog.log(FPLog.ERROR, "Failed to delete key, e:{}", e);
+            }
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public int getCachedCount() {
+        return mCache.size();
+    }
+
+    private FingerprintManager.CryptoObject createCryptoObject(String alias, int cipherMode) {
+        Cipher cipher = CryptoObjectCreator.providesCipher(cipherMode);
+        if (cipher == null) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        int invalidatedVersion = 0;
+        int version;
+        synchronized (mKeyStoreLock) {
+            try {
+                KeyStore keyStore = getKeyStore();
+                version = getKeyVersionLocked(alias);
+                if (!keyStore.containsAlias(keyAliasOf(alias, version))) {
+                    createKey(keyAliasOf(alias, version), cipherMode);
+                }
+                try {
+                    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey) keyStore.getKey(keyAliasOf(alias, version), null));
+                } catch (KeyPermanentlyInvalidatedException e) {
+                    // 录入了新指纹或者修改了锁屏，保留失效的版本，换用新版本
+                    invalidatedVersion = version;
+                    version++;
+                    if (version > CryptoEnvelope.MAX_KEY_VERSION) {
+                        throw new GeneralSecurityException("key version overflow", e);
+                    }
+                    FPLog.log(FPLog.WARN, "Key v{} permanently invalidated, switch to v{}.", invalidatedVersion, version);
+                    createKey(keyAliasOf(alias, version), cipherMode);
+                    mKeyVersions.put(alias, version);
+                    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey) keyStore.getKey(keyAliasOf(alias, version), null));
+                }
+            } catch (GeneralSecurityException | IOException e) {
+                FPLog.log(FPLog.ERROR, "Failed to init Cipher, e:{}", e);
+                return null;
+            }
+        }
+        AuthMetrics.get().cipherInit.recordSince(startNanos);
+        KeyInvalidationListener listener = mKeyInvalidationListener;
+        if (invalidatedVersion != 0 && listener != null) {
+            listener.onKeyInvalidated(alias, invalidatedVersion, version);
+        }
+        return new FingerprintManager.CryptoObject(cipher);
+    }
+
+    /**
+     * 调用方持有mKeyStoreLock
+     */
+    private int getKeyVersionLocked(String alias) throws GeneralSecurityException, IOException {
+        Integer version = mKeyVersions.get(alias);
+        if (version == null) {
+            String prefix = alias + KEY_VERSION_SUFFIX;
+            int latest = FIRST_KEY_VERSION;
+            Enumeration<String> aliases = getKeyStore().aliases();
+            while (aliases.hasMoreElements()) {
+                String name = aliases.nextElement();
+                if (name.startsWith(prefix)) {
+                    try {
+                        latest = Math.max(latest, Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // 其他别名恰好以它开头
+                    }
+                }
+            }
+            version = latest;
+            mKeyVersions.put(alias, version);
+        }
+        return version;
+    }
+
+    private static String keyAliasOf(String alias, int version) {
+        return version == FIRST_KEY_VERSION ? alias : alias + KEY_VERSION_SUFFIX + version;
+    }
+
+    /**
+     * 调用方持有mKeyStoreLock
+     */
+    private void createKey(String alias, int cipherMode) throws GeneralSecurityException {
+        long startNanos = System.nanoTime();
+        if (mKeyGenerator == null) {
+            mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        }
+        mKeyGenerator.init(new KeyGenParameterSpec.Builder(alias,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(CryptoObjectCreator.blockModeOf(cipherMode))
+                .setEncryptionPaddings(CryptoObjectCreator.paddingOf(cipherMode))
+                .setUserAuthenticationRequired(true)
+                .build());
+        mKeyGenerator.generateKey();
+        AuthMetrics.get().keyCreation.recordSince(startNanos);
+    }
+
+    /**
+     * 只加载一次，调用方持有mKeyStoreLock
+     */
+    private KeyStore getKeyStore() throws GeneralSecurityException, IOException {
+        if (mKeyStore == null) {
+            KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+            keyStore.load(null);
+            mKeyStore = keyStore;
+        }
+        return mKeyStore;
+    }
+}
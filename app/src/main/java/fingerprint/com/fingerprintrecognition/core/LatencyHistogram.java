@@ -0,0 +1,148 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定分桶的耗时直方图，记录时无锁、不分配内存
+ */
+public class LatencyHistogram {
+
+    /** 每个桶的上界（毫秒，包含），最后一个桶记录所有超过上界的值 */
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long millis = nanos / 1000000;
+        int index = 0;
+        while (index < BUCKET_BOUNDS_MS.length && millis > BUCKET_BOUNDS_MS[index]) {
+            index++;
+        }
+        mBuckets.incrementAndGet(index);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime）到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[mBuckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(mName, buckets, mCount.get(), mTotalNanos.get(), mMaxNanos.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * 直方图某一时刻的不可变副本
+     */
+    public static class Snapshot {
+        private final String mName;
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        Snapshot(String name, long[] buckets, long count, long totalNanos, long maxNanos) {
+            mName = name;
+            mBuckets = buckets;
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanMs() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount / 1000000;
+        }
+
+        public long getMaxMs() {
+            return mMaxNanos / 1000000;
+        }
+
+        /**
+         * 每个桶的上界（毫秒），最后一个桶没有上界，用Long.MAX_VALUE表示
+         */
+        public static long getBucketBoundMs(int index) {
+            return index < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[index] : Long.MAX_VALUE;
+        }
+
+        public int getBucketCount() {
+            return mBuckets.length;
+        }
+
+        public long getBucket(int index) {
+            return mBuckets[index];
+        }
+
+        /**
+         * 估算百分位耗时，返回所在桶的上界（毫秒），落在最后一个桶时返回最大值
+         * @param percentile 0~100
+         */
+        public long getPercentileMs(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= threshold) {
+                    return i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : getMaxMs();
+                }
+            }
+            return getMaxMs();
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{count=" + mCount + ", mean=" + getMeanMs() + "ms, p50=" + getPercentileMs(50)
+                    + "ms, p99=" + getPercentileMs(99) + "ms, max=" + getMaxMs() + "ms}";
+        }
+    }
+}
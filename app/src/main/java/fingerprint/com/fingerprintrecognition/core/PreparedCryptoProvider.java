@@ -0,0 +1,132 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 双缓冲的加密对象：每次启动识别（包括重试）都使用新初始化的加密对象，不会把已经用过的Cipher再交给传感器；
+ * 交出一个之后立即在后台准备下一个，下次启动时直接换上，启动路径上没有KeyStore操作。
+ * 后台还没准备好时在调用线程上同步创建，记为一次未命中
+ */
+public class PreparedCryptoProvider implements AuthSessionController.CryptoProvider {
+
+    /**
+     * 创建一个新的、已初始化的加密对象，在后台线程调用
+     */
+    public interface Factory {
+        /** @return 不可用（例如秘钥还没有生成）时返回null */
+        Object create() throws Exception;
+    }
+
+    private final Factory mFactory;
+    private final Executor mExecutor;
+    /** 准备好的下一个加密对象 */
+    private final AtomicReference<Object> mNext = new AtomicReference<>();
+    private final AtomicBoolean mPreparing = new AtomicBoolean();
+    /** invalidate时加1，丢弃之前开始准备的结果 */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private volatile boolean mClosed;
+
+    public PreparedCryptoProvider(Factory factory, Executor executor) {
+        mFactory = factory;
+        mExecutor = executor;
+    }
+
+    /**
+     * 取走准备好的加密对象并开始准备下一个
+     * @return 创建失败时返回null
+     */
+    @Override
+    public Object getCrypto() {
+        Object crypto = mNext.getAndSet(null);
+        if (crypto != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            crypto = create();
+        }
+        prepareNext();
+        return crypto;
+    }
+
+    /**
+     * 在后台准备下一个加密对象，已经准备好或者正在准备时不做任何事
+     */
+    public void prepareNext() {
+        if (mClosed || mNext.get() != null || !mPreparing.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(mPrepareRunnable);
+    }
+
+    private final Runnable mPrepareRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                int generation = mGeneration.get();
+                if (!mClosed && mNext.get() == null) {
+                    Object crypto = create();
+                    if (crypto != null && !mClosed && mGeneration.get() == generation) {
+                        mNext.compareAndSet(null, crypto);
+                    }
+                }
+            } finally {
+                mPreparing.set(false);
+            }
+        }
+    };
+
+    private Object create() {
+        try {
+            Object crypto = mFactory.create();
+            if (crypto == null) {
+                mFailures.incrementAndGet();
+            }
+            return crypto;
+        } catch (Exception e) {
+            mFailures.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 丢弃准备好的加密对象，例如秘钥重新生成之后；下次启动时重新准备
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        mNext.set(null);
+    }
+
+    public boolean isPrepared() {
+        return mNext.get() != null;
+    }
+
+    /**
+     * 启动时直接使用准备好的加密对象的次数
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * 启动时还没准备好、同步创建的次数
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public void close() {
+        mClosed = true;
+        invalidate();
+    }
+}
@@ -0,0 +1,31 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+/**
+ * 指纹识别失败之后的重试策略，返回值为重新启动识别之前需要等待的时间（毫秒），
+ * 或者{@link #CONTINUE}、{@link #GIVE_UP}
+ */
+public interface RetryPolicy {
+
+    /** 不需要重新启动，当前的识别会话继续监听 */
+    long CONTINUE = -1;
+    /** 不再重试 */
+    long GIVE_UP = -2;
+
+    /**
+     * onAuthenticationHelp回调时调用
+     * @param helpMsgId 系统返回的帮助码
+     * @param helpTimes 本次识别流程中第几次收到帮助信息，从1开始
+     */
+    long onHelp(int helpMsgId, int helpTimes);
+
+    /**
+     * onAuthenticationFailed回调时调用
+     * @param failedTimes 本次识别流程中第几次失败，从1开始
+     */
+    long onFailed(int failedTimes);
+
+    /**
+     * 收到FINGERPRINT_ERROR_LOCKOUT之后，等待多久再允许重新识别
+     */
+    long getLockoutCooldownMs();
+}
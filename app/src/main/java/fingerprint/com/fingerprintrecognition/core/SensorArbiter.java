@@ -0,0 +1,397 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.PriorityQueue;
+
+/**
+ * 进程内唯一的指纹传感器仲裁：传感器只有一个，多个FingerprintCore（每个Activity一个）直接调用authenticate
+ * 会互相取消，引起错误和重试风暴。每个使用方通过{@link #newClient(int, long)}拿到一个按优先级排队的传感器，
+ * 同一时刻只有一个请求真正在识别，结果只回调给发起它的使用方。
+ *
+ * 规则：
+ * <ul>
+ * <li>优先级高的先开始，优先级相同的按请求先后顺序</li>
+ * <li>只有优先级严格更高的请求会抢占正在识别的请求，被抢占的请求回到队列，保留原来的顺序，
+ *     传感器空闲后自动恢复，期间没有任何回调</li>
+ * <li>排队超过最长等待时间的请求以{@link FingerprintSensor#ERROR_TIMEOUT}结束</li>
+ * </ul>
+ * 不依赖Android，可以在JVM上用benchmark模块中的FakeFingerprintSensor和VirtualScheduler驱动
+ */
+public class SensorArbiter {
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 50;
+    public static final int PRIORITY_HIGH = 100;
+
+    /** 不限制排队时间 */
+    public static final long NO_DEADLINE = 0;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_ACTIVE = 1;
+    private static final int STATE_DONE = 2;
+
+    private static volatile SensorArbiter sInstance;
+
+    private final Object mLock = new Object();
+    /** 以下字段由mLock保护 */
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+    private Request mActive;
+    private long mSequence;
+
+    private volatile FingerprintSensor mSensor;
+    private volatile AuthScheduler mScheduler;
+    private final AuthMetrics mMetrics;
+
+    public static SensorArbiter get() {
+        SensorArbiter instance = sInstance;
+        if (instance == null) {
+            synchronized (SensorArbiter.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new SensorArbiter(null, null, AuthMetrics.get());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 单独使用（例如JVM上的压测），进程内共享传感器时使用{@link #get()}
+     */
+    public SensorArbiter(FingerprintSensor sensor, AuthScheduler scheduler, AuthMetrics metrics) {
+        mSensor = sensor;
+        mScheduler = scheduler;
+        mMetrics = metrics;
+    }
+
+    /**
+     * 设置真正的传感器，已经开始的识别不受影响
+     */
+    public void setSensor(FingerprintSensor sensor) {
+        mSensor = sensor;
+    }
+
+    /**
+     * 用于排队超时，没有设置时不检查超时
+     */
+    public void setScheduler(AuthScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public boolean hasScheduler() {
+        return mScheduler != null;
+    }
+
+    /**
+     * @param priority  优先级，越大越优先，参考{@link #PRIORITY_NORMAL}
+     * @param maxWaitMs 每次排队（包括被抢占后重新排队）的最长等待时间，{@link #NO_DEADLINE}表示不限制
+     * @return 交给{@link AuthSessionController}使用的传感器
+     */
+    public FingerprintSensor newClient(int priority, long maxWaitMs) {
+        return new Client(priority, maxWaitMs);
+    }
+
+    public int getQueueLength() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    public boolean isBusy() {
+        synchronized (mLock) {
+            return mActive != null;
+        }
+    }
+
+    private final class Client implements FingerprintSensor {
+        private final int mPriority;
+        private final long mMaxWaitMs;
+
+        Client(int priority, long maxWaitMs) {
+            mPriority = priority;
+            mMaxWaitMs = maxWaitMs;
+        }
+
+        @Override
+        public boolean isHardwareDetected() {
+            FingerprintSensor sensor = mSensor;
+            return sensor != null && sensor.isHardwareDetected();
+        }
+
+        @Override
+        public boolean hasEnrolledFingerprints() {
+            FingerprintSensor sensor = mSensor;
+            return sensor != null && sensor.hasEnrolledFingerprints();
+        }
+
+        @Override
+        public FingerprintSensor.Session authenticate(Object crypto, FingerprintSensor.Callback callback) {
+            return enqueue(this, crypto, callback);
+        }
+    }
+
+    private FingerprintSensor.Session enqueue(Client client, Object crypto, FingerprintSensor.Callback callback) {
+        FingerprintSensor sensor = mSensor;
+        if (sensor == null) {
+            throw new IllegalStateException("no fingerprint sensor");
+        }
+        Request request = new Request(client, crypto, callback);
+        Request preempted = null;
+        boolean startNow = false;
+        synchronized (mLock) {
+            request.mSequence = mSequence++;
+            if (mActive == null) {
+                mActive = request;
+                request.mState = STATE_ACTIVE;
+                startNow = true;
+            } else if (request.mPriority > mActive.mPriority) {
+                preempted = preemptLocked(request);
+                startNow = true;
+            } else {
+                queueLocked(request);
+            }
+        }
+        if (preempted != null) {
+            suspend(preempted);
+        }
+        if (startNow) {
+            // 直接启动时异常抛给调用方，和不经过仲裁时一样
+            try {
+                startAttempt(request, sensor);
+            } catch (RuntimeException e) {
+                release(request, false);
+                startNext();
+                throw e;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * request取代正在识别的请求，调用方持有mLock
+     * @return 被抢占的请求
+     */
+    private Request preemptLocked(Request request) {
+        Request preempted = mActive;
+        mActive = request;
+        request.mState = STATE_ACTIVE;
+        preempted.mAttempt++;
+        queueLocked(preempted);
+        mMetrics.recordEvent(AuthMetrics.EVENT_PREEMPT);
+        return preempted;
+    }
+
+    private void queueLocked(Request request) {
+        request.mState = STATE_QUEUED;
+        request.mEnqueueNanos = System.nanoTime();
+        mQueue.add(request);
+        AuthScheduler scheduler = mScheduler;
+        if (request.mMaxWaitMs > 0 && scheduler != null) {
+            scheduler.remove(request.mDeadlineRunnable);
+            scheduler.postDelayed(request.mDeadlineRunnable, request.mMaxWaitMs);
+        }
+    }
+
+    private void suspend(Request request) {
+        FingerprintSensor.Session session;
+        synchronized (mLock) {
+            session = request.mSession;
+            request.mSession = null;
+        }
+        if (session != null) {
+            session.cancel();
+        }
+    }
+
+    private void startAttempt(Request request, FingerprintSensor sensor) {
+        int attempt;
+        synchronized (mLock) {
+            attempt = request.mAttempt;
+        }
+        AuthScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.remove(request.mDeadlineRunnable);
+        }
+        mMetrics.sensorQueueWait.recordSince(request.mEnqueueNanos);
+        FingerprintSensor.Session session = sensor.authenticate(request.mCrypto, new AttemptCallback(request, attempt));
+        boolean stale;
+        synchronized (mLock) {
+            stale = request.mState != STATE_ACTIVE || request.mAttempt != attempt;
+            if (!stale) {
+                request.mSession = session;
+            }
+        }
+        if (stale) {
+            // 启动过程中被取消或者被抢占
+            session.cancel();
+        }
+    }
+
+    /**
+     * 请求结束（成功、错误、取消、超时），之后由调用方调用{@link #startNext()}
+     * @param cancelSession 是否需要取消底层会话，收到成功或错误时会话已经结束
+     * @return 请求是否正在识别
+     */
+    private boolean release(Request request, boolean cancelSession) {
+        FingerprintSensor.Session session = null;
+        boolean wasActive;
+        synchronized (mLock) {
+            wasActive = request.mState == STATE_ACTIVE;
+            if (request.mState == STATE_QUEUED) {
+                mQueue.remove(request);
+            }
+            request.mState = STATE_DONE;
+            request.mAttempt++;
+            if (mActive == request) {
+                mActive = null;
+                session = request.mSession;
+                request.mSession = null;
+            }
+        }
+        AuthScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.remove(request.mDeadlineRunnable);
+        }
+        if (session != null && cancelSession) {
+            session.cancel();
+        }
+        return wasActive;
+    }
+
+    private void startNext() {
+        while (true) {
+            Request next;
+            synchronized (mLock) {
+                if (mActive != null) {
+                    return;
+                }
+                next = mQueue.poll();
+                if (next == null) {
+                    return;
+                }
+                mActive = next;
+                next.mState = STATE_ACTIVE;
+            }
+            FingerprintSensor sensor = mSensor;
+            try {
+                if (sensor == null) {
+                    throw new IllegalStateException("no fingerprint sensor");
+                }
+                startAttempt(next, sensor);
+                return;
+            } catch (RuntimeException e) {
+                // 排队的请求已经拿到了会话，只能通过回调告诉它
+                release(next, false);
+                next.mCallback.onAuthenticationError(FingerprintSensor.ERROR_HW_UNAVAILABLE, String.valueOf(e));
+            }
+        }
+    }
+
+    private final class Request implements FingerprintSensor.Session, Comparable<Request> {
+        final int mPriority;
+        final long mMaxWaitMs;
+        final Object mCrypto;
+        final FingerprintSensor.Callback mCallback;
+        /** 以下字段由mLock保护 */
+        long mSequence;
+        int mState;
+        /** 每次被抢占或者结束都加1，丢弃旧的底层会话的回调 */
+        int mAttempt;
+        FingerprintSensor.Session mSession;
+        volatile long mEnqueueNanos = System.nanoTime();
+
+        final Runnable mDeadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (mState != STATE_QUEUED) {
+                        return;
+                    }
+                }
+                release(Request.this, false);
+                mMetrics.recordEvent(AuthMetrics.EVENT_QUEUE_TIMEOUT);
+                mCallback.onAuthenticationError(FingerprintSensor.ERROR_TIMEOUT, "fingerprint sensor busy");
+            }
+        };
+
+        Request(Client client, Object crypto, FingerprintSensor.Callback callback) {
+            mPriority = client.mPriority;
+            mMaxWaitMs = client.mMaxWaitMs;
+            mCrypto = crypto;
+            mCallback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            if (release(this, true)) {
+                startNext();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (mLock) {
+                return mState == STATE_DONE;
+            }
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 底层会话的回调，只转发给当前这一次启动对应的请求
+     */
+    private final class AttemptCallback implements FingerprintSensor.Callback {
+        private final Request mRequest;
+        private final int mAttempt;
+
+        AttemptCallback(Request request, int attempt) {
+            mRequest = request;
+            mAttempt = attempt;
+        }
+
+        private boolean isCurrent() {
+            synchronized (mLock) {
+                return mRequest.mState == STATE_ACTIVE && mRequest.mAttempt == mAttempt;
+            }
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            if (isCurrent()) {
+                release(mRequest, false);
+                mRequest.mCallback.onAuthenticationError(errMsgId, errString);
+                startNext();
+            }
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            if (isCurrent()) {
+                mRequest.mCallback.onAuthenticationHelp(helpMsgId, helpString);
+            }
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            if (isCurrent()) {
+                mRequest.mCallback.onAuthenticationFailed();
+            }
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(Object crypto) {
+            if (isCurrent()) {
+                release(mRequest, false);
+                mRequest.mCallback.onAuthenticationSucceeded(crypto);
+                startNext();
+            }
+        }
+    }
+}
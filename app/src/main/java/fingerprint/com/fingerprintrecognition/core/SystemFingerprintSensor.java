@@ -0,0 +1,143 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * 基于系统FingerprintManager的传感器实现，回调在指定的Handler线程上执行
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class SystemFingerprintSensor implements FingerprintSensor {
+
+    private final FingerprintManager mFingerprintManager;
+    private final Handler mCallbackHandler;
+
+    public SystemFingerprintSensor(FingerprintManager fingerprintManager, Handler callbackHandler) {
+        mFingerprintManager = fingerprintManager;
+        mCallbackHandler = callbackHandler;
+    }
+
+    @Override
+    public boolean isHardwareDetected() {
+        try {
+            return mFingerprintManager.isHardwareDetected();
+        } catch (SecurityException e) {
+        } catch (Throwable e) {}
+        return false;
+    }
+
+    @Override
+    public boolean hasEnrolledFingerprints() {
+        try {
+            // 有些厂商api23之前的版本可能没有做好兼容，这个方法内部会崩溃（redmi note2, redmi note3等）
+            return mFingerprintManager.hasEnrolledFingerprints();
+        } catch (SecurityException e) {
+        } catch (Throwable e) {
+        }
+        return false;
+    }
+
+    @Override
+    public Session authenticate(Object crypto, Callback callback) {
+        SystemSession session = new SystemSession(callback);
+        FingerprintManager.CryptoObject cryptoObject = toCryptoObject(crypto);
+        try {
+            mFingerprintManager.authenticate(cryptoObject, session.mCancellationSignal, 0, session, mCallbackHandler);
+        } catch (SecurityException e) {
+            if (cryptoObject == null) {
+                throw e;
+            }
+            // 部分设备绑定CryptoObject时会抛出SecurityException，退化为不绑定加密对象
+            mFingerprintManager.authenticate(null, session.mCancellationSignal, 0, session, mCallbackHandler);
+        }
+        return session;
+    }
+
+    static FingerprintManager.CryptoObject toCryptoObject(Object crypto) {
+        if (crypto instanceof FingerprintManager.CryptoObject) {
+            return (FingerprintManager.CryptoObject) crypto;
+        } else if (crypto instanceof Cipher) {
+            return new FingerprintManager.CryptoObject((Cipher) crypto);
+        } else if (crypto instanceof Signature) {
+            return new FingerprintManager.CryptoObject((Signature) crypto);
+        } else if (crypto instanceof Mac) {
+            return new FingerprintManager.CryptoObject((Mac) crypto);
+        }
+        return null;
+    }
+
+    static Object fromCryptoObject(FingerprintManager.CryptoObject cryptoObject) {
+        if (cryptoObject == null) {
+            return null;
+        }
+        if (cryptoObject.getCipher() != null) {
+            return cryptoObject.getCipher();
+        } else if (cryptoObject.getSignature() != null) {
+            return cryptoObject.getSignature();
+        }
+        return cryptoObject.getMac();
+    }
+
+    /**
+     * 每次识别使用新的CancellationSignal，取消之后丢弃系统的迟到回调（例如取消时部分机型回调的Error）
+     */
+    private static final class SystemSession extends FingerprintManager.AuthenticationCallback implements Session {
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+
+        SystemSession(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            mCancellationSignal.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            if (!mCancelled) {
+                mCallback.onAuthenticationError(errMsgId, errString);
+            }
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            if (!mCancelled) {
+                mCallback.onAuthenticationHelp(helpMsgId, helpString);
+            }
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            if (!mCancelled) {
+                mCallback.onAuthenticationFailed();
+            }
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+            if (!mCancelled) {
+                mCallback.onAuthenticationSucceeded(fromCryptoObject(result.getCryptoObject()));
+            }
+        }
+    }
+}
@@ -6,13 +6,117 @@ import fingerprint.com.fingerprintrecognition.BuildConfig;
 
 /**
  * Created by 77423 on 2016/11/7.
+ *
+ * 日志先判断级别再格式化，消息使用"{}"占位符传参，不在调用处拼接字符串。
+ * 达到记录级别的日志会写入预分配的环形缓冲区（release包也会记录），出问题时可以通过{@link #dump()}导出
  */
 
 public class FPLog {
 
+    private static final String TAG = "FPLog";
+
+    // 与android.util.Log的级别一致
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    /** 关闭 */
+    public static final int OFF = Integer.MAX_VALUE;
+
+    private static final int RING_BUFFER_CAPACITY = 256;
+
+    private static volatile int sLogcatLevel = BuildConfig.DEBUG ? DEBUG : OFF;
+    private static volatile int sRecordLevel = INFO;
+    private static final LogRingBuffer sRingBuffer = new LogRingBuffer(RING_BUFFER_CAPACITY);
+
+    /**
+     * 输出到logcat的最低级别，debug包默认DEBUG，release包默认关闭
+     */
+    public static void setLogcatLevel(int level) {
+        sLogcatLevel = level;
+    }
+
+    /**
+     * 写入环形缓冲区的最低级别，默认INFO
+     */
+    public static void setRecordLevel(int level) {
+        sRecordLevel = level;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLogcatLevel || level >= sRecordLevel;
+    }
+
     public static void log(String message) {
-        if (BuildConfig.DEBUG) {
-            Log.i("FPLog", message);
+        log(INFO, message);
+    }
+
+    public static void log(int level, String message) {
+        write(level, LogRingBuffer.SHAPE_NONE, message, 0, 0, null);
+    }
+
+    public static void log(int level, String format, long arg) {
+        write(level, LogRingBuffer.SHAPE_LONG, format, arg, 0, null);
+    }
+
+    public static void log(int level, String format, long arg1, long arg2) {
+        write(level, LogRingBuffer.SHAPE_LONG_LONG, format, arg1, arg2, null);
+    }
+
+    /**
+     * @param arg 只保存引用，格式化时才调用toString；Throwable会输出完整堆栈
+     */
+    public static void log(int level, String format, Object arg) {
+        write(level, LogRingBuffer.SHAPE_OBJECT, format, 0, 0, arg);
+    }
+
+    public static void log(int level, String format, long arg1, Object arg2) {
+        write(level, LogRingBuffer.SHAPE_LONG_OBJECT, format, arg1, 0, arg2);
+    }
+
+    private static void write(int level, int shape, String format, long arg1, long arg2, Object object) {
+        if (level >= sRecordLevel) {
+            sRingBuffer.write(level, shape, format, arg1, arg2, object);
+        }
+        if (level >= sLogcatLevel) {
+            StringBuilder builder = new StringBuilder();
+            LogRingBuffer.format(builder, format, shape, arg1, arg2, object);
+            Log.println(level, TAG, builder.toString());
+        }
+    }
+
+    /**
+     * 导出环形缓冲区中最近的日志，用于问题排查
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        sRingBuffer.dump(builder);
+        return builder.toString();
+    }
+
+    public static void clear() {
+        sRingBuffer.clear();
+    }
+
+    static String levelName(int level) {
+        switch (level) {
+            case VERBOSE:
+                return "V";
+            case DEBUG:
+                return "D";
+            case INFO:
+                return "I";
+            case WARN:
+                return "W";
+            case ERROR:
+                return "E";
+            default:
+                return String.valueOf(level);
         }
     }
+
+    static String getStackTraceString(Throwable throwable) {
+        return Log.getStackTraceString(throwable);
+    }
 }
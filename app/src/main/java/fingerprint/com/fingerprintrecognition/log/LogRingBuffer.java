@@ -0,0 +1,140 @@
+package fingerprint.com.fingerprintrecognition.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预分配的日志事件环形缓冲区，只保存格式模板和参数，不做字符串拼接，
+ * 写满后覆盖最旧的记录，需要时通过{@link #dump(StringBuilder)}格式化输出
+ */
+class LogRingBuffer {
+
+    static final int SHAPE_NONE = 0;
+    static final int SHAPE_LONG = 1;
+    static final int SHAPE_LONG_LONG = 2;
+    static final int SHAPE_OBJECT = 3;
+    static final int SHAPE_LONG_OBJECT = 4;
+
+    private final int mMask;
+    private final long[] mTimes;
+    private final int[] mLevels;
+    private final int[] mShapes;
+    private final String[] mFormats;
+    private final long[] mArgs1;
+    private final long[] mArgs2;
+    private final Object[] mObjects;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * @param capacity 必须是2的整数次幂
+     */
+    LogRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mTimes = new long[capacity];
+        mLevels = new int[capacity];
+        mShapes = new int[capacity];
+        mFormats = new String[capacity];
+        mArgs1 = new long[capacity];
+        mArgs2 = new long[capacity];
+        mObjects = new Object[capacity];
+    }
+
+    /**
+     * 写入一条记录；多个线程同时写入时各自占用不同的槽位，读取时可能看到正在写的记录，只用于诊断
+     */
+    void write(int level, int shape, String format, long arg1, long arg2, Object object) {
+        int slot = (int) (mSequence.getAndIncrement() & mMask);
+        mTimes[slot] = System.currentTimeMillis();
+        mLevels[slot] = level;
+        mShapes[slot] = shape;
+        mFormats[slot] = format;
+        mArgs1[slot] = arg1;
+        mArgs2[slot] = arg2;
+        mObjects[slot] = object;
+    }
+
+    /**
+     * 按时间顺序把缓冲区中的记录格式化输出
+     */
+    void dump(StringBuilder out) {
+        long end = mSequence.get();
+        long start = Math.max(0, end - mMask - 1);
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mMask);
+            out.append(mTimes[slot]).append(' ').append(FPLog.levelName(mLevels[slot])).append(' ');
+            format(out, mFormats[slot], mShapes[slot], mArgs1[slot], mArgs2[slot], mObjects[slot]);
+            out.append('\n');
+        }
+    }
+
+    void clear() {
+        mSequence.set(0);
+        for (int i = 0; i <= mMask; i++) {
+            mFormats[i] = null;
+            mObjects[i] = null;
+        }
+    }
+
+    /**
+     * 用参数依次替换format中的"{}"
+     */
+    static void format(StringBuilder out, String format, int shape, long arg1, long arg2, Object object) {
+        if (format == null) {
+            return;
+        }
+        int argIndex = 0;
+        int from = 0;
+        int index;
+        while ((index = format.indexOf("{}", from)) >= 0) {
+            out.append(format, from, index);
+            appendArg(out, shape, argIndex++, arg1, arg2, object);
+            from = index + 2;
+        }
+        out.append(format, from, format.length());
+    }
+
+    private static void appendArg(StringBuilder out, int shape, int argIndex, long arg1, long arg2, Object object) {
+        switch (shape) {
+            case SHAPE_LONG:
+                if (argIndex == 0) {
+                    out.append(arg1);
+                    return;
+                }
+                break;
+            case SHAPE_LONG_LONG:
+                if (argIndex < 2) {
+                    out.append(argIndex == 0 ? arg1 : arg2);
+                    return;
+                }
+                break;
+            case SHAPE_OBJECT:
+                if (argIndex == 0) {
+                    appendObject(out, object);
+                    return;
+                }
+                break;
+            case SHAPE_LONG_OBJECT:
+                if (argIndex == 0) {
+                    out.append(arg1);
+                    return;
+                } else if (argIndex == 1) {
+                    appendObject(out, object);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        out.append("{}");
+    }
+
+    private static void appendObject(StringBuilder out, Object object) {
+        if (object instanceof Throwable) {
+            out.append(FPLog.getStackTraceString((Throwable) object));
+        } else {
+            out.append(object);
+        }
+    }
+}
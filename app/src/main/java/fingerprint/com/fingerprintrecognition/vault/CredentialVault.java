@@ -0,0 +1,264 @@
+package fingerprint.com.fingerprintrecognition.vault;
+
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fingerprint.com.fingerprintrecognition.core.AuthorizationWindow;
+import fingerprint.com.fingerprintrecognition.core.CoreExecutors;
+import fingerprint.com.fingerprintrecognition.core.CoreFuture;
+import fingerprint.com.fingerprintrecognition.core.KeyInvalidationListener;
+import fingerprint.com.fingerprintrecognition.log.FPLog;
+
+/**
+ * 受指纹保护的凭据保险箱：token、PIN、账号秘钥等小数据用{@link AuthorizationWindow}的秘钥加密后
+ * 保存在{@link VaultStore}中。读取时所有条目的解密请求一起排队，一次指纹识别打开授权窗口后全部完成。
+ * 窗口的秘钥轮换或者失效后，用{@link #rekey(VaultRekeyJob.Listener)}在后台把旧条目重新加密；
+ * 录入新指纹时由{@link #rekeyOnKeyInvalidation(VaultRekeyJob.Listener)}自动轮换并重新加密。
+ */
+public class CredentialVault {
+
+    private final VaultStore mStore;
+    private final AuthorizationWindow mWindow;
+    private VaultRekeyJob mRekeyJob;
+    /** 秘钥已失效、需要重新录入的条目，重新写入或者删除后移除 */
+    private final Set<String> mReenrollmentRequired =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** 已经安排了轮换但还没有执行，期间的失效通知合并为一次 */
+    private final AtomicBoolean mRotationPending = new AtomicBoolean(false);
+
+    public CredentialVault(VaultStore store, AuthorizationWindow window) {
+        mStore = store;
+        mWindow = window;
+    }
+
+    /**
+     * 加密后写入，加密需要授权窗口打开
+     */
+    public CoreFuture<Boolean> put(final String key, byte[] secret) {
+        final CoreFuture<Boolean> result = new CoreFuture<>();
+        mWindow.encrypt(secret).addListener(new CoreFuture.Listener<byte[]>() {
+            @Override
+            public void onComplete(CoreFuture<byte[]> future) {
+                try {
+                    mStore.put(key, future.get());
+                    mReenrollmentRequired.remove(key);
+                    result.complete(true);
+                    compactIfNeeded();
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    public CoreFuture<byte[]> get(final String key) {
+        final CoreFuture<byte[]> result = new CoreFuture<>();
+        getAll(Collections.singleton(key)).addListener(new CoreFuture.Listener<Map<String, byte[]>>() {
+            @Override
+            public void onComplete(CoreFuture<Map<String, byte[]>> future) {
+                try {
+                    result.complete(future.get().get(key));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 批量读取并解密，所有条目在同一次授权中完成；不存在的key不会出现在结果中，任何一条解密失败时整体失败
+     */
+    public CoreFuture<Map<String, byte[]>> getAll(Collection<String> keys) {
+        final CoreFuture<Map<String, byte[]>> result = new CoreFuture<>();
+        final Map<String, byte[]> values = new HashMap<>(keys.size() * 2);
+        Map<String, byte[]> envelopes = new HashMap<>(keys.size() * 2);
+        try {
+            for (String key : keys) {
+                byte[] envelope = mStore.get(key);
+                if (envelope != null) {
+                    envelopes.put(key, envelope);
+                }
+            }
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        if (envelopes.isEmpty()) {
+            result.complete(values);
+            return result;
+        }
+        final AtomicInteger remaining = new AtomicInteger(envelopes.size());
+        for (final Map.Entry<String, byte[]> entry : envelopes.entrySet()) {
+            mWindow.decrypt(entry.getValue()).addListener(new CoreFuture.Listener<byte[]>() {
+                @Override
+                public void onComplete(CoreFuture<byte[]> future) {
+                    try {
+                        byte[] value = future.get();
+                        synchronized (values) {
+                            values.put(entry.getKey(), value);
+                        }
+                    } catch (Exception e) {
+                        FPLog.log(FPLog.ERROR, "Failed to decrypt vault entry, e:{}", e);
+                        result.completeExceptionally(e);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete(values);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    public boolean remove(String key) throws IOException {
+        boolean removed = mStore.remove(key);
+        mReenrollmentRequired.remove(key);
+        compactIfNeeded();
+        return removed;
+    }
+
+    public boolean contains(String key) throws IOException {
+        return mStore.contains(key);
+    }
+
+    public int size() {
+        return mStore.size();
+    }
+
+    /**
+     * 最近一次{@link #rekey(VaultRekeyJob.Listener)}发现秘钥已失效的条目：数据仍然保留但无法解密，
+     * 需要提示用户重新录入（{@link #put(String, byte[])}覆盖）或者{@link #remove(String)}
+     */
+    public Set<String> getReenrollmentRequired() {
+        return Collections.unmodifiableSet(mReenrollmentRequired);
+    }
+
+    public boolean isReenrollmentRequired(String key) {
+        return mReenrollmentRequired.contains(key);
+    }
+
+    /**
+     * 把旧版本秘钥加密的条目用当前秘钥重新加密，需要在授权窗口的认证有效期内运行，
+     * 过期时暂停并回调{@link VaultRekeyJob.Listener#onPaused(int, int)}，再次认证后重新调用即可继续；
+     * 秘钥已失效的条目无法解密，记录保留，进入需要重新录入的状态（见{@link #getReenrollmentRequired()}）
+     * 并回调{@link VaultRekeyJob.Listener#onReenrollmentRequired(String)}
+     */
+    public synchronized CoreFuture<Boolean> rekey(final VaultRekeyJob.Listener listener) {
+        if (mRekeyJob == null || !mRekeyJob.isRunning()) {
+            mRekeyJob = new VaultRekeyJob(mStore, new VaultRekeyJob.Rewrapper() {
+                @Override
+                public boolean needsRewrap(ByteBuffer envelope) throws Exception {
+                    return mWindow.needsRewrap(envelope);
+                }
+
+                @Override
+                public byte[] rewrap(byte[] envelope) throws Exception {
+                    return mWindow.rewrap(envelope);
+                }
+
+                @Override
+                public int classify(Exception e) {
+                    if (e instanceof UserNotAuthenticatedException) {
+                        return VaultRekeyJob.FAILURE_PAUSE;
+                    }
+                    return e instanceof KeyPermanentlyInvalidatedException
+                            ? VaultRekeyJob.FAILURE_KEY_INVALIDATED : VaultRekeyJob.FAILURE_SKIP;
+                }
+            }, new VaultRekeyJob.Listener() {
+                @Override
+                public void onProgress(int done, int total) {
+                    if (listener != null) {
+                        listener.onProgress(done, total);
+                    }
+                }
+
+                @Override
+                public void onReenrollmentRequired(String key) {
+                    mReenrollmentRequired.add(key);
+                    if (listener != null) {
+                        listener.onReenrollmentRequired(key);
+                    }
+                }
+
+                @Override
+                public void onPaused(int done, int total) {
+                    if (listener != null) {
+                        listener.onPaused(done, total);
+                    }
+                }
+
+                @Override
+                public void onFinished(int rewrapped, int reenrollmentRequired, int skipped) {
+                    if (listener != null) {
+                        listener.onFinished(rewrapped, reenrollmentRequired, skipped);
+                    }
+                }
+            });
+        }
+        CoreFuture<Boolean> future = mRekeyJob.start();
+        future.addListener(new CoreFuture.Listener<Boolean>() {
+            @Override
+            public void onComplete(CoreFuture<Boolean> future) {
+                compactIfNeeded();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 窗口的秘钥设置了认证有效期，录入新指纹不会让它失效。把返回的监听者交给
+     * {@link fingerprint.com.fingerprintrecognition.core.FingerprintCore#setKeyInvalidationListener}，
+     * 每次都认证的秘钥发现指纹变化时会轮换窗口的秘钥并调用{@link #rekey(VaultRekeyJob.Listener)}，
+     * 所有条目换成新秘钥；需要认证时同样暂停并回调{@link VaultRekeyJob.Listener#onPaused(int, int)}
+     */
+    public KeyInvalidationListener rekeyOnKeyInvalidation(final VaultRekeyJob.Listener listener) {
+        return new KeyInvalidationListener() {
+            @Override
+            public void onKeyInvalidated(String keyName, int oldVersion, int newVersion) {
+                if (!mRotationPending.compareAndSet(false, true)) {
+                    return;
+                }
+                CoreExecutors.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRotationPending.set(false);
+                        try {
+                            int version = mWindow.rotateKey();
+                            FPLog.log(FPLog.INFO, "fingerprint key invalidated, rekey vault to v{}", version);
+                        } catch (Exception e) {
+                            FPLog.log(FPLog.ERROR, "Failed to rotate vault key, e:{}", e);
+                            return;
+                        }
+                        rekey(listener);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 垃圾数据较多时在后台压缩
+     */
+    public void compactIfNeeded() {
+        if (mStore.shouldCompact()) {
+            mStore.compactAsync();
+        }
+    }
+
+    public VaultStore getStore() {
+        return mStore;
+    }
+}
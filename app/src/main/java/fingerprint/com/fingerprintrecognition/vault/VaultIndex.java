@@ -0,0 +1,167 @@
+package fingerprint.com.fingerprintrecognition.vault;
+
+/**
+ * key到数据文件偏移的开放寻址哈希表（线性探测）。
+ * 只保存64位哈希和偏移两个long，不在内存中保存key本身，哈希相同时通过{@link Matcher}到文件中比较key；
+ * 删除使用后移（backward shift），不留墓碑。不是线程安全的，由{@link VaultStore}加锁。
+ */
+class VaultIndex {
+
+    /** 判断文件中offset处记录的key是否为要查找的key */
+    interface Matcher {
+        boolean matches(long offset);
+    }
+
+    interface Visitor {
+        void visit(long hash, long offset);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+    /** 空槽位的哈希值，真实哈希为0时改成1 */
+    private static final long EMPTY = 0;
+
+    private long[] mHashes;
+    private long[] mOffsets;
+    private int mSize;
+    private int mMask;
+
+    VaultIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return 找到的偏移，不存在时返回-1
+     */
+    long get(long hash, Matcher matcher) {
+        hash = normalize(hash);
+        for (int slot = slotOf(hash); mHashes[slot] != EMPTY; slot = (slot + 1) & mMask) {
+            if (mHashes[slot] == hash && matcher.matches(mOffsets[slot])) {
+                return mOffsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 添加或者替换
+     * @return 被替换的旧偏移，新增时返回-1
+     */
+    long put(long hash, long offset, Matcher matcher) {
+        hash = normalize(hash);
+        int slot = slotOf(hash);
+        for (; mHashes[slot] != EMPTY; slot = (slot + 1) & mMask) {
+            if (mHashes[slot] == hash && matcher.matches(mOffsets[slot])) {
+                long old = mOffsets[slot];
+                mOffsets[slot] = offset;
+                return old;
+            }
+        }
+        insertAt(slot, hash, offset);
+        return -1;
+    }
+
+    /**
+     * 添加一个确定不存在的key，不需要比较，用于压缩时重建索引
+     */
+    void insertNew(long hash, long offset) {
+        hash = normalize(hash);
+        int slot = slotOf(hash);
+        while (mHashes[slot] != EMPTY) {
+            slot = (slot + 1) & mMask;
+        }
+        insertAt(slot, hash, offset);
+    }
+
+    private void insertAt(int slot, long hash, long offset) {
+        mHashes[slot] = hash;
+        mOffsets[slot] = offset;
+        if (++mSize * 2 > mHashes.length) {
+            resize(mHashes.length << 1);
+        }
+    }
+
+    /**
+     * @return 被删除的偏移，不存在时返回-1
+     */
+    long remove(long hash, Matcher matcher) {
+        hash = normalize(hash);
+        for (int slot = slotOf(hash); mHashes[slot] != EMPTY; slot = (slot + 1) & mMask) {
+            if (mHashes[slot] == hash && matcher.matches(mOffsets[slot])) {
+                long old = mOffsets[slot];
+                shiftBack(slot);
+                mSize--;
+                return old;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void forEach(Visitor visitor) {
+        for (int i = 0; i < mHashes.length; i++) {
+            if (mHashes[i] != EMPTY) {
+                visitor.visit(mHashes[i], mOffsets[i]);
+            }
+        }
+    }
+
+    /**
+     * 删除slot之后，把后面探测链上的元素往前移，保证查找时不会提前遇到空槽位
+     */
+    private void shiftBack(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+        while (mHashes[next] != EMPTY) {
+            int home = slotOf(mHashes[next]);
+            // next的理想位置不在(hole, next]之间时，可以移到hole
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mHashes[hole] = mHashes[next];
+                mOffsets[hole] = mOffsets[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mHashes[hole] = EMPTY;
+        mOffsets[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] hashes = mHashes;
+        long[] offsets = mOffsets;
+        allocate(capacity);
+        for (int i = 0; i < hashes.length; i++) {
+            long hash = hashes[i];
+            if (hash != EMPTY) {
+                int slot = slotOf(hash);
+                while (mHashes[slot] != EMPTY) {
+                    slot = (slot + 1) & mMask;
+                }
+                mHashes[slot] = hash;
+                mOffsets[slot] = offsets[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mHashes = new long[capacity];
+        mOffsets = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    private int slotOf(long hash) {
+        // 混合高位，避免只用低位导致的聚集
+        long h = hash ^ (hash >>> 32);
+        return (int) (h ^ (h >>> 16)) & mMask;
+    }
+
+    private static long normalize(long hash) {
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,260 @@
+package fingerprint.com.fingerprintrecognition.vault;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fingerprint.com.fingerprintrecognition.core.CoreFuture;
+
+/**
+ * 秘钥轮换后在后台把保险箱中旧版本秘钥加密的条目重新加密。
+ * 所有key分成固定大小的块，在低优先级的线程池中按CPU核数并行处理，每条记录用{@link VaultStore#replace}
+ * 写回，期间被用户修改过的条目不会被覆盖；不持有任何界面相关的锁，也不占用授权窗口的请求队列。
+ *
+ * 任务可以恢复：暂停（认证过期）或者进程被杀后重新{@link #start()}，会重新扫描并跳过已经是新版本的条目。
+ * 任务从不删除条目：旧秘钥已失效、无法重新加密的条目原样保留，通过
+ * {@link Listener#onReenrollmentRequired(String)}交给调用方决定重新录入还是删除。
+ */
+public class VaultRekeyJob {
+
+    /** 需要重新认证，暂停任务，认证后重新start */
+    public static final int FAILURE_PAUSE = 0;
+    /** 旧秘钥已失效，数据无法解密，保留该条目并通知需要重新录入 */
+    public static final int FAILURE_KEY_INVALIDATED = 1;
+    /** 其他错误，跳过该条目，下次运行时重试 */
+    public static final int FAILURE_SKIP = 2;
+
+    private static final int CHUNK_SIZE = 64;
+
+    private static volatile Executor sExecutor;
+
+    public interface Rewrapper {
+        /** 只读取头部判断是否需要重新加密，envelope是存储中的只读切片 */
+        boolean needsRewrap(ByteBuffer envelope) throws Exception;
+
+        /** 用新秘钥重新加密，会在多个线程中并行调用 */
+        byte[] rewrap(byte[] envelope) throws Exception;
+
+        /** @return {@link #FAILURE_PAUSE}、{@link #FAILURE_KEY_INVALIDATED}或者{@link #FAILURE_SKIP} */
+        int classify(Exception e);
+    }
+
+    /**
+     * 所有回调都在后台线程执行
+     */
+    public interface Listener {
+        /** 每处理完一块回调一次 */
+        void onProgress(int done, int total);
+
+        /**
+         * 条目的秘钥已失效，无法解密也无法重新加密；记录保留，需要用户重新录入（覆盖写入）或者由调用方删除，
+         * 之后每次运行都会再次回调
+         */
+        void onReenrollmentRequired(String key);
+
+        /** 需要重新认证，认证后再次调用{@link #start()} */
+        void onPaused(int done, int total);
+
+        /**
+         * @param reenrollmentRequired 秘钥已失效、需要重新录入的条目数
+         * @param skipped              因为其他错误跳过的条目数，下次运行时重试
+         */
+        void onFinished(int rewrapped, int reenrollmentRequired, int skipped);
+    }
+
+    private final VaultStore mStore;
+    private final Rewrapper mRewrapper;
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    private volatile CoreFuture<Boolean> mFuture;
+
+    /** 以下字段在一次运行中使用，start时重置 */
+    private volatile boolean mPaused;
+    private volatile boolean mCancelled;
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mRewrapped = new AtomicInteger();
+    private final AtomicInteger mReenrollmentRequired = new AtomicInteger();
+    private final AtomicInteger mSkipped = new AtomicInteger();
+    private final AtomicInteger mPendingChunks = new AtomicInteger();
+    private int mTotal;
+
+    public VaultRekeyJob(VaultStore store, Rewrapper rewrapper, Listener listener) {
+        this(store, rewrapper, listener, getDefaultExecutor());
+    }
+
+    public VaultRekeyJob(VaultStore store, Rewrapper rewrapper, Listener listener, Executor executor) {
+        mStore = store;
+        mRewrapper = rewrapper;
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    /**
+     * 开始或者恢复，正在运行时返回当前运行的Future
+     * @return 全部处理完成时为true，暂停或者取消时为false
+     */
+    public CoreFuture<Boolean> start() {
+        if (!mRunning.compareAndSet(false, true)) {
+            return mFuture;
+        }
+        final CoreFuture<Boolean> future = new CoreFuture<>();
+        mFuture = future;
+        mPaused = false;
+        mCancelled = false;
+        mDone.set(0);
+        mRewrapped.set(0);
+        mReenrollmentRequired.set(0);
+        mSkipped.set(0);
+        final List<String> keys;
+        try {
+            keys = mStore.keys();
+        } catch (IOException e) {
+            mRunning.set(false);
+            future.completeExceptionally(e);
+            return future;
+        }
+        mTotal = keys.size();
+        int chunks = (keys.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks == 0) {
+            finish();
+            return future;
+        }
+        mPendingChunks.set(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final List<String> chunk = keys.subList(i * CHUNK_SIZE, Math.min(keys.size(), (i + 1) * CHUNK_SIZE));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processChunk(chunk);
+                    } finally {
+                        if (mPendingChunks.decrementAndGet() == 0) {
+                            finish();
+                        }
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * 处理完正在进行的条目后停止，已经重新加密的条目保留
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isRunning() {
+        return mRunning.get();
+    }
+
+    private void processChunk(List<String> chunk) {
+        for (String key : chunk) {
+            if (mPaused || mCancelled) {
+                return;
+            }
+            try {
+                rewrapEntry(key);
+            } catch (IOException e) {
+                mSkipped.incrementAndGet();
+            }
+            mDone.incrementAndGet();
+        }
+        if (mListener != null) {
+            mListener.onProgress(mDone.get(), mTotal);
+        }
+    }
+
+    private void rewrapEntry(String key) throws IOException {
+        ByteBuffer value = mStore.getValue(key);
+        byte[] envelope;
+        try {
+            if (value == null || !mRewrapper.needsRewrap(value)) {
+                return;
+            }
+            envelope = new byte[value.remaining()];
+            value.get(envelope);
+        } catch (Exception e) {
+            // 头部都解析不了，当作其他错误跳过
+            mSkipped.incrementAndGet();
+            return;
+        }
+        try {
+            if (mStore.replace(key, envelope, mRewrapper.rewrap(envelope))) {
+                mRewrapped.incrementAndGet();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            switch (mRewrapper.classify(e)) {
+                case FAILURE_PAUSE:
+                    mPaused = true;
+                    break;
+                case FAILURE_KEY_INVALIDATED:
+                    // 不删除：用户可能还能从别处恢复这条数据，由调用方决定
+                    mReenrollmentRequired.incrementAndGet();
+                    if (mListener != null) {
+                        mListener.onReenrollmentRequired(key);
+                    }
+                    break;
+                default:
+                    mSkipped.incrementAndGet();
+                    break;
+            }
+        }
+    }
+
+    private void finish() {
+        CoreFuture<Boolean> future = mFuture;
+        boolean completed = !mPaused && !mCancelled;
+        mRunning.set(false);
+        if (mListener != null) {
+            if (completed) {
+                mListener.onFinished(mRewrapped.get(), mReenrollmentRequired.get(), mSkipped.get());
+            } else if (mPaused) {
+                mListener.onPaused(mDone.get(), mTotal);
+            }
+        }
+        future.complete(completed);
+    }
+
+    /**
+     * 默认线程池：CPU核数个最低优先级的守护线程，不和界面线程、识别回调抢CPU
+     */
+    private static Executor getDefaultExecutor() {
+        Executor executor = sExecutor;
+        if (executor == null) {
+            synchronized (VaultRekeyJob.class) {
+                executor = sExecutor;
+                if (executor == null) {
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "FingerprintLogic:Rekey-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                    sExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+}
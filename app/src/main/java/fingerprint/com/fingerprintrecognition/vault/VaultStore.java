@@ -0,0 +1,669 @@
+package fingerprint.com.fingerprintrecognition.vault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import fingerprint.com.fingerprintrecognition.core.CoreExecutors;
+import fingerprint.com.fingerprintrecognition.core.CoreFuture;
+
+/**
+ * 只追加的键值存储：数据文件按顺序追加记录，读取通过内存映射，内存中只保留{@link VaultIndex}
+ * （每个key两个long），几万条数据也不需要把文件读到堆上。
+ *
+ * 记录格式（大端）：
+ * <pre>
+ * | magic(4) | type(1) | keyLength(2) | valueLength(4) | crc32(4) | key | value |
+ * </pre>
+ * 删除追加一条墓碑记录。映射会预留一段空间，避免每次追加都重新映射，预留部分全是0。
+ * 打开时顺序扫描重建索引，遇到校验失败（写到一半时崩溃或者预留空间）的记录就截断文件。
+ * 压缩把存活的记录复制到临时文件，同步到磁盘后原子重命名替换原文件。
+ *
+ * 存储本身不做加密，值由{@link CredentialVault}加密后写入。
+ */
+public class VaultStore {
+
+    private static final int MAGIC = 0x46505631; // "FPV1"
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 15;
+    private static final int MAX_KEY_LENGTH = 0xffff;
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long MIN_MAP_SIZE = 64 * 1024;
+
+    /** 垃圾数据超过这个比例并且超过最小值时建议压缩 */
+    private static final float COMPACT_GARBAGE_RATIO = 0.5f;
+    private static final long COMPACT_MIN_GARBAGE = 64 * 1024;
+
+    private final File mFile;
+    private final boolean mSyncWrites;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean mCompacting = new AtomicBoolean(false);
+    private final Object mMapLock = new Object();
+
+    /** 以下字段由mLock保护 */
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private VaultIndex mIndex;
+    private long mEnd;
+    private long mGarbageBytes;
+    private boolean mClosed;
+
+    /** 数据文件的只读映射，文件变长后按需重新映射 */
+    private volatile MappedByteBuffer mMap;
+    private final CRC32 mWriteCrc = new CRC32();
+    private ByteBuffer mWriteBuffer = ByteBuffer.allocate(256);
+
+    /**
+     * 打开（不存在时创建）数据文件，并扫描重建索引
+     * @param syncWrites 为true时每次写入都同步到磁盘，为false时只在{@link #sync()}和批量写入后同步
+     */
+    public VaultStore(File file, boolean syncWrites) throws IOException {
+        mFile = file;
+        mSyncWrites = syncWrites;
+        File staleCompaction = new File(file.getPath() + COMPACT_SUFFIX);
+        if (staleCompaction.exists()) {
+            // 上次压缩没有完成，原文件仍然完整
+            staleCompaction.delete();
+        }
+        openFile();
+        recover();
+    }
+
+    /**
+     * @return 值的拷贝，不存在时返回null
+     */
+    public byte[] get(String key) throws IOException {
+        ByteBuffer value = getValue(key);
+        if (value == null) {
+            return null;
+        }
+        byte[] result = new byte[value.remaining()];
+        value.get(result);
+        return result;
+    }
+
+    /**
+     * @return 值在内存映射中的只读切片，不拷贝数据；不存在时返回null
+     */
+    public ByteBuffer getValue(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        mLock.readLock().lock();
+        try {
+            checkOpen();
+            long offset = mIndex.get(hash(keyBytes), matcher(keyBytes));
+            return offset < 0 ? null : valueAt(mapped(), offset);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        mLock.readLock().lock();
+        try {
+            checkOpen();
+            return mIndex.get(hash(keyBytes), matcher(keyBytes)) >= 0;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            checkOpen();
+            append(TYPE_PUT, key.getBytes(UTF_8), value);
+            if (mSyncWrites) {
+                mChannel.force(false);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 批量写入，最后只同步一次磁盘
+     */
+    public void putAll(List<String> keys, List<byte[]> values) throws IOException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("keys and values size mismatch");
+        }
+        mLock.writeLock().lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < keys.size(); i++) {
+                append(TYPE_PUT, keys.get(i).getBytes(UTF_8), values.get(i));
+            }
+            mChannel.force(false);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 只有当前值等于expected时才写入（compare-and-put），用于后台重新加密时不覆盖期间被修改过的条目
+     * @param value 为null时删除
+     * @return 是否写入
+     */
+    public boolean replace(String key, byte[] expected, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        mLock.writeLock().lock();
+        try {
+            checkOpen();
+            long offset = mIndex.get(hash(keyBytes), matcher(keyBytes));
+            if (offset < 0 || !valueAt(mapped(), offset).equals(ByteBuffer.wrap(expected))) {
+                return false;
+            }
+            append(value == null ? TYPE_DELETE : TYPE_PUT, keyBytes, value);
+            if (mSyncWrites) {
+                mChannel.force(false);
+            }
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return key是否存在
+     */
+    public boolean remove(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        mLock.writeLock().lock();
+        try {
+            checkOpen();
+            if (mIndex.get(hash(keyBytes), matcher(keyBytes)) < 0) {
+                return false;
+            }
+            append(TYPE_DELETE, keyBytes, null);
+            if (mSyncWrites) {
+                mChannel.force(false);
+            }
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        mLock.readLock().lock();
+        try {
+            checkOpen();
+            mChannel.force(false);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mIndex == null ? 0 : mIndex.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 所有的key，需要遍历时使用，会为每个key创建字符串
+     */
+    public List<String> keys() throws IOException {
+        mLock.readLock().lock();
+        try {
+            checkOpen();
+            final ByteBuffer map = mapped();
+            final List<String> keys = new ArrayList<>(mIndex.size());
+            mIndex.forEach(new VaultIndex.Visitor() {
+                @Override
+                public void visit(long hash, long offset) {
+                    keys.add(keyAt(map, offset));
+                }
+            });
+            return keys;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public long getFileSize() {
+        mLock.readLock().lock();
+        try {
+            return mEnd;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 被覆盖、删除的记录以及墓碑占用的字节数
+     */
+    public long getGarbageBytes() {
+        mLock.readLock().lock();
+        try {
+            return mGarbageBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public boolean shouldCompact() {
+        mLock.readLock().lock();
+        try {
+            return mGarbageBytes >= COMPACT_MIN_GARBAGE && mGarbageBytes >= mEnd * COMPACT_GARBAGE_RATIO;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在{@link CoreExecutors}上压缩，结果为是否执行了压缩（已经有压缩在进行时为false）
+     */
+    public CoreFuture<Boolean> compactAsync() {
+        final CoreFuture<Boolean> future = new CoreFuture<>();
+        CoreExecutors.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(compact());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 压缩数据文件。复制存活记录时不阻塞读写，只有最后追赶压缩期间新写入的数据和替换文件时持有写锁。
+     * @return 是否执行了压缩，已经有压缩在进行时返回false
+     */
+    public boolean compact() throws IOException {
+        if (!mCompacting.compareAndSet(false, true)) {
+            return false;
+        }
+        File compactFile = new File(mFile.getPath() + COMPACT_SUFFIX);
+        RandomAccessFile target = null;
+        try {
+            // 1. 记录当前的存活记录，之后这些记录不会再被修改
+            final long snapshotEnd;
+            final ByteBuffer snapshotMap;
+            final long[] liveOffsets;
+            mLock.readLock().lock();
+            try {
+                checkOpen();
+                snapshotEnd = mEnd;
+                snapshotMap = mapped();
+                liveOffsets = collectOffsets(mIndex);
+            } finally {
+                mLock.readLock().unlock();
+            }
+            // 按偏移排序，顺序读取原文件
+            Arrays.sort(liveOffsets);
+
+            // 2. 不持有锁，把快照中的存活记录复制到新文件
+            target = new RandomAccessFile(compactFile, "rw");
+            target.setLength(0);
+            FileChannel targetChannel = target.getChannel();
+            final long[] newOffsets = new long[liveOffsets.length];
+            long position = 0;
+            for (int i = 0; i < liveOffsets.length; i++) {
+                newOffsets[i] = position;
+                position += copyRecord(snapshotMap, liveOffsets[i], targetChannel, position);
+            }
+
+            // 3. 持有写锁，追赶压缩期间的修改，然后替换文件
+            mLock.writeLock().lock();
+            try {
+                checkOpen();
+                final ByteBuffer map = mapped();
+                final VaultIndex index = new VaultIndex(mIndex.size());
+                final boolean[] stillLive = new boolean[liveOffsets.length];
+                final List<long[]> tail = new ArrayList<>();
+                mIndex.forEach(new VaultIndex.Visitor() {
+                    @Override
+                    public void visit(long hash, long offset) {
+                        int i = offset < snapshotEnd ? Arrays.binarySearch(liveOffsets, offset) : -1;
+                        if (i >= 0) {
+                            stillLive[i] = true;
+                            index.insertNew(hash, newOffsets[i]);
+                        } else {
+                            tail.add(new long[] {hash, offset});
+                        }
+                    }
+                });
+                long garbage = 0;
+                for (int i = 0; i < liveOffsets.length; i++) {
+                    if (!stillLive[i]) {
+                        // 复制之后被删除或者覆盖了，追加墓碑，重启后重放结果仍然正确
+                        byte[] keyBytes = keyBytesAt(map, liveOffsets[i]);
+                        position += writeRecord(targetChannel, position, TYPE_DELETE, keyBytes, null);
+                        garbage += recordSizeAt(map, liveOffsets[i]) + HEADER_SIZE + keyBytes.length;
+                    }
+                }
+                for (long[] entry : tail) {
+                    index.insertNew(entry[0], position);
+                    position += copyRecord(map, entry[1], targetChannel, position);
+                }
+                targetChannel.force(true);
+                target.close();
+                target = null;
+
+                closeFile();
+                if (!compactFile.renameTo(mFile)) {
+                    openFile();
+                    throw new IOException("Failed to rename " + compactFile + " to " + mFile);
+                }
+                openFile();
+                mIndex = index;
+                mEnd = position;
+                mGarbageBytes = garbage;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            if (target != null) {
+                target.close();
+                compactFile.delete();
+            }
+            mCompacting.set(false);
+        }
+    }
+
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (!mClosed) {
+                mClosed = true;
+                closeFile();
+                mIndex = null;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void openFile() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mEnd = mChannel.size();
+        synchronized (mMapLock) {
+            mMap = null;
+        }
+    }
+
+    private void closeFile() throws IOException {
+        synchronized (mMapLock) {
+            mMap = null;
+        }
+        // 去掉映射预留的空间
+        mChannel.truncate(mEnd);
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * 顺序扫描整个文件重建索引，截断末尾不完整的记录
+     */
+    private void recover() throws IOException {
+        long fileSize = mEnd;
+        mIndex = new VaultIndex(0);
+        mGarbageBytes = 0;
+        ByteBuffer map = mapped();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        long offset = 0;
+        while (offset < fileSize) {
+            long size = validRecordSize(map, offset, fileSize, crc, scratch);
+            if (size < 0) {
+                break;
+            }
+            applyRecord(map, offset, size);
+            offset += size;
+        }
+        if (offset < fileSize) {
+            // 最后一次写入没有完成，或者是预留的映射空间，丢弃
+            mChannel.truncate(offset);
+            mChannel.force(true);
+            synchronized (mMapLock) {
+                mMap = null;
+            }
+        }
+        mEnd = offset;
+    }
+
+    /**
+     * @return 校验通过的记录长度，记录损坏或者不完整时返回-1
+     */
+    private static long validRecordSize(ByteBuffer map, long offset, long fileSize, CRC32 crc, byte[] scratch) {
+        if (fileSize - offset < HEADER_SIZE) {
+            return -1;
+        }
+        int position = (int) offset;
+        if (map.getInt(position) != MAGIC) {
+            return -1;
+        }
+        byte type = map.get(position + 4);
+        int keyLength = map.getShort(position + 5) & 0xffff;
+        int valueLength = map.getInt(position + 7);
+        if ((type != TYPE_PUT && type != TYPE_DELETE) || valueLength < 0
+                || fileSize - offset - HEADER_SIZE < (long) keyLength + valueLength) {
+            return -1;
+        }
+        crc.reset();
+        updateCrc(crc, map, position + 4, 7, scratch);
+        updateCrc(crc, map, position + HEADER_SIZE, keyLength + valueLength, scratch);
+        if ((int) crc.getValue() != map.getInt(position + 11)) {
+            return -1;
+        }
+        return HEADER_SIZE + keyLength + valueLength;
+    }
+
+    private static void updateCrc(CRC32 crc, ByteBuffer map, int position, int length, byte[] scratch) {
+        ByteBuffer source = map.duplicate();
+        source.position(position);
+        while (length > 0) {
+            int chunk = Math.min(length, scratch.length);
+            source.get(scratch, 0, chunk);
+            crc.update(scratch, 0, chunk);
+            length -= chunk;
+        }
+    }
+
+    /**
+     * 把offset处的记录应用到索引上，并统计垃圾数据
+     */
+    private void applyRecord(ByteBuffer map, long offset, long size) {
+        byte[] keyBytes = keyBytesAt(map, offset);
+        long hash = hash(keyBytes);
+        VaultIndex.Matcher matcher = matcher(map, keyBytes);
+        if (map.get((int) offset + 4) == TYPE_PUT) {
+            long old = mIndex.put(hash, offset, matcher);
+            if (old >= 0) {
+                mGarbageBytes += recordSizeAt(map, old);
+            }
+        } else {
+            long old = mIndex.remove(hash, matcher);
+            if (old >= 0) {
+                mGarbageBytes += recordSizeAt(map, old);
+            }
+            mGarbageBytes += size;
+        }
+    }
+
+    /**
+     * 追加一条记录并更新索引，调用方持有写锁
+     */
+    private void append(byte type, byte[] keyBytes, byte[] value) throws IOException {
+        long offset = mEnd;
+        long size = writeRecord(mChannel, offset, type, keyBytes, value);
+        mEnd = offset + size;
+        applyRecord(mapped(), offset, size);
+    }
+
+    private long writeRecord(FileChannel channel, long position, byte type, byte[] keyBytes, byte[] value)
+            throws IOException {
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("key too long: " + keyBytes.length);
+        }
+        int valueLength = value == null ? 0 : value.length;
+        int size = HEADER_SIZE + keyBytes.length + valueLength;
+        ByteBuffer buffer = mWriteBuffer;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            mWriteBuffer = buffer;
+        }
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put(type);
+        buffer.putShort((short) keyBytes.length);
+        buffer.putInt(valueLength);
+        buffer.putInt(0);
+        buffer.put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+        mWriteCrc.reset();
+        mWriteCrc.update(buffer.array(), 4, 7);
+        mWriteCrc.update(buffer.array(), HEADER_SIZE, keyBytes.length + valueLength);
+        buffer.putInt(11, (int) mWriteCrc.getValue());
+        buffer.flip();
+        writeFully(channel, buffer, position);
+        return size;
+    }
+
+    private static long copyRecord(ByteBuffer map, long offset, FileChannel target, long position)
+            throws IOException {
+        int size = (int) recordSizeAt(map, offset);
+        ByteBuffer record = map.duplicate();
+        record.position((int) offset);
+        record.limit((int) offset + size);
+        writeFully(target, record, position);
+        return size;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 返回覆盖到当前数据末尾的映射，调用方持有锁。
+     * 重新映射时容量翻倍，超过文件长度的部分由系统补0，之后的追加直接落在已映射的区域里
+     */
+    private ByteBuffer mapped() throws IOException {
+        MappedByteBuffer map = mMap;
+        if (map != null && map.capacity() >= mEnd) {
+            return map;
+        }
+        synchronized (mMapLock) {
+            map = mMap;
+            if (map == null || map.capacity() < mEnd) {
+                long capacity = Math.max(MIN_MAP_SIZE, map == null ? mEnd : Math.max(mEnd, map.capacity() * 2L));
+                if (capacity > Integer.MAX_VALUE) {
+                    throw new IOException("vault file too large");
+                }
+                map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+                mMap = map;
+            }
+            return map;
+        }
+    }
+
+    private static long[] collectOffsets(VaultIndex index) {
+        final long[] offsets = new long[index.size()];
+        index.forEach(new VaultIndex.Visitor() {
+            int mCount;
+
+            @Override
+            public void visit(long hash, long offset) {
+                offsets[mCount++] = offset;
+            }
+        });
+        return offsets;
+    }
+
+    private static long recordSizeAt(ByteBuffer map, long offset) {
+        int position = (int) offset;
+        return HEADER_SIZE + (map.getShort(position + 5) & 0xffff) + map.getInt(position + 7);
+    }
+
+    private static byte[] keyBytesAt(ByteBuffer map, long offset) {
+        int position = (int) offset;
+        byte[] key = new byte[map.getShort(position + 5) & 0xffff];
+        ByteBuffer source = map.duplicate();
+        source.position(position + HEADER_SIZE);
+        source.get(key);
+        return key;
+    }
+
+    private static String keyAt(ByteBuffer map, long offset) {
+        return new String(keyBytesAt(map, offset), UTF_8);
+    }
+
+    private static ByteBuffer valueAt(ByteBuffer map, long offset) {
+        int position = (int) offset;
+        int keyLength = map.getShort(position + 5) & 0xffff;
+        int valueLength = map.getInt(position + 7);
+        ByteBuffer value = map.duplicate();
+        value.position(position + HEADER_SIZE + keyLength);
+        value.limit(position + HEADER_SIZE + keyLength + valueLength);
+        return value.slice().asReadOnlyBuffer();
+    }
+
+    private VaultIndex.Matcher matcher(byte[] keyBytes) throws IOException {
+        return matcher(mapped(), keyBytes);
+    }
+
+    /**
+     * 直接在映射中比较key，不创建字符串
+     */
+    private static VaultIndex.Matcher matcher(final ByteBuffer map, final byte[] keyBytes) {
+        return new VaultIndex.Matcher() {
+            @Override
+            public boolean matches(long offset) {
+                int position = (int) offset;
+                if ((map.getShort(position + 5) & 0xffff) != keyBytes.length) {
+                    return false;
+                }
+                int keyStart = position + HEADER_SIZE;
+                for (int i = 0; i < keyBytes.length; i++) {
+                    if (map.get(keyStart + i) != keyBytes[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 64位FNV-1a
+     */
+    private static long hash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("vault closed");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.util.Random;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.SensorArbiter;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 多个页面（每个一个AuthSessionController）通过{@link SensorArbiter}共享一个假传感器，随机启动、取消和推进时间。
+ * 检查：任何时刻传感器上最多一个会话；成功结果只回调给发起请求的页面；结束后没有泄漏的会话、排队请求和延迟任务
+ *
+ * 运行：./gradlew :benchmark:arbiterSoak -Psoak.cycles=500000
+ */
+public class ArbiterSoakHarness {
+
+    private static final int DEFAULT_CYCLES = 300000;
+    private static final int[] PRIORITIES = {
+            SensorArbiter.PRIORITY_LOW, SensorArbiter.PRIORITY_NORMAL, SensorArbiter.PRIORITY_NORMAL,
+            SensorArbiter.PRIORITY_HIGH
+    };
+    private static final long MAX_WAIT_MS = 3000;
+
+    public static void main(String[] args) {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CYCLES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+        final Random random = new Random(seed);
+
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeFingerprintSensor sensor = new FakeFingerprintSensor(scheduler);
+        AuthMetrics metrics = new AuthMetrics();
+        SensorArbiter arbiter = new SensorArbiter(sensor, scheduler, metrics);
+        sensor.setEventSource(new FakeFingerprintSensor.EventSource() {
+            @Override
+            public Event next() {
+                int roll = random.nextInt(100);
+                long latency = 50 + random.nextInt(800);
+                if (roll < 30) {
+                    return Event.success(latency);
+                } else if (roll < 75) {
+                    return Event.failed(latency);
+                } else if (roll < 95) {
+                    return Event.help(1 + random.nextInt(5), latency);
+                }
+                return Event.error(FakeFingerprintSensor.ERROR_CANCELED, latency);
+            }
+        });
+
+        AuthSessionController[] controllers = new AuthSessionController[PRIORITIES.length];
+        PageListener[] listeners = new PageListener[PRIORITIES.length];
+        for (int i = 0; i < controllers.length; i++) {
+            final Integer crypto = i;
+            listeners[i] = new PageListener(crypto);
+            controllers[i] = new AuthSessionController(arbiter.newClient(PRIORITIES[i], MAX_WAIT_MS), scheduler,
+                    metrics, listeners[i]);
+            controllers[i].setRetryPolicy(new DefaultRetryPolicy(5, 300, 5000, 0.2f, 30000, new Random(seed + i)));
+            controllers[i].setCryptoProvider(new AuthSessionController.CryptoProvider() {
+                @Override
+                public Object getCrypto() {
+                    return crypto;
+                }
+            });
+        }
+
+        int overlaps = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            AuthSessionController controller = controllers[random.nextInt(controllers.length)];
+            int action = random.nextInt(10);
+            if (action < 4) {
+                controller.start();
+            } else if (action < 6) {
+                controller.cancel();
+            } else {
+                scheduler.advanceBy(random.nextInt(2000));
+            }
+            if (sensor.getOpenSessionCount() > 1) {
+                overlaps++;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        for (AuthSessionController controller : controllers) {
+            controller.cancel();
+        }
+        scheduler.advanceBy(60000);
+        for (AuthSessionController controller : controllers) {
+            controller.destroy();
+        }
+
+        int misrouted = 0;
+        System.out.println("cycles:            " + cycles);
+        System.out.println("throughput:        " + (long) (cycles / (elapsedNanos / 1e9)) + " cycles/s");
+        for (int i = 0; i < listeners.length; i++) {
+            misrouted += listeners[i].mMisrouted;
+            System.out.println("page " + i + " (priority " + PRIORITIES[i] + "): success " + listeners[i].mSucceeded
+                    + ", errors " + listeners[i].mErrors + ", timeouts " + listeners[i].mTimeouts);
+        }
+        System.out.println("authenticate:      " + sensor.getAuthenticateCalls());
+        System.out.println("overlapping:       " + overlaps);
+        System.out.println("misrouted:         " + misrouted);
+        System.out.println("open sessions:     " + sensor.getOpenSessionCount());
+        System.out.println("queued requests:   " + arbiter.getQueueLength());
+        System.out.println("pending tasks:     " + scheduler.getPendingCount());
+        System.out.println(metrics.snapshot());
+
+        if (overlaps != 0 || misrouted != 0 || sensor.getOpenSessionCount() != 0 || arbiter.getQueueLength() != 0
+                || arbiter.isBusy() || scheduler.getPendingCount() != 0) {
+            System.out.println("FAILED: overlapping or leaked sessions, misrouted results or pending tasks");
+            System.exit(1);
+        }
+    }
+
+    private static final class PageListener extends AuthCycleBenchmark.NoopListener {
+        private final Object mCrypto;
+        int mSucceeded;
+        int mErrors;
+        int mTimeouts;
+        int mMisrouted;
+
+        PageListener(Object crypto) {
+            mCrypto = crypto;
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+            mSucceeded++;
+            if (crypto != mCrypto) {
+                mMisrouted++;
+            }
+        }
+
+        @Override
+        public void onError(int errMsgId, CharSequence errString) {
+            if (errMsgId == FakeFingerprintSensor.ERROR_TIMEOUT) {
+                mTimeouts++;
+            } else {
+                mErrors++;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 用假传感器和虚拟时间驱动FingerprintCore实际使用的AuthSessionController，
+ * 测量start/cancel/retry循环本身的开销，重试间隔只推进虚拟时间不真正等待
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthCycleBenchmark {
+
+    @State(Scope.Thread)
+    public static class Session {
+        VirtualScheduler mScheduler;
+        FakeFingerprintSensor mSensor;
+        AuthSessionController mController;
+
+        @Setup
+        public void setUp() {
+            mScheduler = new VirtualScheduler();
+            mSensor = new FakeFingerprintSensor(mScheduler);
+            mController = new AuthSessionController(mSensor, mScheduler, new AuthMetrics(), new NoopListener());
+            mController.setRetryPolicy(new DefaultRetryPolicy(5, 300, 5000, 0.2f, 30000, new Random(1)));
+        }
+    }
+
+    @Benchmark
+    public boolean startCancel(Session session) {
+        session.mController.start();
+        session.mController.cancel();
+        return session.mController.isAuthenticating();
+    }
+
+    /** 两次失败重试之后成功 */
+    @Benchmark
+    public long startFailRetrySuccess(Session session) {
+        session.mSensor.enqueue(Event.failed(400), Event.failed(400), Event.success(400));
+        session.mController.start();
+        session.mScheduler.runUntilIdle(16);
+        return session.mScheduler.now();
+    }
+
+    /**
+     * 多个线程同时对同一个控制器start/cancel，另一个线程像FingerprintCore的回调线程一样执行传感器事件和重试，
+     * 测量竞争下的开销
+     */
+    @State(Scope.Group)
+    public static class SharedSession extends Session {
+        @Setup
+        public void setUpEvents() {
+            final Random random = new Random(1);
+            mSensor.setEventSource(new FakeFingerprintSensor.EventSource() {
+                @Override
+                public Event next() {
+                    return random.nextInt(4) == 0 ? Event.success(0) : Event.failed(0);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public boolean contendedStart(SharedSession session) {
+        return session.mController.start();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void contendedCancel(SharedSession session) {
+        session.mController.cancel();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int contendedCallbacks(SharedSession session) {
+        return session.mScheduler.runUntilIdle(4);
+    }
+
+    static class NoopListener implements AuthSessionController.Listener {
+        @Override
+        public void onStartResult(boolean isSuccess, Throwable exception) {
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+        }
+
+        @Override
+        public void onFailed(int msgId, CharSequence message) {
+        }
+
+        @Override
+        public void onError(int errMsgId, CharSequence errString) {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import fingerprint.com.fingerprintrecognition.core.ChallengeBatch;
+import fingerprint.com.fingerprintrecognition.core.ChallengeVerifier;
+
+/**
+ * 批量签名挑战的吞吐：每批一次initSign和一次签名（对应一次指纹识别），由{@link ChallengeVerifier}验证。
+ * 输出每秒签名数（即每秒批次数）、每秒挑战数，以及每批和平摊到每个挑战的签名、验证耗时；
+ * 批大小为1即逐个签名。JVM上用JDK的软件EC实现，AndroidKeyStore的签名更慢，一次识别本身要几百毫秒，
+ * 平摊的收益比这里更明显
+ *
+ * 运行：./gradlew :benchmark:challengeSigning
+ */
+public class ChallengeSigningHarness {
+
+    private static final int[] BATCH_SIZES = {1, 4, 16, 64, 256};
+    private static final long WARMUP_NANOS = 1000000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        ChallengeVerifier verifier = new ChallengeVerifier(keyPair.getPublic().getEncoded());
+        Signature signature = Signature.getInstance(ChallengeBatch.SIGNATURE_ALGORITHM);
+
+        System.out.println("batch  signatures/s  challenges/s  sign us/batch  sign us/challenge  verify us/batch");
+        for (int batchSize : BATCH_SIZES) {
+            run(keyPair, verifier, signature, batchSize, WARMUP_NANOS);
+            long[] result = run(keyPair, verifier, signature, batchSize, MEASURE_NANOS);
+            long batches = result[0];
+            double signMicros = result[1] / 1000.0 / batches;
+            double verifyMicros = result[2] / 1000.0 / batches;
+            System.out.println(String.format("%5d  %12.0f  %12.0f  %13.1f  %17.2f  %15.1f", batchSize,
+                    1e6 / signMicros, 1e6 / signMicros * batchSize, signMicros, signMicros / batchSize,
+                    verifyMicros));
+        }
+        if (verifier.getOutstandingCount() != 0) {
+            System.out.println("FAILED: " + verifier.getOutstandingCount() + " challenges not verified");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return 批次数、签名总耗时、验证总耗时（纳秒）
+     */
+    private static long[] run(KeyPair keyPair, ChallengeVerifier verifier, Signature signature, int batchSize,
+                              long durationNanos) throws GeneralSecurityException {
+        long batches = 0;
+        long signNanos = 0;
+        long verifyNanos = 0;
+        long endNanos = System.nanoTime() + durationNanos;
+        List<byte[]> challenges = new ArrayList<>(batchSize);
+        while (System.nanoTime() < endNanos) {
+            challenges.clear();
+            for (int i = 0; i < batchSize; i++) {
+                challenges.add(verifier.issueChallenge());
+            }
+            long startNanos = System.nanoTime();
+            ChallengeBatch batch = new ChallengeBatch(challenges);
+            signature.initSign(keyPair.getPrivate());
+            batch.sign(signature);
+            long signedNanos = System.nanoTime();
+            if (!verifier.verify(batch)) {
+                throw new IllegalStateException("batch rejected");
+            }
+            verifyNanos += System.nanoTime() - signedNanos;
+            signNanos += signedNanos - startNanos;
+            batches++;
+        }
+        return new long[]{batches, signNanos, verifyNanos};
+    }
+}
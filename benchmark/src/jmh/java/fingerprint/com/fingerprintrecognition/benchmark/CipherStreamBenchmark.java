@@ -0,0 +1,101 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import fingerprint.com.fingerprintrecognition.core.CipherStream;
+
+/**
+ * 用CipherStream从FileChannel流式加密，比较分块大小和heap/direct buffer的差别；
+ * 加上 -prof gc 可以看到每次操作的分配量与文件大小无关
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CipherStreamBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"16384", "65536"})
+    public int chunkSize;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mSource;
+    private SecretKey mKey;
+    private Cipher mCipher;
+    private CipherStream mStream;
+    private final WritableByteChannel mSink = new NullChannel();
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+        mFile = File.createTempFile("cipher_stream", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        for (int i = 0; i < FILE_SIZE / block.length; i++) {
+            mRandomAccessFile.write(block);
+        }
+        mSource = mRandomAccessFile.getChannel();
+        mKey = new SoftwareKeyStore().createKey(SoftwareKeyStore.KEY_NAME);
+        mCipher = SoftwareKeyStore.newCipher();
+        mStream = new CipherStream(chunkSize, direct);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRandomAccessFile.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long encryptFile() throws IOException, GeneralSecurityException {
+        mSource.position(0);
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return mStream.encrypt(mCipher, mSource, mSink);
+    }
+
+    /**
+     * 丢弃所有写入的数据
+     */
+    static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
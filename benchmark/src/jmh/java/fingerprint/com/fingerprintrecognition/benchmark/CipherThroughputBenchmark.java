@@ -0,0 +1,62 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES/CBC/PKCS7在不同数据大小下的加解密吞吐量，输出缓冲区预先分配，只测加解密本身
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CipherThroughputBenchmark {
+
+    @Param({"64", "1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private SecretKey mKey;
+    private Cipher mEncryptCipher;
+    private Cipher mDecryptCipher;
+    private byte[] mPlain;
+    private byte[] mEncrypted;
+    private int mEncryptedLength;
+    private byte[] mOutput;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        mKey = new SoftwareKeyStore().createKey(SoftwareKeyStore.KEY_NAME);
+        mPlain = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(mPlain);
+        mEncryptCipher = SoftwareKeyStore.newCipher();
+        mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        mEncrypted = mEncryptCipher.doFinal(mPlain);
+        mEncryptedLength = mEncrypted.length;
+        mDecryptCipher = SoftwareKeyStore.newCipher();
+        mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(mEncryptCipher.getIV()));
+        mOutput = new byte[mEncryptedLength + 16];
+    }
+
+    @Benchmark
+    public int encrypt() throws GeneralSecurityException {
+        return mEncryptCipher.doFinal(mPlain, 0, mPlain.length, mOutput, 0);
+    }
+
+    @Benchmark
+    public int decrypt() throws GeneralSecurityException {
+        return mDecryptCipher.doFinal(mEncrypted, 0, mEncryptedLength, mOutput, 0);
+    }
+}
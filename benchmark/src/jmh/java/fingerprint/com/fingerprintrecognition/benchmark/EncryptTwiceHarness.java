@@ -0,0 +1,134 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.CryptoEnvelope;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.PreparedCryptoProvider;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 连续两次（以上）识别成功并用通过认证的Cipher加密，检查每次都能加密并解密回原文。
+ * FingerprintCore没有KeyManager时默认用双缓冲的PreparedCryptoProvider，每次启动换上一个在后台线程初始化好的新Cipher，
+ * 这里用JDK的AES/GCM按同样的方式提供；同时跑一遍只初始化一次、每次都复用同一个Cipher的旧做法作为对照，
+ * GCM不允许同一个Cipher不重新初始化就再次加密，第二次就会失败
+ *
+ * 运行：./gradlew :benchmark:encryptTwice
+ */
+public class EncryptTwiceHarness {
+
+    private static final int DEFAULT_ROUNDS = 2;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        final SecretKey key = generator.generateKey();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PreparedCryptoProvider prepared = new PreparedCryptoProvider(new PreparedCryptoProvider.Factory() {
+            @Override
+            public Object create() {
+                return newEncryptCipher(key);
+            }
+        }, executor);
+        int freshEncrypted = run(rounds, key, prepared);
+        prepared.close();
+        executor.shutdown();
+        final Cipher shared = newEncryptCipher(key);
+        int sharedEncrypted = run(rounds, key, new AuthSessionController.CryptoProvider() {
+            @Override
+            public Object getCrypto() {
+                return shared;
+            }
+        });
+
+        System.out.println("rounds:                 " + rounds);
+        System.out.println("new cipher per start:   " + freshEncrypted + "/" + rounds + " encrypted"
+                + " (prepared hits " + prepared.getHitCount() + ", misses " + prepared.getMissCount() + ")");
+        System.out.println("cipher reused (before): " + sharedEncrypted + "/" + rounds + " encrypted");
+        if (freshEncrypted != rounds) {
+            System.out.println("FAILED: encryption after a repeated authentication");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 用真实的AuthSessionController和假传感器识别rounds次，每次成功后加密
+     * @return 加密并解密成功的次数
+     */
+    private static int run(int rounds, SecretKey key, AuthSessionController.CryptoProvider cryptoProvider) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeFingerprintSensor sensor = new FakeFingerprintSensor(scheduler);
+        EncryptingListener listener = new EncryptingListener(key);
+        AuthSessionController controller = new AuthSessionController(sensor, scheduler, new AuthMetrics(), listener);
+        controller.setCryptoProvider(cryptoProvider);
+        for (int i = 0; i < rounds; i++) {
+            if (cryptoProvider instanceof PreparedCryptoProvider) {
+                // 两次识别之间用户操作的时间足够后台准备好下一个，这里等它准备好
+                awaitPrepared((PreparedCryptoProvider) cryptoProvider);
+            }
+            sensor.enqueue(Event.success(300));
+            controller.start();
+            scheduler.runUntilIdle(16);
+        }
+        controller.destroy();
+        return listener.mEncrypted;
+    }
+
+    private static void awaitPrepared(PreparedCryptoProvider prepared) {
+        prepared.prepareNext();
+        long deadline = System.nanoTime() + 1000000000L;
+        while (!prepared.isPrepared() && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static Cipher newEncryptCipher(SecretKey key) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class EncryptingListener extends AuthCycleBenchmark.NoopListener {
+        private final SecretKey mKey;
+        int mEncrypted;
+        private int mRound;
+
+        EncryptingListener(SecretKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+            mRound++;
+            byte[] plainText = ("round " + mRound).getBytes();
+            try {
+                byte[] envelope = CryptoEnvelope.seal((Cipher) crypto, plainText);
+                CryptoEnvelope parsed = CryptoEnvelope.parse(envelope);
+                Cipher decrypt = Cipher.getInstance(TRANSFORMATION);
+                decrypt.init(Cipher.DECRYPT_MODE, mKey, parsed.newParameterSpec());
+                if (Arrays.equals(plainText, parsed.open(decrypt))) {
+                    mEncrypted++;
+                }
+            } catch (GeneralSecurityException | IllegalStateException e) {
+                System.out.println("round " + mRound + " encrypt failed: " + e);
+            }
+        }
+    }
+}
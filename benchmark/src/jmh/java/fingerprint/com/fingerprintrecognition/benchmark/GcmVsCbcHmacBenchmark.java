@@ -0,0 +1,103 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import fingerprint.com.fingerprintrecognition.core.CryptoEnvelope;
+
+/**
+ * 带完整性校验的加解密：AES-GCM一次完成 vs AES-CBC加密后再算一遍HmacSHA256（encrypt-then-MAC）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GcmVsCbcHmacBenchmark {
+
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    @Param({"1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private SecretKey mKey;
+    private SecretKey mMacKey;
+    private Cipher mGcmCipher;
+    private Cipher mCbcCipher;
+    private Mac mMac;
+    private byte[] mPlain;
+    private byte[] mGcmEnvelope;
+    private byte[] mCbcEnvelope;
+    private byte[] mCbcTag;
+    private byte[] mCbcOutput;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        mKey = new SoftwareKeyStore().createKey(SoftwareKeyStore.KEY_NAME);
+        KeyGenerator macKeyGenerator = KeyGenerator.getInstance("HmacSHA256");
+        mMacKey = macKeyGenerator.generateKey();
+        mGcmCipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        mCbcCipher = SoftwareKeyStore.newCipher();
+        mMac = Mac.getInstance("HmacSHA256");
+        mMac.init(mMacKey);
+        mPlain = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(mPlain);
+        mGcmEnvelope = gcmSeal();
+        mCbcEnvelope = cbcSeal();
+        mCbcTag = mMac.doFinal(mCbcEnvelope);
+        mCbcOutput = new byte[payloadSize + 16];
+    }
+
+    @Benchmark
+    public byte[] gcmSeal() throws GeneralSecurityException {
+        // GCM每次加密都必须使用新的IV
+        mGcmCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return CryptoEnvelope.seal(mGcmCipher, mPlain);
+    }
+
+    @Benchmark
+    public byte[] gcmOpen() throws GeneralSecurityException {
+        CryptoEnvelope envelope = CryptoEnvelope.parse(mGcmEnvelope);
+        mGcmCipher.init(Cipher.DECRYPT_MODE, mKey, envelope.newParameterSpec());
+        return envelope.open(mGcmCipher);
+    }
+
+    @Benchmark
+    public byte[] cbcHmacSeal() throws GeneralSecurityException {
+        byte[] envelope = cbcSeal();
+        mMac.update(envelope);
+        return mMac.doFinal();
+    }
+
+    @Benchmark
+    public int cbcHmacOpen() throws GeneralSecurityException {
+        // 先校验MAC再解密
+        if (!MessageDigest.isEqual(mCbcTag, mMac.doFinal(mCbcEnvelope))) {
+            throw new GeneralSecurityException("bad mac");
+        }
+        CryptoEnvelope envelope = CryptoEnvelope.parse(mCbcEnvelope);
+        mCbcCipher.init(Cipher.DECRYPT_MODE, mKey, (IvParameterSpec) envelope.newParameterSpec());
+        int offset = mCbcEnvelope.length - envelope.getPayload().remaining();
+        return mCbcCipher.doFinal(mCbcEnvelope, offset, mCbcEnvelope.length - offset, mCbcOutput, 0);
+    }
+
+    private byte[] cbcSeal() throws GeneralSecurityException {
+        mCbcCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return CryptoEnvelope.seal(mCbcCipher, mPlain);
+    }
+}
@@ -0,0 +1,84 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * 秘钥生成、复用已有秘钥、Cipher初始化以及Cipher复用和重新初始化的开销
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyAndCipherBenchmark {
+
+    private static final byte[] PAYLOAD = new byte[32];
+
+    private SoftwareKeyStore mKeyStore;
+    private SecretKey mKey;
+    private Cipher mInitializedCipher;
+    private byte[] mOutput;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        mKeyStore = new SoftwareKeyStore();
+        mKey = mKeyStore.createKey(SoftwareKeyStore.KEY_NAME);
+        mInitializedCipher = SoftwareKeyStore.newCipher();
+        mInitializedCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        mOutput = new byte[mInitializedCipher.getOutputSize(PAYLOAD.length)];
+    }
+
+    /** 冷加载：每次都重新生成秘钥 */
+    @Benchmark
+    public SecretKey createKey() throws GeneralSecurityException {
+        return mKeyStore.createKey(SoftwareKeyStore.KEY_NAME);
+    }
+
+    /** 热加载：秘钥已存在时直接取出复用 */
+    @Benchmark
+    public SecretKey reuseExistingKey() throws GeneralSecurityException {
+        if (mKeyStore.containsAlias(SoftwareKeyStore.KEY_NAME)) {
+            return mKeyStore.getKey(SoftwareKeyStore.KEY_NAME);
+        }
+        return mKeyStore.createKey(SoftwareKeyStore.KEY_NAME);
+    }
+
+    /** 对应initCipher()：取秘钥并初始化Cipher */
+    @Benchmark
+    public Cipher initCipher() throws GeneralSecurityException {
+        SecretKey key = mKeyStore.getKey(SoftwareKeyStore.KEY_NAME);
+        mInitializedCipher.init(Cipher.ENCRYPT_MODE, key);
+        return mInitializedCipher;
+    }
+
+    /** 每次都getInstance一个新的Cipher再初始化 */
+    @Benchmark
+    public Cipher newCipherAndInit() throws GeneralSecurityException {
+        Cipher cipher = SoftwareKeyStore.newCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return cipher;
+    }
+
+    /** 复用已经初始化的Cipher加密一小段数据 */
+    @Benchmark
+    public int encryptReusingCipher() throws GeneralSecurityException {
+        return mInitializedCipher.doFinal(PAYLOAD, 0, PAYLOAD.length, mOutput, 0);
+    }
+
+    /** 每次加密前重新初始化Cipher */
+    @Benchmark
+    public int encryptReinitCipher() throws GeneralSecurityException {
+        mInitializedCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return mInitializedCipher.doFinal(PAYLOAD, 0, PAYLOAD.length, mOutput, 0);
+    }
+}
@@ -0,0 +1,111 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.PreparedCryptoProvider;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 重新启动识别（重试或者新请求）的耗时：每次在启动路径上初始化新的Cipher，
+ * 和用{@link PreparedCryptoProvider}在后台提前准备好、启动时直接换上比较。
+ * keystoreMicros模拟AndroidKeyStore取秘钥、初始化Cipher的跨进程耗时
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RearmBenchmark {
+
+    @Param({"inline", "prepared"})
+    public String mode;
+
+    @Param({"0", "2000"})
+    public int keystoreMicros;
+
+    private SecretKey mKey;
+    private ExecutorService mExecutor;
+    private PreparedCryptoProvider mPrepared;
+    private AuthSessionController mController;
+
+    @Setup(Level.Trial)
+    public void setUp() throws GeneralSecurityException {
+        SoftwareKeyStore keyStore = new SoftwareKeyStore();
+        mKey = keyStore.createKey(SoftwareKeyStore.KEY_NAME);
+        mExecutor = Executors.newSingleThreadExecutor();
+        final PreparedCryptoProvider.Factory factory = new PreparedCryptoProvider.Factory() {
+            @Override
+            public Object create() throws Exception {
+                if (keystoreMicros > 0) {
+                    LockSupport.parkNanos(keystoreMicros * 1000L);
+                }
+                Cipher cipher = SoftwareKeyStore.newCipher();
+                cipher.init(Cipher.ENCRYPT_MODE, mKey);
+                return cipher;
+            }
+        };
+        VirtualScheduler scheduler = new VirtualScheduler();
+        mController = new AuthSessionController(new FakeFingerprintSensor(scheduler), scheduler, new AuthMetrics(),
+                new AuthCycleBenchmark.NoopListener());
+        if ("prepared".equals(mode)) {
+            mPrepared = new PreparedCryptoProvider(factory, mExecutor);
+            mController.setCryptoProvider(mPrepared);
+        } else {
+            mController.setCryptoProvider(new AuthSessionController.CryptoProvider() {
+                @Override
+                public Object getCrypto() {
+                    try {
+                        return factory.create();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 真实场景中两次启动之间至少隔着一次识别（几百毫秒），足够后台准备好下一个
+     */
+    @Setup(Level.Invocation)
+    public void awaitPrepared() {
+        if (mPrepared == null) {
+            return;
+        }
+        mPrepared.prepareNext();
+        while (!mPrepared.isPrepared()) {
+            Thread.yield();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public boolean rearm() {
+        boolean started = mController.start();
+        mController.cancel();
+        return started;
+    }
+}
@@ -0,0 +1,269 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.AuthStateMachine;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.FingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.RetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 重试策略模拟：用真实的{@link AuthSessionController}和{@link DefaultRetryPolicy}，
+ * 假传感器按脚本依次返回每次按压的结果，在虚拟时间上跑完整个识别流程，
+ * 统计识别成功前的按压次数、耗时以及authenticate/cancel调用次数。
+ * 锁定冷却结束后由模拟的用户重新启动，重试策略放弃时结束
+ *
+ * 运行：./gradlew :benchmark:retrySimulation -Pretry.rounds=1000 -Pretry.touchLatencyMs=300
+ */
+public class RetrySimulator {
+
+    private static final int DEFAULT_ROUNDS = 1000;
+    private static final long DEFAULT_TOUCH_LATENCY_MS = 300;
+    // 与FingerprintManager.FINGERPRINT_ACQUIRED_PARTIAL取值一致
+    private static final int ACQUIRED_PARTIAL = 1;
+    private static final int ACQUIRED_VENDOR = 1001;
+    /** 单个流程最多执行的调度任务数，防止策略出错时死循环 */
+    private static final int MAX_TASKS = 10000;
+
+    /**
+     * 识别事件脚本，每个事件表示用户的一次按压（或一次系统回调）
+     */
+    public static class Script {
+        private final String mName;
+        private final List<int[]> mEvents = new ArrayList<>();
+
+        public Script(String name) {
+            mName = name;
+        }
+
+        public Script success() {
+            mEvents.add(new int[]{FakeFingerprintSensor.EVENT_SUCCESS, 0});
+            return this;
+        }
+
+        public Script failed() {
+            mEvents.add(new int[]{FakeFingerprintSensor.EVENT_FAILED, 0});
+            return this;
+        }
+
+        public Script failed(int times) {
+            for (int i = 0; i < times; i++) {
+                failed();
+            }
+            return this;
+        }
+
+        public Script help(int helpMsgId) {
+            mEvents.add(new int[]{FakeFingerprintSensor.EVENT_HELP, helpMsgId});
+            return this;
+        }
+
+        public Script lockout() {
+            mEvents.add(new int[]{FakeFingerprintSensor.EVENT_ERROR, FingerprintSensor.ERROR_LOCKOUT});
+            return this;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    public static class Result {
+        /** 识别成功的次数（runAverage时为成功的轮数） */
+        public int succeeded;
+        /** 成功或放弃之前的按压次数 */
+        public long attempts;
+        /** 从第一次启动到结束的虚拟时间 */
+        public long elapsedMs;
+        public long authenticateCalls;
+        public long cancelCalls;
+
+        @Override
+        public String toString() {
+            return "succeeded=" + succeeded + ", attempts=" + attempts + ", elapsedMs=" + elapsedMs
+                    + ", authenticateCalls=" + authenticateCalls + ", cancelCalls=" + cancelCalls;
+        }
+    }
+
+    private final RetryPolicy mPolicy;
+    /** 传感器启动之后用户按压到回调返回的时间 */
+    private final long mTouchLatencyMs;
+
+    public RetrySimulator(RetryPolicy policy, long touchLatencyMs) {
+        mPolicy = policy;
+        mTouchLatencyMs = touchLatencyMs;
+    }
+
+    public Result run(Script script) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeFingerprintSensor sensor = new FakeFingerprintSensor(scheduler);
+        final ArrayDeque<int[]> events = new ArrayDeque<>(script.mEvents);
+        sensor.setEventSource(new FakeFingerprintSensor.EventSource() {
+            @Override
+            public Event next() {
+                int[] event = events.poll();
+                if (event == null) {
+                    return null;
+                }
+                switch (event[0]) {
+                    case FakeFingerprintSensor.EVENT_SUCCESS:
+                        return Event.success(mTouchLatencyMs);
+                    case FakeFingerprintSensor.EVENT_HELP:
+                        return Event.help(event[1], mTouchLatencyMs);
+                    case FakeFingerprintSensor.EVENT_ERROR:
+                        return Event.error(event[1], mTouchLatencyMs);
+                    default:
+                        return Event.failed(mTouchLatencyMs);
+                }
+            }
+        });
+        RecordingPolicy policy = new RecordingPolicy(mPolicy);
+        RecordingListener listener = new RecordingListener(scheduler);
+        AuthSessionController controller = new AuthSessionController(sensor, scheduler, new AuthMetrics(), listener);
+        controller.setRetryPolicy(policy);
+
+        controller.start();
+        int tasks = 0;
+        while (!listener.mSucceeded && !policy.mGaveUp && tasks < MAX_TASKS) {
+            if (scheduler.runUntilIdle(1) == 1) {
+                tasks++;
+                continue;
+            }
+            // 没有待执行的任务：锁定冷却已经结束，用户再按一次时重新启动；否则脚本已经用完
+            if (events.isEmpty() || !controller.getStateMachine().is(AuthStateMachine.IDLE) || !controller.start()) {
+                break;
+            }
+        }
+        long elapsedMs = listener.mSucceeded ? listener.mSucceededAtMs : scheduler.now();
+        controller.destroy();
+
+        Result result = new Result();
+        result.succeeded = listener.mSucceeded ? 1 : 0;
+        result.attempts = listener.mTouches;
+        result.elapsedMs = elapsedMs;
+        result.authenticateCalls = sensor.getAuthenticateCalls();
+        result.cancelCalls = sensor.getCancelCalls();
+        return result;
+    }
+
+    /**
+     * 多次运行同一个脚本（抖动只影响耗时，不影响是否成功），返回平均值
+     */
+    public Result runAverage(Script script, int rounds) {
+        Result average = new Result();
+        for (int i = 0; i < rounds; i++) {
+            Result result = run(script);
+            average.succeeded += result.succeeded;
+            average.attempts += result.attempts;
+            average.elapsedMs += result.elapsedMs;
+            average.authenticateCalls += result.authenticateCalls;
+            average.cancelCalls += result.cancelCalls;
+        }
+        average.attempts /= rounds;
+        average.elapsedMs /= rounds;
+        average.authenticateCalls /= rounds;
+        average.cancelCalls /= rounds;
+        return average;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+        long touchLatencyMs = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_TOUCH_LATENCY_MS;
+        RetrySimulator simulator = new RetrySimulator(new DefaultRetryPolicy(
+                DefaultRetryPolicy.DEFAULT_MAX_FAILED_TIMES, DefaultRetryPolicy.DEFAULT_BASE_DELAY_MS,
+                DefaultRetryPolicy.DEFAULT_MAX_DELAY_MS, 0.2f, DefaultRetryPolicy.DEFAULT_LOCKOUT_COOLDOWN_MS,
+                new Random(42)), touchLatencyMs);
+
+        Script[] scripts = {
+                new Script("first touch").success(),
+                new Script("partial x2").help(ACQUIRED_PARTIAL).help(ACQUIRED_PARTIAL).success(),
+                new Script("vendor help").help(ACQUIRED_VENDOR).success(),
+                new Script("failed x2").failed(2).success(),
+                new Script("failed x4").failed(4).success(),
+                new Script("lockout").failed(2).lockout().success(),
+                new Script("give up").failed(DefaultRetryPolicy.DEFAULT_MAX_FAILED_TIMES + 1).success(),
+        };
+        System.out.println("rounds: " + rounds + ", touch latency: " + touchLatencyMs + "ms");
+        System.out.println(String.format("%-12s %9s %18s %18s %13s %8s",
+                "script", "succeeded", "attempts-to-result", "time-to-result(ms)", "authenticate", "cancel"));
+        for (Script script : scripts) {
+            Result result = simulator.runAverage(script, rounds);
+            System.out.println(String.format("%-12s %4d/%-4d %18d %18d %13d %8d", script.getName(),
+                    result.succeeded, rounds, result.attempts, result.elapsedMs,
+                    result.authenticateCalls, result.cancelCalls));
+        }
+    }
+
+    /**
+     * 把决定交给真实的重试策略，记录是否放弃
+     */
+    private static final class RecordingPolicy implements RetryPolicy {
+        private final RetryPolicy mDelegate;
+        boolean mGaveUp;
+
+        RecordingPolicy(RetryPolicy delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public long onHelp(int helpMsgId, int helpTimes) {
+            return record(mDelegate.onHelp(helpMsgId, helpTimes));
+        }
+
+        @Override
+        public long onFailed(int failedTimes) {
+            return record(mDelegate.onFailed(failedTimes));
+        }
+
+        @Override
+        public long getLockoutCooldownMs() {
+            return mDelegate.getLockoutCooldownMs();
+        }
+
+        private long record(long decision) {
+            if (decision == GIVE_UP) {
+                mGaveUp = true;
+            }
+            return decision;
+        }
+    }
+
+    /**
+     * 每个回调对应用户的一次按压
+     */
+    private static final class RecordingListener extends AuthCycleBenchmark.NoopListener {
+        private final VirtualScheduler mScheduler;
+        int mTouches;
+        boolean mSucceeded;
+        long mSucceededAtMs;
+
+        RecordingListener(VirtualScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+            mTouches++;
+            mSucceeded = true;
+            mSucceededAtMs = mScheduler.now();
+        }
+
+        @Override
+        public void onFailed(int msgId, CharSequence message) {
+            mTouches++;
+        }
+
+        @Override
+        public void onError(int errMsgId, CharSequence errString) {
+            mTouches++;
+        }
+    }
+}
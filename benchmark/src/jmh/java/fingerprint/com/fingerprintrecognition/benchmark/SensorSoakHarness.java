@@ -0,0 +1,112 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.util.Random;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.AuthStateMachine;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 长时间随机start/cancel/retry的稳定性测试：传感器随机返回成功、失败、帮助和错误，
+ * 用户随机取消、切到后台再回来，传感器空闲超时释放，结束后检查有没有泄漏的会话和遗留的延迟任务
+ *
+ * 运行：./gradlew :benchmark:soak -Psoak.cycles=500000
+ */
+public class SensorSoakHarness {
+
+    private static final int DEFAULT_CYCLES = 300000;
+    private static final long IDLE_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CYCLES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+        final Random random = new Random(seed);
+
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeFingerprintSensor sensor = new FakeFingerprintSensor(scheduler);
+        AuthMetrics metrics = new AuthMetrics();
+        AuthSessionController controller = new AuthSessionController(sensor, scheduler, metrics,
+                new AuthCycleBenchmark.NoopListener());
+        controller.setRetryPolicy(new DefaultRetryPolicy(5, 300, 5000, 0.2f, 30000, new Random(seed)));
+        controller.setIdleTimeout(IDLE_TIMEOUT_MS);
+        sensor.setEventSource(new FakeFingerprintSensor.EventSource() {
+            @Override
+            public Event next() {
+                int roll = random.nextInt(100);
+                long latency = 50 + random.nextInt(800);
+                if (roll < 30) {
+                    return Event.success(latency);
+                } else if (roll < 70) {
+                    return Event.failed(latency);
+                } else if (roll < 90) {
+                    return Event.help(1 + random.nextInt(5), latency);
+                } else if (roll < 93) {
+                    // 用户一直没有触摸，由空闲超时释放
+                    return null;
+                } else if (roll < 97) {
+                    return Event.error(FakeFingerprintSensor.ERROR_CANCELED, latency);
+                }
+                return Event.error(FakeFingerprintSensor.ERROR_LOCKOUT, latency);
+            }
+        });
+
+        int leakChecks = 0;
+        int leaks = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            int action = random.nextInt(20);
+            if (action < 10) {
+                controller.start();
+            } else if (action < 14) {
+                controller.cancel();
+            } else if (action < 15) {
+                if (controller.isPaused()) {
+                    controller.resume();
+                } else {
+                    controller.pause();
+                }
+            } else {
+                scheduler.advanceBy(random.nextInt(2000));
+            }
+            if (controller.isPaused() && sensor.getOpenSessionCount() != 0) {
+                // 暂停期间传感器必须已经释放
+                leaks++;
+            }
+            if (!controller.isAuthenticating() && controller.getStateMachine().is(AuthStateMachine.IDLE)) {
+                // 空闲时传感器上不应该还有在监听的会话
+                leakChecks++;
+                if (sensor.getOpenSessionCount() != 0) {
+                    leaks++;
+                }
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // 结束：取消识别，跑完锁定冷却等剩余任务
+        controller.resume();
+        controller.cancel();
+        scheduler.advanceBy(60000);
+        controller.destroy();
+
+        System.out.println("cycles:            " + cycles);
+        System.out.println("throughput:        " + (long) (cycles / (elapsedNanos / 1e9)) + " cycles/s");
+        System.out.println("virtual time:      " + scheduler.now() + " ms");
+        System.out.println("authenticate:      " + sensor.getAuthenticateCalls());
+        System.out.println("session cancel:    " + sensor.getCancelCalls());
+        System.out.println("idle leak checks:  " + leakChecks + ", leaked: " + leaks);
+        System.out.println("open sessions:     " + sensor.getOpenSessionCount());
+        System.out.println("pending tasks:     " + scheduler.getPendingCount());
+        System.out.println("final state:       " + AuthStateMachine.nameOf(controller.getStateMachine().get()));
+        System.out.println("rejected transits: " + controller.getStateMachine().getRejectedCount());
+        System.out.println(metrics.snapshot());
+
+        if (leaks != 0 || sensor.getOpenSessionCount() != 0 || scheduler.getPendingCount() != 0) {
+            System.out.println("FAILED: leaked sessions or pending tasks");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * AndroidKeyStore在JVM上不存在，这里用JDK自带的软件实现代替：
+ * PKCS12 KeyStore保存秘钥，SunJCE提供AES/CBC，PKCS5Padding对AES来说与Android上的PKCS7Padding等价
+ */
+public class SoftwareKeyStore {
+
+    public static final String KEY_NAME = "crypto_object_fingerprint_key";
+    public static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final KeyStore.ProtectionParameter PROTECTION = new KeyStore.PasswordProtection(new char[0]);
+
+    private final KeyStore mKeyStore;
+    private final KeyGenerator mKeyGenerator;
+
+    public SoftwareKeyStore() throws GeneralSecurityException {
+        try {
+            mKeyStore = KeyStore.getInstance("PKCS12");
+            mKeyStore.load(null, null);
+        } catch (java.io.IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+        mKeyGenerator = KeyGenerator.getInstance("AES");
+        mKeyGenerator.init(256);
+    }
+
+    /**
+     * 对应CryptoObjectCreator.createKey()
+     */
+    public SecretKey createKey(String alias) throws GeneralSecurityException {
+        SecretKey key = mKeyGenerator.generateKey();
+        mKeyStore.setEntry(alias, new KeyStore.SecretKeyEntry(key), PROTECTION);
+        return key;
+    }
+
+    /**
+     * 对应CryptoObjectCreator.initCipher()中从KeyStore取秘钥的部分
+     */
+    public SecretKey getKey(String alias) throws GeneralSecurityException {
+        return (SecretKey) mKeyStore.getKey(alias, new char[0]);
+    }
+
+    public boolean containsAlias(String alias) throws GeneralSecurityException {
+        return mKeyStore.containsAlias(alias);
+    }
+
+    public static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(TRANSFORMATION);
+    }
+}
@@ -0,0 +1,250 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.AuthStateMachine;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.FingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 多线程start/cancel压力测试：和FingerprintCore一样，传感器回调、重试在一个调度线程上执行，
+ * 另外几个线程（对应主线程和各个调用方）同时随机start/cancel。检查：
+ * 同一时刻最多一个会话在监听（没有重复authenticate）、结束后没有泄漏的会话、
+ * 会话被取消之后才到达的回调不会通知Listener（取消时已经在通知的回调允许在取消返回之后到达）
+ *
+ * 运行：./gradlew :benchmark:startCancelStress -Pstress.seconds=30
+ */
+public class StartCancelStressHarness {
+
+    private static final int DEFAULT_SECONDS = 5;
+    private static final int CLIENT_THREADS = 4;
+
+    /** 正在分发的回调到达时会话是否已经被取消，Listener用它判断有没有通知不该通知的回调 */
+    private static final ThreadLocal<Boolean> sCancelledOnArrival = new ThreadLocal<>();
+
+    private static final AtomicLong sDoubleAuthenticate = new AtomicLong();
+    private static final AtomicLong sCallbackAfterCancel = new AtomicLong();
+    private static final AtomicLong sCallbacks = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+        final Random eventRandom = new Random(seed);
+
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final FakeFingerprintSensor fake = new FakeFingerprintSensor(scheduler);
+        fake.setEventSource(new FakeFingerprintSensor.EventSource() {
+            @Override
+            public Event next() {
+                int roll = eventRandom.nextInt(100);
+                long latency = eventRandom.nextInt(4);
+                if (roll < 25) {
+                    return Event.success(latency);
+                } else if (roll < 60) {
+                    return Event.failed(latency);
+                } else if (roll < 80) {
+                    return Event.help(1 + eventRandom.nextInt(5), latency);
+                } else if (roll < 90) {
+                    // 一直没有触摸，只能靠取消释放，泄漏的会话会留到最后
+                    return null;
+                } else if (roll < 97) {
+                    return Event.error(FingerprintSensor.ERROR_HW_UNAVAILABLE, latency);
+                }
+                return Event.error(FingerprintSensor.ERROR_LOCKOUT, latency);
+            }
+        });
+        AuthMetrics metrics = new AuthMetrics();
+        final AuthSessionController controller = new AuthSessionController(new CheckedSensor(fake), scheduler,
+                metrics, new CheckingListener());
+        controller.setRetryPolicy(new DefaultRetryPolicy(5, 2, 20, 0.2f, 50, new Random(seed)));
+
+        final long endNanos = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong starts = new AtomicLong();
+        final AtomicLong cancels = new AtomicLong();
+        final boolean[] stopSensor = new boolean[1];
+        Thread sensorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (stopSensor) {
+                        if (stopSensor[0]) {
+                            return;
+                        }
+                    }
+                    scheduler.advanceBy(1);
+                }
+            }
+        }, "sensor");
+        Thread[] clients = new Thread[CLIENT_THREADS];
+        for (int i = 0; i < clients.length; i++) {
+            final Random random = new Random(seed + i + 1);
+            clients[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < endNanos) {
+                        int action = random.nextInt(10);
+                        if (action < 6) {
+                            controller.start();
+                            starts.incrementAndGet();
+                        } else if (action < 9) {
+                            controller.cancel();
+                            cancels.incrementAndGet();
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }, "client-" + i);
+        }
+        sensorThread.start();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        // 结束：先取消再停止调度线程，然后在当前线程跑完锁定冷却等剩余任务
+        controller.cancel();
+        synchronized (stopSensor) {
+            stopSensor[0] = true;
+        }
+        sensorThread.join();
+        controller.cancel();
+        scheduler.advanceBy(60000);
+        controller.destroy();
+
+        System.out.println("threads:           " + CLIENT_THREADS + " clients + 1 sensor, " + seconds + " s");
+        System.out.println("start calls:       " + starts.get());
+        System.out.println("cancel calls:      " + cancels.get());
+        System.out.println("authenticate:      " + fake.getAuthenticateCalls());
+        System.out.println("session cancel:    " + fake.getCancelCalls());
+        System.out.println("sensor callbacks:  " + sCallbacks.get());
+        System.out.println("double armed:      " + sDoubleAuthenticate.get());
+        System.out.println("after cancel:      " + sCallbackAfterCancel.get());
+        System.out.println("open sessions:     " + fake.getOpenSessionCount());
+        System.out.println("pending tasks:     " + scheduler.getPendingCount());
+        System.out.println("final state:       " + AuthStateMachine.nameOf(controller.getStateMachine().get()));
+        System.out.println(metrics.snapshot());
+
+        if (sDoubleAuthenticate.get() != 0 || sCallbackAfterCancel.get() != 0 || fake.getOpenSessionCount() != 0
+                || scheduler.getPendingCount() != 0 || !controller.getStateMachine().is(AuthStateMachine.IDLE)) {
+            System.out.println("FAILED: concurrent sessions, leaked sessions or callbacks after cancel");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 包装假传感器：authenticate时检查是否已经有会话在监听，记录每个会话是否被取消
+     */
+    private static final class CheckedSensor implements FingerprintSensor {
+        private final FakeFingerprintSensor mDelegate;
+
+        CheckedSensor(FakeFingerprintSensor delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public boolean isHardwareDetected() {
+            return mDelegate.isHardwareDetected();
+        }
+
+        @Override
+        public boolean hasEnrolledFingerprints() {
+            return mDelegate.hasEnrolledFingerprints();
+        }
+
+        @Override
+        public Session authenticate(Object crypto, Callback callback) {
+            CheckedSession session = new CheckedSession(callback);
+            session.mDelegate = mDelegate.authenticate(crypto, session);
+            if (mDelegate.getOpenSessionCount() > 1) {
+                sDoubleAuthenticate.incrementAndGet();
+            }
+            return session;
+        }
+    }
+
+    private static final class CheckedSession implements FingerprintSensor.Session, FingerprintSensor.Callback {
+        private final FingerprintSensor.Callback mCallback;
+        volatile FingerprintSensor.Session mDelegate;
+        volatile boolean mCancelled;
+
+        CheckedSession(FingerprintSensor.Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mDelegate.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            sCancelledOnArrival.set(mCancelled);
+            mCallback.onAuthenticationError(errMsgId, errString);
+            sCancelledOnArrival.remove();
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            sCancelledOnArrival.set(mCancelled);
+            mCallback.onAuthenticationHelp(helpMsgId, helpString);
+            sCancelledOnArrival.remove();
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            sCancelledOnArrival.set(mCancelled);
+            mCallback.onAuthenticationFailed();
+            sCancelledOnArrival.remove();
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(Object crypto) {
+            sCancelledOnArrival.set(mCancelled);
+            mCallback.onAuthenticationSucceeded(crypto);
+            sCancelledOnArrival.remove();
+        }
+    }
+
+    private static final class CheckingListener implements AuthSessionController.Listener {
+        @Override
+        public void onStartResult(boolean isSuccess, Throwable exception) {
+        }
+
+        @Override
+        public void onSucceeded(Object crypto) {
+            check();
+        }
+
+        @Override
+        public void onFailed(int msgId, CharSequence message) {
+            check();
+        }
+
+        @Override
+        public void onError(int errMsgId, CharSequence errString) {
+            check();
+        }
+
+        private void check() {
+            sCallbacks.incrementAndGet();
+            if (Boolean.TRUE.equals(sCancelledOnArrival.get())) {
+                sCallbackAfterCancel.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import fingerprint.com.fingerprintrecognition.core.AuthMetrics;
+import fingerprint.com.fingerprintrecognition.core.AuthSessionController;
+import fingerprint.com.fingerprintrecognition.core.AuthTrace;
+import fingerprint.com.fingerprintrecognition.core.AuthTraceRecorder;
+import fingerprint.com.fingerprintrecognition.core.AuthTraceReplayer;
+import fingerprint.com.fingerprintrecognition.core.DefaultRetryPolicy;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor;
+import fingerprint.com.fingerprintrecognition.core.FakeFingerprintSensor.Event;
+import fingerprint.com.fingerprintrecognition.core.VirtualScheduler;
+
+/**
+ * 录制回放的回归和压测：
+ * <ul>
+ * <li>不带参数时先用假传感器随机跑一段并录制，再把录制的事件以最快速度回放给新的控制器并再次录制，
+ *     两次录制的事件、状态和时间必须完全一致</li>
+ * <li>参数为现场录制的文件时，以最快速度重复回放，输出每秒回放的事件数</li>
+ * </ul>
+ * 回放使用虚拟时钟，控制器的重试策略要和录制时一致（这里固定为soak使用的参数）
+ *
+ * 运行：./gradlew :benchmark:traceReplay [-Ptrace.file=/path/to/trace.bin]
+ */
+public class TraceReplayHarness {
+
+    private static final int DEFAULT_CYCLES = 100000;
+    private static final int MAX_RECORDS = 1 << 20;
+    private static final long IDLE_TIMEOUT_MS = 5000;
+    private static final long SEED = 42L;
+    private static final int REPLAY_ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            AuthTrace trace = AuthTrace.read(new File(args[0]));
+            System.out.println("records:           " + trace.size());
+            System.out.println("recorded duration: " + trace.getDurationNanos() / 1000000 + " ms");
+            for (int i = 0; i < REPLAY_ROUNDS; i++) {
+                replay(trace, null);
+            }
+            return;
+        }
+
+        File recorded = File.createTempFile("trace", ".bin");
+        File replayed = File.createTempFile("replay", ".bin");
+        try {
+            record(recorded, DEFAULT_CYCLES);
+            AuthTrace original = AuthTrace.read(recorded);
+            AuthTrace copy = AuthTrace.read(replay(original, replayed));
+            boolean sameTimes = original.size() == copy.size();
+            for (int i = 0; sameTimes && i < original.size(); i++) {
+                sameTimes = original.getTimeNanos(i) == copy.getTimeNanos(i);
+            }
+            System.out.println("recorded events:   " + original.size());
+            System.out.println("replayed events:   " + copy.size());
+            System.out.println("same events:       " + original.sameEvents(copy));
+            System.out.println("same timing:       " + sameTimes);
+            if (!original.sameEvents(copy) || !sameTimes) {
+                System.out.println("FAILED: replay diverged from the recording");
+                System.exit(1);
+            }
+            for (int i = 0; i < REPLAY_ROUNDS; i++) {
+                replay(original, null);
+            }
+        } finally {
+            recorded.delete();
+            replayed.delete();
+        }
+    }
+
+    private static AuthSessionController newController(FakeFingerprintSensor sensor, VirtualScheduler scheduler) {
+        AuthSessionController controller = new AuthSessionController(sensor, scheduler, new AuthMetrics(),
+                new AuthCycleBenchmark.NoopListener());
+        controller.setRetryPolicy(new DefaultRetryPolicy(5, 300, 5000, 0.2f, 30000, new Random(SEED)));
+        controller.setIdleTimeout(IDLE_TIMEOUT_MS);
+        return controller;
+    }
+
+    private static AuthTraceRecorder.Clock virtualClock(final VirtualScheduler scheduler) {
+        return new AuthTraceRecorder.Clock() {
+            @Override
+            public long nanoTime() {
+                return scheduler.now() * 1000000;
+            }
+        };
+    }
+
+    /**
+     * 随机的用户操作和传感器事件，和SensorSoakHarness一样
+     */
+    private static void record(File file, int cycles) throws IOException {
+        final Random random = new Random(SEED);
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeFingerprintSensor sensor = new FakeFingerprintSensor(scheduler);
+        sensor.setEventSource(new FakeFingerprintSensor.EventSource() {
+            @Override
+            public Event next() {
+                int roll = random.nextInt(100);
+                long latency = 50 + random.nextInt(800);
+                if (roll < 30) {
+                    return Event.success(latency);
+                } else if (roll < 70) {
+                    return Event.failed(latency);
+                } else if (roll < 90) {
+                    return Event.help(1 + random.nextInt(5), latency);
+                } else if (roll < 93) {
+                    return null;
+                } else if (roll < 97) {
+                    return Event.error(FakeFingerprintSensor.ERROR_CANCELED, latency);
+                }
+                return Event.error(FakeFingerprintSensor.ERROR_LOCKOUT, latency);
+            }
+        });
+        AuthSessionController controller = newController(sensor, scheduler);
+        AuthTraceRecorder recorder = new AuthTraceRecorder(file, MAX_RECORDS, virtualClock(scheduler));
+        controller.setTraceRecorder(recorder);
+        for (int i = 0; i < cycles; i++) {
+            int action = random.nextInt(20);
+            if (action < 10) {
+                controller.start();
+            } else if (action < 14) {
+                controller.cancel();
+            } else if (action < 15) {
+                if (controller.isPaused()) {
+                    controller.resume();
+                } else {
+                    controller.pause();
+                }
+            } else {
+                // 同一时刻的用户操作和传感器事件回放时顺序不确定，用户操作错开整毫秒
+                scheduler.advanceBy(1 + random.nextInt(2000));
+            }
+        }
+        controller.destroy();
+        recorder.close();
+        if (recorder.getDroppedCount() != 0) {
+            System.out.println("WARN: " + recorder.getDroppedCount() + " events dropped, increase MAX_RECORDS");
+        }
+    }
+
+    /**
+     * 以最快速度回放，output不为null时把回放过程再录制下来
+     */
+    private static File replay(AuthTrace trace, File output) throws IOException {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        AuthTraceReplayer replayer = new AuthTraceReplayer(trace, scheduler, 1f);
+        AuthSessionController controller = newController(null, scheduler);
+        controller.setSensor(replayer.getSensor());
+        AuthTraceRecorder recorder = null;
+        if (output != null) {
+            recorder = new AuthTraceRecorder(output, MAX_RECORDS, virtualClock(scheduler));
+            controller.setTraceRecorder(recorder);
+        }
+        long startNanos = System.nanoTime();
+        replayer.start(controller);
+        scheduler.advanceBy(trace.getDurationNanos() / 1000000);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (recorder != null) {
+            // 录制中最后的取消已经回放过了
+            controller.setTraceRecorder(null);
+            recorder.close();
+        }
+        controller.destroy();
+        System.out.println("replay:            " + replayer.getReplayedSessionCount() + "/"
+                + replayer.getRecordedSessionCount() + " sessions, "
+                + (long) (trace.size() / (elapsedNanos / 1e9)) + " records/s, "
+                + (trace.getDurationNanos() / 1000000) / Math.max(1, elapsedNanos / 1000000) + "x realtime");
+        return output;
+    }
+}
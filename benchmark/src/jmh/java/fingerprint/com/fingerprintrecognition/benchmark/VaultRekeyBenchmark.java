@@ -0,0 +1,125 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import fingerprint.com.fingerprintrecognition.core.CryptoEnvelope;
+import fingerprint.com.fingerprintrecognition.vault.VaultRekeyJob;
+import fingerprint.com.fingerprintrecognition.vault.VaultStore;
+
+/**
+ * 秘钥轮换后把整个保险箱从v1重新加密到v2的耗时，比较单线程和按CPU核数并行
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VaultRekeyBenchmark {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int VALUE_SIZE = 64;
+
+    @Param({"20000"})
+    public int entries;
+
+    /** 0表示CPU核数 */
+    @Param({"1", "0"})
+    public int threads;
+
+    private SecretKey mOldKey;
+    private SecretKey mNewKey;
+    private ExecutorService mExecutor;
+    private File mFile;
+    private VaultStore mStore;
+
+    private final ThreadLocal<Cipher[]> mCiphers = new ThreadLocal<Cipher[]>() {
+        @Override
+        protected Cipher[] initialValue() {
+            try {
+                return new Cipher[]{Cipher.getInstance(TRANSFORMATION), Cipher.getInstance(TRANSFORMATION)};
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUpKeys() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        mOldKey = keyGenerator.generateKey();
+        mNewKey = keyGenerator.generateKey();
+        mExecutor = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpStore() throws Exception {
+        mFile = File.createTempFile("rekey", ".bin");
+        mStore = new VaultStore(mFile, false);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] secret = new byte[VALUE_SIZE];
+        Random random = new Random(1);
+        for (int i = 0; i < entries; i++) {
+            random.nextBytes(secret);
+            cipher.init(Cipher.ENCRYPT_MODE, mOldKey);
+            mStore.put("account/" + i + "/token", CryptoEnvelope.seal(cipher, 1, secret));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownStore() throws IOException {
+        mStore.close();
+        mFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownKeys() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public boolean rekey() throws Exception {
+        VaultRekeyJob job = new VaultRekeyJob(mStore, new VaultRekeyJob.Rewrapper() {
+            @Override
+            public boolean needsRewrap(ByteBuffer envelope) throws Exception {
+                return CryptoEnvelope.parseHeader(envelope.duplicate()).getKeyVersion() != 2;
+            }
+
+            @Override
+            public byte[] rewrap(byte[] envelope) throws Exception {
+                Cipher[] ciphers = mCiphers.get();
+                CryptoEnvelope parsed = CryptoEnvelope.parse(envelope);
+                ciphers[0].init(Cipher.DECRYPT_MODE, mOldKey, parsed.newParameterSpec());
+                byte[] plainText = parsed.open(ciphers[0]);
+                ciphers[1].init(Cipher.ENCRYPT_MODE, mNewKey);
+                return CryptoEnvelope.seal(ciphers[1], 2, plainText);
+            }
+
+            @Override
+            public int classify(Exception e) {
+                return VaultRekeyJob.FAILURE_SKIP;
+            }
+        }, null, mExecutor);
+        return job.start().get();
+    }
+}
@@ -0,0 +1,96 @@
+package fingerprint.com.fingerprintrecognition.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fingerprint.com.fingerprintrecognition.vault.VaultStore;
+
+/**
+ * 保险箱存储的查找、写入和打开（扫描重建索引）的开销，值的大小接近一个加密后的token
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VaultStoreBenchmark {
+
+    private static final int VALUE_SIZE = 96;
+
+    @Param({"1000", "50000"})
+    public int entries;
+
+    private File mFile;
+    private VaultStore mStore;
+    private String[] mKeys;
+    private byte[] mValue;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("vault", ".bin");
+        mStore = new VaultStore(mFile, false);
+        mKeys = new String[entries];
+        mValue = new byte[VALUE_SIZE];
+        new Random(1).nextBytes(mValue);
+        for (int i = 0; i < entries; i++) {
+            mKeys[i] = "account/" + i + "/token";
+            mStore.put(mKeys[i], mValue);
+        }
+        mStore.sync();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mStore.close();
+        mFile.delete();
+    }
+
+    /** 只返回映射中的切片，不拷贝 */
+    @Benchmark
+    public ByteBuffer getSlice() throws IOException {
+        return mStore.getValue(nextKey());
+    }
+
+    @Benchmark
+    public byte[] getCopy() throws IOException {
+        return mStore.get(nextKey());
+    }
+
+    /** 覆盖写入，不同步磁盘，包含均摊的压缩开销 */
+    @Benchmark
+    public void overwrite() throws IOException {
+        mStore.put(nextKey(), mValue);
+        if (mStore.shouldCompact()) {
+            mStore.compact();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int reopen() throws IOException {
+        mStore.close();
+        mStore = new VaultStore(mFile, false);
+        return mStore.size();
+    }
+
+    private String nextKey() {
+        int i = mNext++;
+        if (mNext == mKeys.length) {
+            mNext = 0;
+        }
+        return mKeys[i];
+    }
+}
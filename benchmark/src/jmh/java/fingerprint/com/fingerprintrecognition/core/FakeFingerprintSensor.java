@@ -0,0 +1,238 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可编排的假传感器，每次识别按脚本依次产生成功、帮助、失败、错误事件，每个事件有自己的延迟，
+ * 延迟由{@link AuthScheduler}调度。同时统计authenticate/cancel调用次数和未关闭的会话数，用于检查会话泄漏
+ */
+public class FakeFingerprintSensor implements FingerprintSensor {
+
+    public static final int EVENT_SUCCESS = 0;
+    public static final int EVENT_FAILED = 1;
+    public static final int EVENT_HELP = 2;
+    public static final int EVENT_ERROR = 3;
+
+    public static final class Event {
+        final int mType;
+        final int mCode;
+        final long mLatencyMs;
+
+        private Event(int type, int code, long latencyMs) {
+            mType = type;
+            mCode = code;
+            mLatencyMs = latencyMs;
+        }
+
+        public static Event success(long latencyMs) {
+            return new Event(EVENT_SUCCESS, 0, latencyMs);
+        }
+
+        public static Event failed(long latencyMs) {
+            return new Event(EVENT_FAILED, 0, latencyMs);
+        }
+
+        public static Event help(int helpMsgId, long latencyMs) {
+            return new Event(EVENT_HELP, helpMsgId, latencyMs);
+        }
+
+        public static Event error(int errMsgId, long latencyMs) {
+            return new Event(EVENT_ERROR, errMsgId, latencyMs);
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+
+    /**
+     * 脚本为空时用来生成事件，返回null表示传感器继续等待
+     */
+    public interface EventSource {
+        Event next();
+    }
+
+    private final AuthScheduler mScheduler;
+    private final ArrayDeque<Event> mScript = new ArrayDeque<>();
+    private volatile EventSource mEventSource;
+    private volatile boolean mHardwareDetected = true;
+    private volatile boolean mHasEnrolledFingerprints = true;
+    private volatile boolean mThrowSecurityException = false;
+
+    private final AtomicLong mAuthenticateCalls = new AtomicLong();
+    private final AtomicLong mCancelCalls = new AtomicLong();
+    private final AtomicInteger mOpenSessions = new AtomicInteger();
+
+    public FakeFingerprintSensor(AuthScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public synchronized FakeFingerprintSensor enqueue(Event... events) {
+        for (Event event : events) {
+            mScript.add(event);
+        }
+        return this;
+    }
+
+    public synchronized void clearScript() {
+        mScript.clear();
+    }
+
+    public void setEventSource(EventSource eventSource) {
+        mEventSource = eventSource;
+    }
+
+    public void setHardwareDetected(boolean hardwareDetected) {
+        mHardwareDetected = hardwareDetected;
+    }
+
+    public void setHasEnrolledFingerprints(boolean hasEnrolledFingerprints) {
+        mHasEnrolledFingerprints = hasEnrolledFingerprints;
+    }
+
+    /**
+     * 模拟没有权限时authenticate抛出SecurityException
+     */
+    public void setThrowSecurityException(boolean throwSecurityException) {
+        mThrowSecurityException = throwSecurityException;
+    }
+
+    @Override
+    public boolean isHardwareDetected() {
+        return mHardwareDetected;
+    }
+
+    @Override
+    public boolean hasEnrolledFingerprints() {
+        return mHasEnrolledFingerprints;
+    }
+
+    @Override
+    public Session authenticate(Object crypto, Callback callback) {
+        mAuthenticateCalls.incrementAndGet();
+        if (mThrowSecurityException) {
+            throw new SecurityException("fake sensor permission denied");
+        }
+        FakeSession session = new FakeSession(crypto, callback);
+        mOpenSessions.incrementAndGet();
+        session.scheduleNext();
+        return session;
+    }
+
+    private synchronized Event nextEvent() {
+        Event event = mScript.poll();
+        if (event == null) {
+            EventSource source = mEventSource;
+            event = source == null ? null : source.next();
+        }
+        return event;
+    }
+
+    private final class FakeSession implements Session, Runnable {
+        private final Object mCrypto;
+        private final Callback mCallback;
+        private Event mPending;
+        private boolean mCancelled;
+        private boolean mClosed;
+
+        FakeSession(Object crypto, Callback callback) {
+            mCrypto = crypto;
+            mCallback = callback;
+        }
+
+        void scheduleNext() {
+            synchronized (this) {
+                // 会话已经在回调中被取消（例如失败后重新启动），不要替它取走下一个事件
+                if (mClosed) {
+                    return;
+                }
+            }
+            Event event = nextEvent();
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mPending = event;
+            }
+            if (event != null) {
+                mScheduler.postDelayed(this, event.mLatencyMs);
+            }
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            synchronized (this) {
+                if (mClosed || mPending == null) {
+                    return;
+                }
+                event = mPending;
+                mPending = null;
+                if (event.mType == EVENT_SUCCESS || event.mType == EVENT_ERROR) {
+                    close();
+                }
+            }
+            switch (event.mType) {
+                case EVENT_SUCCESS:
+                    mCallback.onAuthenticationSucceeded(mCrypto);
+                    return;
+                case EVENT_ERROR:
+                    mCallback.onAuthenticationError(event.mCode, "fake error " + event.mCode);
+                    return;
+                case EVENT_HELP:
+                    mCallback.onAuthenticationHelp(event.mCode, "fake help " + event.mCode);
+                    break;
+                default:
+                    mCallback.onAuthenticationFailed();
+                    break;
+            }
+            scheduleNext();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                close();
+            }
+            mCancelCalls.incrementAndGet();
+            mScheduler.remove(this);
+        }
+
+        private void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mOpenSessions.decrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    public long getAuthenticateCalls() {
+        return mAuthenticateCalls.get();
+    }
+
+    public long getCancelCalls() {
+        return mCancelCalls.get();
+    }
+
+    /**
+     * 还在监听（既没有结束也没有被取消）的会话数，识别流程空闲时应该为0
+     */
+    public int getOpenSessionCount() {
+        return mOpenSessions.get();
+    }
+}
@@ -0,0 +1,109 @@
+package fingerprint.com.fingerprintrecognition.core;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * 虚拟时钟调度器，任务只在{@link #advanceBy(long)}、{@link #runUntilIdle(int)}时在调用线程上执行，
+ * 用于在JVM上快速、确定性地驱动识别流程
+ */
+public class VirtualScheduler implements AuthScheduler {
+
+    private static final class Task implements Comparable<Task> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            mTime = time;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow;
+    private long mSequence;
+    private long mExecutedCount;
+
+    @Override
+    public synchronized void postDelayed(Runnable runnable, long delayMs) {
+        mTasks.add(new Task(mNow + Math.max(0, delayMs), mSequence++, runnable));
+    }
+
+    @Override
+    public synchronized void remove(Runnable runnable) {
+        Iterator<Task> iterator = mTasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mRunnable == runnable) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 虚拟时间前进durationMs，期间到期的任务按时间顺序执行
+     */
+    public void advanceBy(long durationMs) {
+        long deadline;
+        synchronized (this) {
+            deadline = mNow + durationMs;
+        }
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = mTasks.peek();
+                if (task == null || task.mTime > deadline) {
+                    mNow = deadline;
+                    return;
+                }
+                mTasks.poll();
+                mNow = task.mTime;
+                mExecutedCount++;
+            }
+            task.mRunnable.run();
+        }
+    }
+
+    /**
+     * 依次执行所有任务（包括执行过程中新加入的），直到没有任务或者执行了maxTasks个
+     * @return 实际执行的任务数
+     */
+    public int runUntilIdle(int maxTasks) {
+        int executed = 0;
+        while (executed < maxTasks) {
+            Task task;
+            synchronized (this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    break;
+                }
+                mNow = Math.max(mNow, task.mTime);
+                mExecutedCount++;
+            }
+            task.mRunnable.run();
+            executed++;
+        }
+        return executed;
+    }
+
+    public synchronized long now() {
+        return mNow;
+    }
+
+    public synchronized int getPendingCount() {
+        return mTasks.size();
+    }
+
+    public synchronized long getExecutedCount() {
+        return mExecutedCount;
+    }
+}